@@ -0,0 +1,137 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.triangulate.VoronoiDiagramBuilder;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Coverages creates the coverages used by the benchmarks.  Synthetic
+ *  coverages are generated so that adjacent cells share exactly the same
+ *  vertices, as required by {@link CoverageUnion}.
+ * @author dbaston
+ */
+public class Coverages {
+    /** Location of the Vermont census blocks, relative to the benchmarks
+     *  directory, unless overridden by the coverageop.blocks system
+     *  property.
+     */
+    public static final String DEFAULT_BLOCKS_PATH = "../src/test/resources/blocks_vt.csv";
+
+    /** create returns a coverage of the named type.
+     * @param type "grid", "hex", "voronoi", or "vt" for the Vermont census
+     *             blocks, in which case the number of cells is ignored
+     * @param cells approximate number of cells
+     * @param gfact
+     */
+    public static List<Geometry> create(String type, int cells, GeometryFactory gfact) throws IOException {
+        switch (type) {
+            case "grid":
+                return grid(cells, gfact);
+            case "hex":
+                return hex(cells, gfact);
+            case "voronoi":
+                return voronoi(cells, 1L, gfact);
+            case "vt":
+                return readBlocks(new File(System.getProperty("coverageop.blocks", DEFAULT_BLOCKS_PATH)), gfact);
+            default:
+                throw new IllegalArgumentException("Unknown coverage type: " + type);
+        }
+    }
+
+    /** grid returns a square grid of unit squares.
+     */
+    public static List<Geometry> grid(int cells, GeometryFactory gfact) {
+        int side = (int) Math.ceil(Math.sqrt(cells));
+        List<Geometry> geoms = new ArrayList<>(side * side);
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                geoms.add(gfact.toGeometry(new Envelope(x, x + 1, y, y + 1)));
+            }
+        }
+        return geoms;
+    }
+
+    /** hex returns a hexagonal tiling.  The hexagons are stretched so that
+     *  all of their vertices have integer coordinates, and rows are offset
+     *  by half a cell.
+     */
+    public static List<Geometry> hex(int cells, GeometryFactory gfact) {
+        int side = (int) Math.ceil(Math.sqrt(cells));
+        List<Geometry> geoms = new ArrayList<>(side * side);
+        for (int j = 0; j < side; j++) {
+            for (int i = 0; i < side; i++) {
+                int cx = 2 * i + (j & 1);
+                int cy = 3 * j;
+                geoms.add(gfact.createPolygon(gfact.createLinearRing(new Coordinate[] {
+                    new Coordinate(cx,     cy + 2),
+                    new Coordinate(cx + 1, cy + 1),
+                    new Coordinate(cx + 1, cy - 1),
+                    new Coordinate(cx,     cy - 2),
+                    new Coordinate(cx - 1, cy - 1),
+                    new Coordinate(cx - 1, cy + 1),
+                    new Coordinate(cx,     cy + 2)
+                }), null));
+            }
+        }
+        return geoms;
+    }
+
+    /** voronoi returns the Voronoi cells of randomly placed sites.  Cells
+     *  that would be clipped by the extent of the sites are omitted, so that
+     *  every cell retains the shared circumcentres computed by the
+     *  triangulation, and slightly fewer cells than requested are returned.
+     */
+    public static List<Geometry> voronoi(int cells, long seed, GeometryFactory gfact) {
+        double side = Math.sqrt(cells);
+        Random random = new Random(seed);
+        List<Coordinate> sites = new ArrayList<>(cells);
+        for (int i = 0; i < cells; i++) {
+            sites.add(new Coordinate(side * random.nextDouble(), side * random.nextDouble()));
+        }
+
+        Envelope extent = new Envelope(0, side, 0, side);
+        VoronoiDiagramBuilder builder = new VoronoiDiagramBuilder();
+        builder.setSites(sites);
+        builder.setClipEnvelope(extent);
+        Geometry diagram = builder.getDiagram(gfact);
+
+        List<Geometry> geoms = new ArrayList<>(diagram.getNumGeometries());
+        for (int i = 0; i < diagram.getNumGeometries(); i++) {
+            // A clipped cell touches the extent, so keep only the cells
+            // that lie strictly inside it.
+            Geometry cell = diagram.getGeometryN(i);
+            Envelope env = cell.getEnvelopeInternal();
+            if (env.getMinX() > 0 && env.getMinY() > 0 && env.getMaxX() < side && env.getMaxY() < side) {
+                geoms.add(cell);
+            }
+        }
+        return geoms;
+    }
+
+    /** readBlocks reads a CSV file with a header line followed by one WKT
+     *  geometry per line.
+     */
+    public static List<Geometry> readBlocks(File file, GeometryFactory gfact) throws IOException {
+        List<Geometry> geoms = new ArrayList<>();
+        WKTReader reader = new WKTReader(gfact);
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            br.readLine(); // toss the header
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                geoms.add(reader.read(line));
+            }
+        } catch (ParseException e) {
+            throw new IOException("Invalid WKT in " + file, e);
+        }
+        return geoms;
+    }
+}
@@ -0,0 +1,131 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** PhaseBenchmark measures each phase of a {@link CoverageUnion}
+ *  separately.  The input of each phase is computed once, during setup,
+ *  from the output of the previous phase.
+ *
+ *  This class is in the same package as CoverageUnion so that it can call
+ *  the protected getRingPolygons directly.  Run it with, for example,
+ *  <pre>
+ *  java -jar target/benchmarks.jar PhaseBenchmark -p coverage=hex -p cells=100000
+ *  java -jar target/benchmarks.jar PhaseBenchmark -p coverage=vt -p cells=0
+ *  </pre>
+ * @author dbaston
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8g"})
+public class PhaseBenchmark {
+    /** Coverage type, as accepted by {@link Coverages#create}. */
+    @Param({"grid", "hex", "voronoi"})
+    public String coverage;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int cells;
+
+    private GeometryFactory gfact;
+    private List<Geometry> inputs;
+    private DuplicateSegmentFinder finder;
+    private SegmentBuffer boundary;
+    private Collection<LineString> segmentLines;
+    private Collection<LineString> mergedLines;
+    private Polygon[] ringPolygons;
+    private List<LinearRing> shells;
+    private List<LinearRing> holes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        gfact = new GeometryFactory();
+        inputs = Coverages.create(coverage, cells, gfact);
+
+        finder = new DuplicateSegmentFinder(inputs, false);
+        boundary = finder.getUniqueDirectedSegments();
+        segmentLines = Arrays.asList(finder.getUniqueLineStrings(gfact));
+        mergedLines = finder.getUniqueMergedLineSegments(gfact);
+        ringPolygons = CoverageUnion.getRingPolygons(mergedLines, inputs);
+
+        RingTracer tracer = new RingTracer(boundary, gfact);
+        shells = tracer.getShells();
+        holes = tracer.getHoles();
+    }
+
+    /** Extraction and cancellation of shared segments, as performed by
+     *  DuplicateSegmentFinder.add for each input.
+     */
+    @Benchmark
+    public DuplicateSegmentFinder cancelSegments() {
+        return new DuplicateSegmentFinder(inputs, false);
+    }
+
+    @Benchmark
+    public DuplicateSegmentFinder cancelSegmentsPacked() {
+        return new DuplicateSegmentFinder(inputs, false,
+                new UnionParameters().setSegmentStorage(UnionParameters.SegmentStorage.PACKED_TABLE));
+    }
+
+    @Benchmark
+    public DuplicateSegmentFinder cancelSegmentsSorted() {
+        return new DuplicateSegmentFinder(inputs, false,
+                new UnionParameters().setSegmentStorage(UnionParameters.SegmentStorage.SORTED));
+    }
+
+    @Benchmark
+    public Collection<LineString> mergeLines() {
+        return finder.getUniqueMergedLineSegments(gfact);
+    }
+
+    /** getRingPolygons with merged lines that are all closed rings. */
+    @Benchmark
+    public Polygon[] ringPolygonsClosed() {
+        return CoverageUnion.getRingPolygons(mergedLines, inputs);
+    }
+
+    /** getRingPolygons with unmerged segments, which are polygonized. */
+    @Benchmark
+    public Polygon[] ringPolygonsPolygonizer() {
+        return CoverageUnion.getRingPolygons(segmentLines, inputs);
+    }
+
+    @Benchmark
+    public Polygon[] assembleRingPolygons() {
+        return PolygonAssembler.getAssembled(ringPolygons);
+    }
+
+    @Benchmark
+    public RingTracer traceRings() {
+        RingTracer tracer = new RingTracer(boundary, gfact);
+        tracer.getShells();
+        return tracer;
+    }
+
+    @Benchmark
+    public Polygon[] assembleTracedRings() {
+        return PolygonAssembler.getAssembled(shells, holes);
+    }
+}
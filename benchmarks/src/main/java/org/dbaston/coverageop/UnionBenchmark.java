@@ -0,0 +1,69 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.operation.union.UnaryUnionOp;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** UnionBenchmark compares the end-to-end time of
+ *  {@link CoverageUnion#union(java.util.Collection)} with that of
+ *  UnaryUnionOp on the same coverage.
+ * @author dbaston
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8g"})
+public class UnionBenchmark {
+    /** Coverage type, as accepted by {@link Coverages#create}. */
+    @Param({"grid", "hex", "voronoi"})
+    public String coverage;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int cells;
+
+    private List<Geometry> inputs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        inputs = Coverages.create(coverage, cells, new GeometryFactory());
+    }
+
+    @Benchmark
+    public Geometry coverageUnion() {
+        return CoverageUnion.union(inputs);
+    }
+
+    @Benchmark
+    public Geometry coverageUnionPacked() {
+        return CoverageUnion.union(inputs, null,
+                new UnionParameters().setSegmentStorage(UnionParameters.SegmentStorage.PACKED_TABLE));
+    }
+
+    @Benchmark
+    public Geometry coverageUnionCounted() {
+        return CoverageUnion.union(inputs, null,
+                new UnionParameters().setSegmentStorage(UnionParameters.SegmentStorage.COUNTED_TABLE));
+    }
+
+    @Benchmark
+    public Geometry unaryUnion() {
+        return UnaryUnionOp.union(inputs);
+    }
+}
@@ -0,0 +1,135 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineSegment;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** An ArcSimplifier simplifies the boundaries of one or more unions before
+ *  their rings are built, simplifying each arc of the boundary once.
+ *
+ *  The unique segments of all of the unions are combined, and split into
+ *  arcs at every node by a {@link BoundaryArcs}.  Each arc therefore lies
+ *  on the boundary of the same unions along its whole length, so where the
+ *  unions of neighboring groups share a boundary, they share its arcs.
+ *  The arcs are simplified together by a TopologyPreservingSimplifier,
+ *  which retains the nodes and prevents arcs from crossing one another,
+ *  and the simplified arcs are then substituted for the segments of each
+ *  union, in the direction in which each union traversed them.  Unions
+ *  that shared a boundary therefore share the simplified boundary, without
+ *  gaps or overlaps.
+ *
+ *  Two arcs joining the same pair of nodes could be simplified to the same
+ *  straight segment, so such arcs are split at their middle vertex.
+ * @author dbaston
+ */
+public class ArcSimplifier {
+    private final List<Coordinate[]> arcs = new ArrayList<>();
+    private final Map<LineSegment, Integer> arcOfSegment = new HashMap<>();
+
+    /** simplify simplifies the directed boundary segments of one or more
+     *  unions.
+     * @param segments directed unique segments of each union, with the
+     *                 interior on their right
+     * @param tolerance distance tolerance of the simplification
+     * @param gfact GeometryFactory used to construct the arcs that are
+     *              simplified
+     * @return the simplified segments of each union, in the same direction
+     */
+    public static SegmentBuffer[] simplify(SegmentBuffer[] segments, double tolerance, GeometryFactory gfact) {
+        return new ArcSimplifier(segments).simplifyArcs(segments, tolerance, gfact);
+    }
+
+    private ArcSimplifier(SegmentBuffer[] segments) {
+        BoundaryArcs boundary = new BoundaryArcs();
+        for (SegmentBuffer buffer : segments) {
+            for (int i = 0; i < buffer.size(); i++) {
+                boundary.add(new Coordinate(buffer.getX0(i), buffer.getY0(i)),
+                             new Coordinate(buffer.getX1(i), buffer.getY1(i)));
+            }
+        }
+        List<List<Coordinate>> traced = boundary.getArcs();
+
+        Map<LineSegment, Integer> numJoining = new HashMap<>();
+        for (List<Coordinate> arc : traced) {
+            LineSegment ends = BoundaryArcs.normalized(arc.get(0), arc.get(arc.size() - 1));
+            Integer n = numJoining.get(ends);
+            numJoining.put(ends, n == null ? 1 : n + 1);
+        }
+        for (List<Coordinate> arc : traced) {
+            Coordinate start = arc.get(0);
+            Coordinate end = arc.get(arc.size() - 1);
+            if (!start.equals2D(end) && arc.size() > 2 && numJoining.get(BoundaryArcs.normalized(start, end)) > 1) {
+                int middle = arc.size() / 2;
+                addArc(arc.subList(0, middle + 1));
+                addArc(arc.subList(middle, arc.size()));
+            } else {
+                addArc(arc);
+            }
+        }
+    }
+
+    /** addArc records an arc, and the arc to which each of its segments
+     *  belongs.  The lowest bit of the recorded value is set if the arc
+     *  traverses the segment opposite to its normalized direction.
+     */
+    private void addArc(List<Coordinate> arc) {
+        int id = arcs.size();
+        arcs.add(arc.toArray(new Coordinate[arc.size()]));
+        for (int i = 1; i < arc.size(); i++) {
+            LineSegment ls = new LineSegment(arc.get(i - 1), arc.get(i));
+            boolean reversed = ls.p0.compareTo(ls.p1) > 0;
+            ls.normalize();
+            arcOfSegment.put(ls, 2 * id + (reversed ? 1 : 0));
+        }
+    }
+
+    private SegmentBuffer[] simplifyArcs(SegmentBuffer[] segments, double tolerance, GeometryFactory gfact) {
+        LineString[] lines = new LineString[arcs.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = gfact.createLineString(arcs.get(i));
+        }
+        Geometry simplified = TopologyPreservingSimplifier.simplify(gfact.createMultiLineString(lines), tolerance);
+        if (simplified.getNumGeometries() != lines.length) {
+            return segments;
+        }
+
+        SegmentBuffer[] result = new SegmentBuffer[segments.length];
+        boolean[] added = new boolean[lines.length];
+        for (int g = 0; g < segments.length; g++) {
+            SegmentBuffer buffer = segments[g];
+            SegmentBuffer out = new SegmentBuffer(Math.max(buffer.size(), 1));
+            Arrays.fill(added, false);
+            for (int i = 0; i < buffer.size(); i++) {
+                LineSegment ls = new LineSegment(buffer.getX0(i), buffer.getY0(i), buffer.getX1(i), buffer.getY1(i));
+                boolean reversed = ls.p0.compareTo(ls.p1) > 0;
+                ls.normalize();
+                int value = arcOfSegment.get(ls);
+                int id = value / 2;
+                if (added[id]) {
+                    continue;
+                }
+                added[id] = true;
+                Coordinate[] pts = simplified.getGeometryN(id).getCoordinates();
+                if (reversed == ((value & 1) != 0)) {
+                    for (int j = 1; j < pts.length; j++) {
+                        out.add(pts[j-1].x, pts[j-1].y, pts[j].x, pts[j].y);
+                    }
+                } else {
+                    for (int j = pts.length - 1; j > 0; j--) {
+                        out.add(pts[j].x, pts[j].y, pts[j-1].x, pts[j-1].y);
+                    }
+                }
+            }
+            result[g] = out;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,435 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateArrays;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineSegment;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.util.PolygonExtracter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** An ArcTopology represents polygonal geometries, such as the results of
+ *  {@link CoverageUnion#unionByKey}, as a table of arcs in the manner of
+ *  TopoJSON.  The boundaries of all of the geometries are divided into arcs
+ *  at their nodes by a {@link BoundaryArcs}, so that a boundary shared by
+ *  two geometries, or by a shell and a hole that touch, is stored once.
+ *  Each ring is a list of references to arcs: a reference i to arc i in its
+ *  stored direction, and a reference ~i (that is, -i - 1) to arc i in
+ *  reverse.  The last vertex of each arc of a ring is the first vertex of
+ *  the next.
+ *
+ *  An ArcTopology may be written to a stream with its ordinates either as
+ *  doubles or quantized to integers, as in TopoJSON.  Quantized ordinates
+ *  are delta-encoded along each arc.  All integers are written as
+ *  variable-length integers; ordinate deltas and arc references, which may
+ *  be negative, are zigzag-encoded first, while counts are not.  A
+ *  quantized topology is therefore typically a small fraction of the size
+ *  of the same geometries as WKB.  Because nodes are quantized in the same
+ *  way in every arc, quantization does not open gaps between neighbors,
+ *  but rings may collapse if the quantization is coarse compared with the
+ *  features.
+ * @author dbaston
+ */
+public class ArcTopology {
+    private static final int MAGIC = 0x43554131;  // "CUA1"
+    private static final byte QUANTIZED = 1;
+
+    private final List<Coordinate[]> arcs;
+    private final List<int[][][]> geometries;
+
+    /** Constructs an ArcTopology of the supplied Polygons and MultiPolygons.
+     *  Empty geometries are represented with no polygons.
+     */
+    public ArcTopology(Collection<? extends Geometry> geoms) {
+        BoundaryArcs boundary = new BoundaryArcs();
+        List<List<Polygon>> polygonsOf = new ArrayList<>(geoms.size());
+        for (Geometry g : geoms) {
+            List<Polygon> polygons = getPolygons(g);
+            polygonsOf.add(polygons);
+            for (Polygon p : polygons) {
+                for (int r = -1; r < p.getNumInteriorRing(); r++) {
+                    Coordinate[] ring = getRing(p, r);
+                    for (int j = 1; j < ring.length; j++) {
+                        boundary.add(ring[j-1], ring[j]);
+                    }
+                }
+            }
+        }
+
+        // Record the arc of each segment, and its position in the arc
+        arcs = new ArrayList<>();
+        Map<LineSegment, Integer> arcOfSegment = new HashMap<>();
+        Map<LineSegment, Integer> indexOfSegment = new HashMap<>();
+        for (List<Coordinate> arc : boundary.getArcs()) {
+            for (int j = 1; j < arc.size(); j++) {
+                LineSegment ls = BoundaryArcs.normalized(arc.get(j-1), arc.get(j));
+                arcOfSegment.put(ls, arcs.size());
+                indexOfSegment.put(ls, j - 1);
+            }
+            arcs.add(arc.toArray(new Coordinate[arc.size()]));
+        }
+
+        geometries = new ArrayList<>(geoms.size());
+        for (List<Polygon> list : polygonsOf) {
+            int[][][] polygons = new int[list.size()][][];
+            for (int i = 0; i < polygons.length; i++) {
+                Polygon p = list.get(i);
+                polygons[i] = new int[1 + p.getNumInteriorRing()][];
+                for (int r = -1; r < p.getNumInteriorRing(); r++) {
+                    Coordinate[] ring = getRing(p, r);
+                    polygons[i][r + 1] = getReferences(ring, arcOfSegment, indexOfSegment);
+                }
+            }
+            geometries.add(polygons);
+        }
+    }
+
+    /** getPolygons returns the non-empty Polygons of a geometry.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Polygon> getPolygons(Geometry g) {
+        List<Polygon> polygons = new ArrayList<>();
+        for (Polygon p : (List<Polygon>) PolygonExtracter.getPolygons(g)) {
+            if (!p.isEmpty()) {
+                polygons.add(p);
+            }
+        }
+        return polygons;
+    }
+
+    /** getRing returns the vertices of the shell of a polygon, for r = -1,
+     *  or of a hole, without repeated points.
+     */
+    private static Coordinate[] getRing(Polygon p, int r) {
+        return CoordinateArrays.removeRepeatedPoints(
+                (r < 0 ? p.getExteriorRing() : p.getInteriorRingN(r)).getCoordinates());
+    }
+
+    private ArcTopology(List<Coordinate[]> arcs, List<int[][][]> geometries) {
+        this.arcs = arcs;
+        this.geometries = geometries;
+    }
+
+    /** getReferences returns the arc references of a ring.  The ring may
+     *  begin part way along an arc, so the references begin with the first
+     *  segment of the ring at which an arc begins.
+     */
+    private int[] getReferences(Coordinate[] ring, Map<LineSegment, Integer> arcOfSegment,
+                                Map<LineSegment, Integer> indexOfSegment) {
+        int n = ring.length - 1;
+        int first = -1;
+        for (int j = 0; j < n && first < 0; j++) {
+            LineSegment ls = BoundaryArcs.normalized(ring[j], ring[j+1]);
+            Coordinate[] arc = arcs.get(arcOfSegment.get(ls));
+            int index = indexOfSegment.get(ls);
+            if (ring[j].equals2D(arc[index]) ? index == 0 : index == arc.length - 2) {
+                first = j;
+            }
+        }
+
+        List<Integer> refs = new ArrayList<>();
+        for (int k = 0; k < n; ) {
+            int j = (first + k) % n;
+            LineSegment ls = BoundaryArcs.normalized(ring[j], ring[j+1]);
+            int id = arcOfSegment.get(ls);
+            refs.add(ring[j].equals2D(arcs.get(id)[indexOfSegment.get(ls)]) ? id : ~id);
+            k += arcs.get(id).length - 1;
+        }
+        int[] result = new int[refs.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = refs.get(i);
+        }
+        return result;
+    }
+
+    public int getNumArcs() {
+        return arcs.size();
+    }
+
+    /** getArc returns the vertices of an arc.
+     */
+    public Coordinate[] getArc(int i) {
+        return arcs.get(i).clone();
+    }
+
+    public int getNumGeometries() {
+        return geometries.size();
+    }
+
+    /** getPolygons returns the arc references of the rings of each polygon
+     *  of a geometry, with the shell of each polygon first.
+     * @param i index of the geometry, in the order supplied
+     */
+    public int[][][] getPolygons(int i) {
+        int[][][] polygons = geometries.get(i);
+        int[][][] copy = new int[polygons.length][][];
+        for (int p = 0; p < polygons.length; p++) {
+            copy[p] = new int[polygons[p].length][];
+            for (int r = 0; r < polygons[p].length; r++) {
+                copy[p][r] = polygons[p][r].clone();
+            }
+        }
+        return copy;
+    }
+
+    /** getGeometries reconstructs each geometry as a MultiPolygon.  Rings
+     *  with fewer than four vertices, as may result from quantization, are
+     *  omitted, as are the holes of an omitted shell.
+     */
+    public List<Geometry> getGeometries(GeometryFactory gfact) {
+        List<Geometry> result = new ArrayList<>(geometries.size());
+        for (int[][][] polygons : geometries) {
+            List<Polygon> built = new ArrayList<>(polygons.length);
+            for (int[][] rings : polygons) {
+                LinearRing shell = buildRing(rings[0], gfact);
+                if (shell == null) {
+                    continue;
+                }
+                List<LinearRing> holes = new ArrayList<>(rings.length - 1);
+                for (int r = 1; r < rings.length; r++) {
+                    LinearRing hole = buildRing(rings[r], gfact);
+                    if (hole != null) {
+                        holes.add(hole);
+                    }
+                }
+                built.add(gfact.createPolygon(shell, holes.toArray(new LinearRing[holes.size()])));
+            }
+            result.add(gfact.createMultiPolygon(built.toArray(new Polygon[built.size()])));
+        }
+        return result;
+    }
+
+    private LinearRing buildRing(int[] refs, GeometryFactory gfact) {
+        List<Coordinate> pts = new ArrayList<>();
+        for (int ref : refs) {
+            Coordinate[] arc = arcs.get(ref >= 0 ? ref : ~ref);
+            for (int j = 0; j < arc.length; j++) {
+                Coordinate c = arc[ref >= 0 ? j : arc.length - 1 - j];
+                if (pts.isEmpty() || !pts.get(pts.size() - 1).equals2D(c)) {
+                    pts.add(new Coordinate(c));
+                }
+            }
+        }
+        if (pts.size() < 4) {
+            return null;
+        }
+        return gfact.createLinearRing(pts.toArray(new Coordinate[pts.size()]));
+    }
+
+    /** write writes this ArcTopology to a stream.  The stream is flushed
+     *  but not closed.
+     * @param out
+     * @param quantization number of distinct values of each ordinate, over
+     *                     the extent of all arcs, to which ordinates are
+     *                     quantized, or zero to write ordinates as doubles
+     */
+    public void write(OutputStream out, int quantization) throws IOException {
+        if (quantization == 1 || quantization < 0) {
+            throw new IllegalArgumentException("Quantization must be zero or at least two");
+        }
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeByte(quantization > 0 ? QUANTIZED : 0);
+
+        double x0 = 0, y0 = 0, kx = 1, ky = 1;
+        if (quantization > 0) {
+            Envelope extent = new Envelope();
+            for (Coordinate[] arc : arcs) {
+                for (Coordinate c : arc) {
+                    extent.expandToInclude(c);
+                }
+            }
+            if (!extent.isNull()) {
+                x0 = extent.getMinX();
+                y0 = extent.getMinY();
+                kx = extent.getWidth() > 0 ? extent.getWidth() / (quantization - 1) : 1;
+                ky = extent.getHeight() > 0 ? extent.getHeight() / (quantization - 1) : 1;
+            }
+            data.writeDouble(x0);
+            data.writeDouble(y0);
+            data.writeDouble(kx);
+            data.writeDouble(ky);
+        }
+
+        writeVarint(data, arcs.size());
+        long[] qx = new long[0];
+        long[] qy = new long[0];
+        for (Coordinate[] arc : arcs) {
+            if (quantization == 0) {
+                writeVarint(data, arc.length);
+                for (Coordinate c : arc) {
+                    data.writeDouble(c.x);
+                    data.writeDouble(c.y);
+                }
+                continue;
+            }
+            // Vertices that quantize to the same point as the previous
+            // vertex are dropped, but every arc keeps both of its ends
+            if (qx.length < arc.length) {
+                qx = new long[arc.length];
+                qy = new long[arc.length];
+            }
+            int n = 0;
+            for (int j = 0; j < arc.length; j++) {
+                long x = Math.round((arc[j].x - x0) / kx);
+                long y = Math.round((arc[j].y - y0) / ky);
+                if (n > 0 && j < arc.length - 1 && x == qx[n-1] && y == qy[n-1]) {
+                    continue;
+                }
+                qx[n] = x;
+                qy[n] = y;
+                n++;
+            }
+            writeVarint(data, n);
+            for (int j = 0; j < n; j++) {
+                writeVarint(data, zigzag(j == 0 ? qx[j] : qx[j] - qx[j-1]));
+                writeVarint(data, zigzag(j == 0 ? qy[j] : qy[j] - qy[j-1]));
+            }
+        }
+
+        writeVarint(data, geometries.size());
+        for (int[][][] polygons : geometries) {
+            writeVarint(data, polygons.length);
+            for (int[][] rings : polygons) {
+                writeVarint(data, rings.length);
+                for (int[] refs : rings) {
+                    writeVarint(data, refs.length);
+                    for (int ref : refs) {
+                        writeVarint(data, zigzag(ref));
+                    }
+                }
+            }
+        }
+        data.flush();
+    }
+
+    /** toByteArray returns this ArcTopology in the form written by
+     *  {@link #write(OutputStream, int)}.
+     */
+    public byte[] toByteArray(int quantization) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(out, quantization);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /** read reads an ArcTopology written by
+     *  {@link #write(OutputStream, int)}.  Quantized ordinates are restored
+     *  to the nearest point of the quantization grid.  Nothing is read past
+     *  the end of the ArcTopology, so the stream should be buffered by the
+     *  caller.
+     * @throws IOException if the stream cannot be read or does not hold an
+     *         ArcTopology
+     */
+    public static ArcTopology read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Stream does not contain an ArcTopology");
+        }
+        boolean quantized = (data.readByte() & QUANTIZED) != 0;
+        double x0 = 0, y0 = 0, kx = 1, ky = 1;
+        if (quantized) {
+            x0 = data.readDouble();
+            y0 = data.readDouble();
+            kx = data.readDouble();
+            ky = data.readDouble();
+        }
+
+        int numArcs = readCount(data);
+        List<Coordinate[]> arcs = new ArrayList<>(numArcs);
+        for (int i = 0; i < numArcs; i++) {
+            Coordinate[] arc = new Coordinate[readCount(data)];
+            long x = 0, y = 0;
+            for (int j = 0; j < arc.length; j++) {
+                if (quantized) {
+                    x += unzigzag(readVarint(data));
+                    y += unzigzag(readVarint(data));
+                    arc[j] = new Coordinate(x0 + x * kx, y0 + y * ky);
+                } else {
+                    arc[j] = new Coordinate(data.readDouble(), data.readDouble());
+                }
+            }
+            arcs.add(arc);
+        }
+
+        int numGeometries = readCount(data);
+        List<int[][][]> geometries = new ArrayList<>(numGeometries);
+        for (int g = 0; g < numGeometries; g++) {
+            int[][][] polygons = new int[readCount(data)][][];
+            for (int p = 0; p < polygons.length; p++) {
+                polygons[p] = new int[readCount(data)][];
+                for (int r = 0; r < polygons[p].length; r++) {
+                    int[] refs = new int[readCount(data)];
+                    for (int k = 0; k < refs.length; k++) {
+                        long ref = unzigzag(readVarint(data));
+                        if (ref >= numArcs || ~ref >= numArcs) {
+                            throw new IOException("Reference to a missing arc");
+                        }
+                        refs[k] = (int) ref;
+                    }
+                    polygons[p][r] = refs;
+                }
+            }
+            geometries.add(polygons);
+        }
+        return new ArcTopology(arcs, geometries);
+    }
+
+    public static ArcTopology fromByteArray(byte[] bytes) throws IOException {
+        return read(new ByteArrayInputStream(bytes));
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarint(DataOutputStream data, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            data.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        data.writeByte((int) v);
+    }
+
+    private static long readVarint(DataInputStream data) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = data.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    private static int readCount(DataInputStream data) throws IOException {
+        long n = readVarint(data);
+        if (n < 0 || n > Integer.MAX_VALUE) {
+            throw new IOException("Invalid count " + n);
+        }
+        return (int) n;
+    }
+}
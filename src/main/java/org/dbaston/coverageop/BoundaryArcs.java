@@ -0,0 +1,95 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineSegment;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** A BoundaryArcs divides a set of boundary segments into arcs, being the
+ *  chains of segments between nodes, where a node is a vertex at which
+ *  other than two of the segments meet.  Segments are added in either
+ *  direction, and a segment that is added more than once is used once.
+ *  Chains of segments that form a ring with no node become a single closed
+ *  arc.
+ * @author dbaston
+ */
+class BoundaryArcs {
+    private final Set<LineSegment> distinct = new LinkedHashSet<>();
+    private final Map<Coordinate, List<Coordinate>> neighbors = new LinkedHashMap<>();
+
+    /** add adds the segment between two points, unless it has already been
+     *  added in either direction.
+     */
+    void add(Coordinate p0, Coordinate p1) {
+        LineSegment ls = normalized(p0, p1);
+        if (distinct.add(ls)) {
+            getNeighbors(ls.p0).add(ls.p1);
+            getNeighbors(ls.p1).add(ls.p0);
+        }
+    }
+
+    private List<Coordinate> getNeighbors(Coordinate c) {
+        List<Coordinate> list = neighbors.get(c);
+        if (list == null) {
+            list = new ArrayList<>(2);
+            neighbors.put(c, list);
+        }
+        return list;
+    }
+
+    static LineSegment normalized(Coordinate p0, Coordinate p1) {
+        LineSegment ls = new LineSegment(p0, p1);
+        ls.normalize();
+        return ls;
+    }
+
+    /** getArcs returns the vertices of each arc.  Arcs between nodes begin
+     *  and end at a node, and closed arcs begin and end at the same vertex.
+     */
+    List<List<Coordinate>> getArcs() {
+        List<List<Coordinate>> arcs = new ArrayList<>();
+        Set<LineSegment> visited = new HashSet<>();
+        for (Map.Entry<Coordinate, List<Coordinate>> e : neighbors.entrySet()) {
+            if (e.getValue().size() != 2) {
+                for (Coordinate next : e.getValue()) {
+                    if (!visited.contains(normalized(e.getKey(), next))) {
+                        arcs.add(trace(e.getKey(), next, visited));
+                    }
+                }
+            }
+        }
+        // Whatever remains forms rings with no nodes
+        for (LineSegment ls : distinct) {
+            if (!visited.contains(ls)) {
+                arcs.add(trace(ls.p0, ls.p1, visited));
+            }
+        }
+        return arcs;
+    }
+
+    /** trace follows the segments from a vertex until reaching a node, or
+     *  returning to the first vertex.
+     */
+    private List<Coordinate> trace(Coordinate start, Coordinate next, Set<LineSegment> visited) {
+        List<Coordinate> arc = new ArrayList<>();
+        arc.add(start);
+        Coordinate prev = start;
+        Coordinate cur = next;
+        while (true) {
+            visited.add(normalized(prev, cur));
+            arc.add(cur);
+            List<Coordinate> adjacent = neighbors.get(cur);
+            if (adjacent.size() != 2 || cur.equals2D(start)) {
+                return arc;
+            }
+            Coordinate following = adjacent.get(0).equals2D(prev) ? adjacent.get(1) : adjacent.get(0);
+            prev = cur;
+            cur = following;
+        }
+    }
+}
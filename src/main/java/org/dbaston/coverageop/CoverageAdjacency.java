@@ -0,0 +1,269 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.operation.linemerge.LineMerger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A CoverageAdjacency computes the union of a coverage together with the
+ *  adjacency graph of its features, in a single pass over their segments.
+ *  Each segment is stored in a {@link SegmentTable} with the index of the
+ *  feature from which it was extracted; when a segment is cancelled by a
+ *  segment of another feature, the two features are recorded as neighbors
+ *  and the segment is added to the edge they share.
+ *
+ *  Features are identified by their index in the list supplied at
+ *  construction.  Features that touch only at a point share no segment, and
+ *  are not considered adjacent.  As with {@link CoverageUnion}, the inputs
+ *  must be correctly noded.
+ * @author dbaston
+ */
+public class CoverageAdjacency {
+    private final GeometryFactory gfact;
+    private final Map<Long, SharedEdge> edges = new HashMap<>();
+    private final Geometry union;
+    private SharedEdge[] sortedEdges;
+    private int[] featureStart;       // offsets into featureEdges by feature
+    private SharedEdge[] featureEdges; // edges of each feature, by neighbor
+
+    /** A SharedEdge is the boundary shared by two features of a coverage.
+     */
+    public static class SharedEdge {
+        private final int a;
+        private final int b;
+        private final SegmentBuffer segments = new SegmentBuffer(4);
+        private final GeometryFactory gfact;
+        private double length;
+        private MultiLineString geometry;
+
+        SharedEdge(int a, int b, GeometryFactory gfact) {
+            this.a = a;
+            this.b = b;
+            this.gfact = gfact;
+        }
+
+        /** getA returns the lower index of the two features. */
+        public int getA() {
+            return a;
+        }
+
+        /** getB returns the higher index of the two features. */
+        public int getB() {
+            return b;
+        }
+
+        /** getLength returns the total length of the shared boundary. */
+        public double getLength() {
+            return length;
+        }
+
+        /** getNumSegments returns the number of segments in the shared
+         *  boundary.
+         */
+        public int getNumSegments() {
+            return segments.size();
+        }
+
+        /** getGeometry returns the shared boundary, with its segments merged
+         *  into LineStrings by a LineMerger.
+         */
+        public synchronized MultiLineString getGeometry() {
+            if (geometry == null) {
+                LineMerger lm = new LineMerger();
+                lm.add(Arrays.asList(DuplicateSegmentFinder.toLineStrings(segments, gfact)));
+                @SuppressWarnings("unchecked")
+                Collection<LineString> merged = lm.getMergedLineStrings();
+                geometry = gfact.createMultiLineString(merged.toArray(new LineString[merged.size()]));
+            }
+            return geometry;
+        }
+
+        private void add(double x0, double y0, double x1, double y1) {
+            segments.add(x0, y0, x1, y1);
+            length += Math.hypot(x1 - x0, y1 - y0);
+        }
+
+        @Override
+        public String toString() {
+            return a + "-" + b + " (" + length + ")";
+        }
+    }
+
+    private static final Comparator<SharedEdge> BY_FEATURES = new Comparator<SharedEdge>() {
+        @Override
+        public int compare(SharedEdge e1, SharedEdge e2) {
+            if (e1.a != e2.a) {
+                return Integer.compare(e1.a, e2.a);
+            }
+            return Integer.compare(e1.b, e2.b);
+        }
+    };
+
+    public CoverageAdjacency(List<Geometry> geoms) {
+        this(geoms, null, new UnionParameters());
+    }
+
+    /** Constructs a CoverageAdjacency of the supplied features.  The union
+     *  is built from the unique segments using the ring construction
+     *  selected by the UnionParameters; segments are always stored in a
+     *  single SegmentTable, since owners are not recorded by a
+     *  {@link ParallelSegmentCanceller}.
+     * @param geoms Polygons or MultiPolygons forming a coverage
+     * @param gfact GeometryFactory used to construct the union and shared
+     *              edges, or null to use the factory of the first input
+     * @param params
+     */
+    public CoverageAdjacency(List<Geometry> geoms, GeometryFactory gfact, UnionParameters params) {
+        if (gfact == null) {
+            gfact = geoms.isEmpty() ? new GeometryFactory() : geoms.get(0).getFactory();
+        }
+        this.gfact = gfact;
+        if (geoms.isEmpty()) {
+            union = gfact.createPoint((Coordinate) null);
+            indexEdges(0);
+            return;
+        }
+
+        UnionListener listener = params.getListener();
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(listener);
+        int numPoints = 0;
+        for (Geometry g : geoms) {
+            numPoints += g.getNumPoints();
+        }
+        final SegmentTable table = new SegmentTable(numPoints / 2);
+        final int[] owner = new int[1];
+        final long[] numSegments = new long[1];
+        DuplicateSegmentFinder.SegmentSink sink = DuplicateSegmentFinder.snapSegments(new DuplicateSegmentFinder.SegmentSink() {
+            @Override
+            public void addSegment(double x0, double y0, double x1, double y1) {
+                numSegments[0]++;
+                int other;
+                if (x1 < x0 || (x1 == x0 && y1 < y0)) {
+                    other = table.toggleOwned(x1 + 0.0, y1 + 0.0, x0 + 0.0, y0 + 0.0, 0, true, owner[0]);
+                } else {
+                    other = table.toggleOwned(x0 + 0.0, y0 + 0.0, x1 + 0.0, y1 + 0.0, 0, false, owner[0]);
+                }
+                if (other >= 0 && other != owner[0]) {
+                    getEdge(other, owner[0]).add(x0, y0, x1, y1);
+                }
+            }
+        }, params.getPrecisionModel());
+        for (owner[0] = 0; owner[0] < geoms.size(); owner[0]++) {
+            DuplicateSegmentFinder.extractSegments(geoms.get(owner[0]), sink);
+        }
+
+        SegmentBuffer segments = new SegmentBuffer(Math.max(table.size(), 1));
+        for (int s = table.next(0); s >= 0; s = table.next(s + 1)) {
+            if (table.isReversed(s)) {
+                segments.add(table.getX1(s), table.getY1(s), table.getX0(s), table.getY0(s));
+            } else {
+                segments.add(table.getX0(s), table.getY0(s), table.getX1(s), table.getY1(s));
+            }
+        }
+        timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+        CoverageUnion.countSegments(listener, numSegments[0], segments.size());
+
+        union = CoverageUnion.buildResult(segments, geoms, gfact, params);
+        indexEdges(geoms.size());
+    }
+
+    /** indexEdges sorts the shared edges by the indices of their features,
+     *  and lists the edges of each feature by the index of its neighbor.
+     *  Edges are visited in sorted order, so the edges of a feature with
+     *  lower-indexed neighbors are listed before those with higher-indexed
+     *  neighbors, and each in ascending order.
+     */
+    private void indexEdges(int numFeatures) {
+        sortedEdges = edges.values().toArray(new SharedEdge[edges.size()]);
+        Arrays.sort(sortedEdges, BY_FEATURES);
+
+        featureStart = new int[numFeatures + 1];
+        for (SharedEdge edge : sortedEdges) {
+            featureStart[edge.a + 1]++;
+            featureStart[edge.b + 1]++;
+        }
+        for (int i = 0; i < numFeatures; i++) {
+            featureStart[i + 1] += featureStart[i];
+        }
+        featureEdges = new SharedEdge[2 * sortedEdges.length];
+        int[] next = Arrays.copyOf(featureStart, numFeatures);
+        for (SharedEdge edge : sortedEdges) {
+            featureEdges[next[edge.a]++] = edge;
+            featureEdges[next[edge.b]++] = edge;
+        }
+    }
+
+    private SharedEdge getEdge(int i, int j) {
+        int a = Math.min(i, j);
+        int b = Math.max(i, j);
+        Long key = ((long) a << 32) | b;
+        SharedEdge edge = edges.get(key);
+        if (edge == null) {
+            edge = new SharedEdge(a, b, gfact);
+            edges.put(key, edge);
+        }
+        return edge;
+    }
+
+    /** getUnion returns the union of the features, as would be returned by
+     *  {@link CoverageUnion#union(Collection, GeometryFactory, UnionParameters)}.
+     */
+    public Geometry getUnion() {
+        return union;
+    }
+
+    /** getSharedEdges returns the edge shared by each pair of adjacent
+     *  features, ordered by the indices of the features.
+     */
+    public List<SharedEdge> getSharedEdges() {
+        return new ArrayList<>(Arrays.asList(sortedEdges));
+    }
+
+    /** getSharedEdges returns the edges shared by a feature with each of its
+     *  neighbors, ordered by the indices of the neighbors.
+     */
+    public List<SharedEdge> getSharedEdges(int feature) {
+        if (feature < 0 || feature >= featureStart.length - 1) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(Arrays.asList(featureEdges).subList(featureStart[feature], featureStart[feature + 1]));
+    }
+
+    /** getSharedEdge returns the edge shared by two features, or null if
+     *  they are not adjacent.
+     */
+    public SharedEdge getSharedEdge(int i, int j) {
+        return edges.get(((long) Math.min(i, j) << 32) | Math.max(i, j));
+    }
+
+    /** getNeighbors returns the indices of the features that share an edge
+     *  with the supplied feature, in ascending order.
+     */
+    public int[] getNeighbors(int feature) {
+        if (feature < 0 || feature >= featureStart.length - 1) {
+            return new int[0];
+        }
+        int start = featureStart[feature];
+        int[] neighbors = new int[featureStart[feature + 1] - start];
+        for (int i = 0; i < neighbors.length; i++) {
+            SharedEdge edge = featureEdges[start + i];
+            neighbors[i] = edge.a == feature ? edge.b : edge.a;
+        }
+        return neighbors;
+    }
+
+    /** getNumSharedEdges returns the number of pairs of adjacent features.
+     */
+    public int getNumSharedEdges() {
+        return edges.size();
+    }
+}
@@ -1,15 +1,32 @@
 package org.dbaston.coverageop;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineSegment;
 import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.index.strtree.STRtree;
 import com.vividsolutions.jts.operation.polygonize.Polygonizer;
+import com.vividsolutions.jts.operation.linemerge.LineMerger;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  *
@@ -36,24 +53,45 @@ public class CoverageUnion {
      *  from the input LineString.  If the input LineStrings already form
      *  closed rings, a more efficient approach is used.
      * 
+     *  When a Polygonizer is used, faces that are not part of the union are
+     *  discarded by testing an interior point of each face against the
+     *  inputs.  If the inputs are not available, faces are instead
+     *  classified using {@link #getFacesInUnion(Collection)}.
+     * 
      * @param rings
-     * @param inputs
+     * @param inputs the inputs whose boundary is described by rings, or null
      * @return 
      */
     protected static Polygon[] getRingPolygons(Collection<LineString> rings,
                                              Collection<Geometry> inputs) {
+        return getRingPolygons(rings, inputs, null);
+    }
+    
+    /** getRingPolygons converts a supplied collection of LineStrings into
+     *  an array of Polygon objects, reporting whether the Polygonizer was
+     *  needed, and how many of its faces were rejected, to the supplied
+     *  UnionListener.
+     * @param rings
+     * @param inputs the inputs whose boundary is described by rings, or null
+     * @param listener UnionListener, or null
+     */
+    protected static Polygon[] getRingPolygons(Collection<LineString> rings,
+                                             Collection<Geometry> inputs,
+                                             UnionListener listener) {
         if (rings.isEmpty()) {
             return new Polygon[0];
         }
 
         GeometryFactory gfact = rings.iterator().next().getFactory();
-        if (allRingsClosed(rings)) {
+        boolean closed = allRingsClosed(rings);
+        UnionStatistics.count(listener, UnionListener.Count.ALL_RINGS_CLOSED, closed ? 1 : 0);
+        if (closed) {
             Polygon[] polyRings;
             polyRings = new Polygon[rings.size()];
 
             int i = 0;
             for (LineString l : rings) {
-                polyRings[i] =  gfact.createPolygon(l.getCoordinates());
+                polyRings[i] =  gfact.createPolygon(gfact.createLinearRing(l.getCoordinateSequence()), null);
                 i++;
             }
             return polyRings;
@@ -62,29 +100,38 @@ public class CoverageUnion {
             Polygonizer polygen = new Polygonizer();
             polygen.add(rings);
             Collection<Polygon> polygons = polygen.getPolygons();
+            int numFaces = polygons.size();
             
             STRtree inputIndex = new STRtree();
-            for (Geometry g : inputs) {
-                inputIndex.insert(g.getEnvelopeInternal(), g);
+            if (inputs != null) {
+                for (Geometry g : inputs) {
+                    inputIndex.insert(g.getEnvelopeInternal(), g);
+                }
+            } else {
+                polygons = getFacesInUnion(polygons);
             }
+            int numAccepted = 0;
             
             HashSet<LineString> ringSet = new HashSet<>();
             
             for (Polygon p : polygons) {
                 LineString s = p.getExteriorRing();
                 
-                Point pt = gfact.createPolygon(s.getCoordinates()).getInteriorPoint();
-                boolean found = false;
-                for (Geometry input : (Collection<Geometry>) inputIndex.query(pt.getEnvelopeInternal())) {
-                    if (input.intersects(pt)) {
-                        found = true;
-                        break;
+                if (inputs != null) {
+                    Point pt = gfact.createPolygon(gfact.createLinearRing(s.getCoordinateSequence()), null).getInteriorPoint();
+                    boolean found = false;
+                    for (Geometry input : (Collection<Geometry>) inputIndex.query(pt.getEnvelopeInternal())) {
+                        if (input.intersects(pt)) {
+                            found = true;
+                            break;
+                        }
+                    }
+
+                    if (!found) {
+                        continue;
                     }
                 }
-                
-                if (!found) {
-                    continue;
-                }
+                numAccepted++;
                 
                 s.normalize();
                 ringSet.add(s);
@@ -96,11 +143,13 @@ public class CoverageUnion {
                 }
             }
             
+            UnionStatistics.count(listener, UnionListener.Count.FACES_REJECTED, numFaces - numAccepted);
+            
             Polygon[] polyRings = new Polygon[ringSet.size()];
             {
                 int i = 0;
                 for (LineString l : ringSet) {
-                    polyRings[i] = gfact.createPolygon(l.getCoordinates());
+                    polyRings[i] = gfact.createPolygon(gfact.createLinearRing(l.getCoordinateSequence()), null);
                     i++;
             }
             }
@@ -109,6 +158,69 @@ public class CoverageUnion {
         }
     }
     
+    /** getFacesInUnion selects the faces produced by polygonizing the
+     *  unique boundary of a coverage that lie inside the union of the
+     *  coverage, without reference to the inputs.  Every edge of the unique
+     *  boundary separates the union from its exterior, so a face with an
+     *  edge that is not shared with any other face borders the unbounded
+     *  exterior and lies inside the union, and faces that share an edge lie
+     *  on opposite sides of the union boundary.
+     * @param faces Polygons produced by a Polygonizer
+     * @return the faces that lie inside the union
+     */
+    protected static Collection<Polygon> getFacesInUnion(Collection<Polygon> faces) {
+        Polygon[] faceArray = faces.toArray(new Polygon[faces.size()]);
+        List<List<Integer>> neighbors = new ArrayList<>(faceArray.length);
+        HashMap<LineSegment, Integer> edgeFaces = new HashMap<>();
+        
+        for (int i = 0; i < faceArray.length; i++) {
+            neighbors.add(new ArrayList<Integer>());
+            Polygon p = faceArray[i];
+            for (int r = -1; r < p.getNumInteriorRing(); r++) {
+                Coordinate[] ring = (r < 0 ? p.getExteriorRing() : p.getInteriorRingN(r)).getCoordinates();
+                for (int j = 0; j < ring.length - 1; j++) {
+                    LineSegment ls = new LineSegment(ring[j], ring[j+1]);
+                    ls.normalize();
+                    Integer other = edgeFaces.remove(ls);
+                    if (other == null) {
+                        edgeFaces.put(ls, i);
+                    } else {
+                        neighbors.get(i).add(other);
+                        neighbors.get(other).add(i);
+                    }
+                }
+            }
+        }
+        
+        // Faces that border the unbounded exterior are the starting points
+        // of a breadth-first search that alternates inside and outside.
+        Boolean[] inside = new Boolean[faceArray.length];
+        LinkedList<Integer> queue = new LinkedList<>();
+        for (int i : edgeFaces.values()) {
+            if (inside[i] == null) {
+                inside[i] = true;
+                queue.add(i);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int i = queue.removeFirst();
+            for (int j : neighbors.get(i)) {
+                if (inside[j] == null) {
+                    inside[j] = !inside[i];
+                    queue.add(j);
+                }
+            }
+        }
+        
+        List<Polygon> selected = new ArrayList<>();
+        for (int i = 0; i < faceArray.length; i++) {
+            if (inside[i] == null || inside[i]) {
+                selected.add(faceArray[i]);
+            }
+        }
+        return selected;
+    }
+    
     /** Unions the supplied collection of geometries using a dissolve approach, 
      *  wherein line segments that are shared by more than one input geometry
      *  are removed from the result.  This function will not produce valid
@@ -119,6 +231,18 @@ public class CoverageUnion {
      * @return 
      */
     public static Geometry union(Collection<Geometry> geoms, GeometryFactory gfact) {
+        return union(geoms, gfact, new UnionParameters());
+    }
+    
+    /** Unions the supplied collection of geometries using a dissolve
+     *  approach, with options controlled by the supplied UnionParameters.
+     * @param geoms
+     * @param gfact
+     * @param params
+     * @return 
+     */
+    public static Geometry union(Collection<Geometry> geoms, GeometryFactory gfact,
+                                 UnionParameters params) {
         // If an empty geometry collection is provided, return an empty geometry
         if (geoms.isEmpty()) {
             return new GeometryFactory().createPoint((Coordinate) null);
@@ -131,18 +255,357 @@ public class CoverageUnion {
         
         // Get the unique segments and convert them into linesrings, then
         // merge the linestrings.
-        DuplicateSegmentFinder dsr = new DuplicateSegmentFinder(geoms, false);
-        Collection<LineString> rings = dsr.getUniqueMergedLineSegments(gfact);
-
-        //System.out.println(gfact.buildGeometry(rings));
+        UnionListener listener = params.getListener();
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(listener);
+        DuplicateSegmentFinder dsr = new DuplicateSegmentFinder(geoms, false, params);
+        SegmentBuffer segments = dsr.getUniqueDirectedSegments();
+        timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+        countSegments(listener, dsr, segments.size());
+        segments = simplify(new SegmentBuffer[] { segments }, gfact, params)[0];
+        
+        // A simplified boundary no longer matches the inputs, so it cannot
+        // be located against them
+        return buildResult(segments, params.getSimplifyTolerance() == 0 ? geoms : null, gfact, params);
+    };
+    
+    /** Unions the supplied collection of geometries using a dissolve
+     *  approach, passing each Polygon of the result to a PolygonSink rather
+     *  than returning a MultiPolygon.  Polygons are passed to the sink as
+     *  soon as their holes have been assigned by
+     *  {@link PolygonAssembler#assembleTo}, in no particular order, so the
+     *  sink can write them out without the whole result being held in
+     *  memory.  Rings are always traced, whatever the RingConstruction of
+     *  the parameters, so the Polygons are the same as those of
+     *  {@link #union(Collection, GeometryFactory, UnionParameters)} with
+     *  {@link UnionParameters.RingConstruction#TRACE}.
+     * @param geoms
+     * @param gfact GeometryFactory used to construct the result, or null to
+     *              borrow the factory of the inputs
+     * @param params
+     * @param sink PolygonSink to receive each Polygon of the union
+     * @return the number of Polygons passed to the sink
+     */
+    public static long union(Collection<Geometry> geoms, GeometryFactory gfact,
+                             UnionParameters params, PolygonAssembler.PolygonSink sink) {
+        if (geoms.isEmpty()) {
+            return 0;
+        }
+        if (gfact == null) {
+            gfact = geoms.iterator().next().getFactory();
+        }
+        
+        UnionListener listener = params.getListener();
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(listener);
+        DuplicateSegmentFinder dsr = new DuplicateSegmentFinder(geoms, false, params);
+        SegmentBuffer segments = dsr.getUniqueDirectedSegments();
+        timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+        countSegments(listener, dsr, segments.size());
+        segments = simplify(new SegmentBuffer[] { segments }, gfact, params)[0];
         
-        Polygon[] polys = PolygonAssembler.getAssembled(getRingPolygons(rings, geoms)); 
+        ForkJoinPool pool = params.getParallelism() == 1 ? null : new ForkJoinPool(params.getParallelism());
+        try {
+            PolygonCollector collector = new PolygonCollector(sink);
+            traceAndAssemble(segments, gfact, listener, pool, collector);
+            return collector.numPolygons;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+    
+    /** Unions the Polygons and MultiPolygons in a file of concatenated WKB
+     *  records.  Segments are read directly from the memory-mapped file by
+     *  a {@link WKBSegmentReader} and cancelled as they are read, so no
+     *  input Geometries are constructed.  The result is the same as that of
+     *  {@link #union(Collection, GeometryFactory, UnionParameters)} on the
+     *  parsed records.
+     * @param file
+     * @param gfact GeometryFactory used to construct the result, or null to
+     *              use a default GeometryFactory
+     * @param params
+     * @return the union, as a MultiPolygon, or an empty Point if the file
+     *         contains no records
+     * @throws IOException if the file cannot be read
+     */
+    public static Geometry unionWKB(File file, GeometryFactory gfact, UnionParameters params) throws IOException {
+        if (gfact == null) {
+            gfact = new GeometryFactory();
+        }
+        
+        UnionListener listener = params.getListener();
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(listener);
+        DuplicateSegmentFinder dsr = new DuplicateSegmentFinder(false, params);
+        long numRecords = WKBSegmentReader.read(file, dsr.getSink());
+        if (numRecords == 0) {
+            return gfact.createPoint((Coordinate) null);
+        }
+        SegmentBuffer segments = dsr.getUniqueDirectedSegments();
+        timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+        countSegments(listener, dsr, segments.size());
+        segments = simplify(new SegmentBuffer[] { segments }, gfact, params)[0];
+        
+        return buildResult(segments, null, gfact, params);
+    }
+    
+    /** simplify simplifies the unique segments of one or more unions with
+     *  an {@link ArcSimplifier}, if the UnionParameters give a
+     *  simplification tolerance.
+     */
+    static SegmentBuffer[] simplify(SegmentBuffer[] segments, GeometryFactory gfact, UnionParameters params) {
+        if (params.getSimplifyTolerance() == 0) {
+            return segments;
+        }
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(params.getListener());
+        SegmentBuffer[] simplified = ArcSimplifier.simplify(segments, params.getSimplifyTolerance(), gfact);
+        timer.stop(UnionListener.Phase.SIMPLIFY);
+        return simplified;
+    }
+    
+    /** countSegments reports the number of input, cancelled and unique
+     *  segments to a listener, if one is supplied.
+     */
+    static void countSegments(UnionListener listener, long numInput, long numUnique) {
+        UnionStatistics.count(listener, UnionListener.Count.INPUT_SEGMENTS, numInput);
+        UnionStatistics.count(listener, UnionListener.Count.CANCELLED_SEGMENTS, numInput - numUnique);
+        UnionStatistics.count(listener, UnionListener.Count.UNIQUE_SEGMENTS, numUnique);
+    }
+    
+    /** countSegments reports the segment counts of a DuplicateSegmentFinder
+     *  to a listener, if one is supplied, including the number of
+     *  overlapping segments if segments were counted.
+     */
+    static void countSegments(UnionListener listener, DuplicateSegmentFinder dsr, long numUnique) {
+        countSegments(listener, dsr.getNumSegmentsProcessed(), numUnique);
+        if (dsr.isCounting()) {
+            UnionStatistics.count(listener, UnionListener.Count.OVERLAPPING_SEGMENTS,
+                                  dsr.getNumOverlappingSegments());
+        }
+    }
+    
+    /** buildResult assembles the directed unique boundary segments of a set
+     *  of inputs into a MultiPolygon, constructing rings as selected by the
+     *  supplied UnionParameters.
+     * @param segments unique segments, directed with the interior of the
+     *                 union on their right
+     * @param inputs the inputs whose boundary is described by segments, or
+     *               null if they are not available
+     */
+    static Geometry buildResult(SegmentBuffer segments, Collection<Geometry> inputs,
+                                GeometryFactory gfact, UnionParameters params) {
+        if (params.getParallelism() == 1
+                || params.getRingConstruction() != UnionParameters.RingConstruction.TRACE) {
+            return buildResult(segments, inputs, gfact, params, null);
+        }
+        ForkJoinPool pool = new ForkJoinPool(params.getParallelism());
+        try {
+            return buildResult(segments, inputs, gfact, params, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    /** buildResult assembles the directed unique boundary segments of a set
+     *  of inputs into a MultiPolygon, tracing the rings of each connected
+     *  component of the boundary and locating holes on the supplied
+     *  ForkJoinPool, or serially if no pool is supplied.
+     */
+    static Geometry buildResult(SegmentBuffer segments, Collection<Geometry> inputs,
+                                GeometryFactory gfact, UnionParameters params, ForkJoinPool pool) {
+        UnionListener listener = params.getListener();
+        Polygon[] polys;
+        if (params.getRingConstruction() == UnionParameters.RingConstruction.MERGE_AND_POLYGONIZE) {
+            UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(listener);
+            LineMerger lm = new LineMerger();
+            lm.add(Arrays.asList(DuplicateSegmentFinder.toLineStrings(segments, gfact)));
+            @SuppressWarnings("unchecked")
+            Collection<LineString> merged = lm.getMergedLineStrings();
+            timer.stop(UnionListener.Phase.MERGE_LINES);
+            UnionStatistics.count(listener, UnionListener.Count.MERGED_LINES, merged.size());
+            
+            timer = new UnionStatistics.PhaseTimer(listener);
+            Polygon[] rings = getRingPolygons(merged, inputs, listener);
+            timer.stop(UnionListener.Phase.RING_POLYGONS);
+            
+            timer = new UnionStatistics.PhaseTimer(listener);
+            polys = PolygonAssembler.getAssembled(rings);
+            timer.stop(UnionListener.Phase.ASSEMBLE);
+            
+            if (listener != null) {
+                long numHoles = 0;
+                for (Polygon p : polys) {
+                    numHoles += p.getNumInteriorRing();
+                }
+                listener.counted(UnionListener.Count.HOLES_ASSIGNED, numHoles);
+            }
+        } else {
+            PolygonCollector collector = new PolygonCollector(null);
+            traceAndAssemble(segments, gfact, listener, pool, collector);
+            polys = collector.polygons.toArray(new Polygon[collector.polygons.size()]);
+        }
         
         Geometry result = gfact.createMultiPolygon(polys);
         return result;
-    };
+    }
+    
+    /** A PolygonCollector receives the Polygons assembled by
+     *  {@link #traceAndAssemble}, either retaining them or passing them on
+     *  to a PolygonSink, and counts them and their holes.
+     */
+    private static class PolygonCollector implements PolygonAssembler.PolygonSink {
+        final PolygonAssembler.PolygonSink target;
+        final List<Polygon> polygons = new ArrayList<>();
+        long numPolygons;
+        long numHoles;
+        
+        /** Creates a PolygonCollector that passes Polygons to the supplied
+         *  sink, or retains them if the sink is null.
+         */
+        PolygonCollector(PolygonAssembler.PolygonSink target) {
+            this.target = target;
+        }
+        
+        @Override
+        public void addPolygon(Polygon p) {
+            numPolygons++;
+            numHoles += p.getNumInteriorRing();
+            if (target == null) {
+                polygons.add(p);
+            } else {
+                target.addPolygon(p);
+            }
+        }
+    }
+    
+    /** traceAndAssemble traces the rings of the directed unique boundary
+     *  segments and assigns holes to shells.  If the collector retains its
+     *  Polygons, the holes are located all at once, on the supplied
+     *  ForkJoinPool if there is one.  Otherwise each Polygon is passed on
+     *  as soon as its holes are known, by
+     *  {@link PolygonAssembler#assembleTo}.
+     */
+    private static void traceAndAssemble(SegmentBuffer segments, GeometryFactory gfact, UnionListener listener,
+                                         ForkJoinPool pool, PolygonCollector collector) {
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(listener);
+        RingTracer tracer = new RingTracer(segments, gfact, pool);
+        List<LinearRing> shells = tracer.getShells();
+        List<LinearRing> holes = tracer.getHoles();
+        timer.stop(UnionListener.Phase.TRACE_RINGS);
+        UnionStatistics.count(listener, UnionListener.Count.TRACED_SHELLS, shells.size());
+        UnionStatistics.count(listener, UnionListener.Count.TRACED_HOLES, holes.size());
+        
+        timer = new UnionStatistics.PhaseTimer(listener);
+        if (collector.target == null) {
+            for (Polygon p : PolygonAssembler.getAssembled(shells, holes, pool)) {
+                collector.addPolygon(p);
+            }
+        } else {
+            PolygonAssembler.assembleTo(shells, holes, collector);
+        }
+        timer.stop(UnionListener.Phase.ASSEMBLE);
+        UnionStatistics.count(listener, UnionListener.Count.HOLES_ASSIGNED, collector.numHoles);
+    }
+    
+    /** Unions each of the supplied groups of geometries, as if by calling
+     *  {@link #union(Collection, GeometryFactory, UnionParameters)} once per
+     *  group.  Segments of all groups are extracted and cancelled in a
+     *  single pass, with each segment tagged by its group, and the result
+     *  for each group is then built using the number of threads given by
+     *  the parallelism of the supplied UnionParameters.
+     * @param groups Map of group keys to the geometries of each group
+     * @param gfact GeometryFactory used to construct results, or null to
+     *              borrow the factory of the inputs
+     * @param params
+     * @return Map of group keys to the union of each group, iterating in
+     *         the same order as the supplied Map
+     */
+    public static <K> Map<K, Geometry> unionByKey(Map<K, ? extends Collection<Geometry>> groups,
+                                                  GeometryFactory gfact, final UnionParameters params) {
+        final List<K> keys = new ArrayList<>(groups.keySet());
+        final List<Collection<Geometry>> inputs = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            inputs.add(groups.get(key));
+            if (gfact == null && !groups.get(key).isEmpty()) {
+                gfact = groups.get(key).iterator().next().getFactory();
+            }
+        }
+        if (gfact == null) {
+            gfact = new GeometryFactory();
+        }
+        
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(params.getListener());
+        DuplicateSegmentFinder dsr = new DuplicateSegmentFinder(inputs, params);
+        SegmentBuffer[] unique = dsr.getUniqueSegmentsByTag();
+        timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+        long numUnique = 0;
+        for (SegmentBuffer b : unique) {
+            numUnique += b.size();
+        }
+        countSegments(params.getListener(), dsr, numUnique);
+        // The groups are simplified together, so that they share arcs
+        final SegmentBuffer[] segments = simplify(unique, gfact, params);
+        
+        final GeometryFactory factory = gfact;
+        final Geometry[] results = new Geometry[keys.size()];
+        List<Callable<Void>> builders = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final int group = i;
+            builders.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (inputs.get(group).isEmpty()) {
+                        results[group] = factory.createPoint((Coordinate) null);
+                        return null;
+                    }
+                    // Groups are already built in parallel, so build each
+                    // group serially.
+                    results[group] = buildResult(segments[group],
+                                                 params.getSimplifyTolerance() == 0 ? inputs.get(group) : null,
+                                                 factory, params, null);
+                    segments[group] = null;
+                    return null;
+                }
+            });
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(params.getParallelism());
+        try {
+            ParallelSegmentCanceller.invokeAll(executor, builders);
+        } finally {
+            executor.shutdown();
+        }
+        
+        Map<K, Geometry> result = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            result.put(keys.get(i), results[i]);
+        }
+        return result;
+    }
+    
+    public static <K> Map<K, Geometry> unionByKey(Map<K, ? extends Collection<Geometry>> groups) {
+        return unionByKey(groups, null, new UnionParameters());
+    }
 
+    /** Unions the supplied collection of geometries using a dissolve
+     *  approach, choosing the segment storage, parallelism, and whether to
+     *  spill segments to disk with a {@link UnionPlanner}.
+     * @param geoms
+     * @return 
+     */
 	public static Geometry union(Collection<Geometry> geoms) {
-		return union(geoms, null);
+		return UnionPlanner.plan(geoms).union(geoms, null);
 	}
+
+    /** Unions the supplied geometries within a window, as if by
+     *  intersecting the window with their union.  Only the geometries and
+     *  segments that intersect the window are used.  To compute the union
+     *  within many windows of the same coverage, use a
+     *  {@link WindowedCoverageUnion}, which indexes the geometries once.
+     * @param geoms
+     * @param window
+     * @return the union within the window, as a MultiPolygon
+     */
+    public static Geometry unionInWindow(Collection<Geometry> geoms, Envelope window) {
+        return new WindowedCoverageUnion(geoms).union(window);
+    }
 }
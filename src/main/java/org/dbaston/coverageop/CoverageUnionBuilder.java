@@ -0,0 +1,110 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.util.Iterator;
+
+/** A CoverageUnionBuilder computes the union of a coverage whose features
+ *  are supplied one at a time.  Shared segments are cancelled as each
+ *  feature is added, so only the currently unmatched boundary is retained
+ *  and the features themselves may be garbage-collected as soon as they
+ *  have been added.  The result is the same as that of
+ *  {@link CoverageUnion#union(java.util.Collection)}.
+ *
+ *  <pre>
+ *  CoverageUnionBuilder builder = new CoverageUnionBuilder();
+ *  while (reader.hasNext()) {
+ *      builder.add(reader.next());
+ *  }
+ *  Geometry result = builder.build();
+ *  </pre>
+ * @author dbaston
+ */
+public class CoverageUnionBuilder {
+    private final DuplicateSegmentFinder dsr;
+    private final UnionParameters params;
+    private GeometryFactory gfact;
+    private long numAdded;
+
+    /** Creates a CoverageUnionBuilder that stores the unmatched boundary in
+     *  a packed SegmentTable, and constructs its result using the
+     *  GeometryFactory of the first geometry added.
+     */
+    public CoverageUnionBuilder() {
+        this(null, new UnionParameters().setSegmentStorage(UnionParameters.SegmentStorage.PACKED_TABLE));
+    }
+
+    /** Creates a CoverageUnionBuilder.
+     * @param gfact GeometryFactory used to construct the result, or null to
+     *              borrow the factory of the first geometry added
+     * @param params UnionParameters selecting the segment storage.  The
+     *               parallelism of the parameters is used only when
+     *               building the result.
+     * @throws IllegalArgumentException if the parameters select the SORTED
+     *         storage, which cancels nothing until the result is built and
+     *         so would retain every segment added
+     */
+    public CoverageUnionBuilder(GeometryFactory gfact, UnionParameters params) {
+        if (params.getSegmentStorage() == UnionParameters.SegmentStorage.SORTED) {
+            throw new IllegalArgumentException("CoverageUnionBuilder cannot use SORTED segment storage");
+        }
+        this.gfact = gfact;
+        this.params = params;
+        this.dsr = new DuplicateSegmentFinder(false, params);
+    }
+
+    /** add cancels the segments of a Polygon or MultiPolygon against the
+     *  boundary of the features added so far.  The time taken is reported
+     *  to the listener of the parameters as part of CANCEL_SEGMENTS.
+     * @param g
+     * @return this CoverageUnionBuilder, for chaining
+     */
+    public CoverageUnionBuilder add(Geometry g) {
+        if (gfact == null) {
+            gfact = g.getFactory();
+        }
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(params.getListener());
+        dsr.add(g);
+        timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+        numAdded++;
+        return this;
+    }
+
+    /** addAll adds each geometry returned by the supplied Iterator.
+     * @param geoms
+     * @return this CoverageUnionBuilder, for chaining
+     */
+    public CoverageUnionBuilder addAll(Iterator<? extends Geometry> geoms) {
+        while (geoms.hasNext()) {
+            add(geoms.next());
+        }
+        return this;
+    }
+
+    /** getNumBoundarySegments returns the number of segments in the
+     *  currently unmatched boundary.
+     */
+    public int getNumBoundarySegments() {
+        return dsr.getNumUniqueSegments();
+    }
+
+    /** build computes the union of the features added so far, simplifying
+     *  its boundary if the parameters have a simplification tolerance.
+     *  More features may be added after build is called.
+     * @return the union, as a MultiPolygon, or an empty Point if no
+     *         features have been added
+     */
+    public Geometry build() {
+        if (numAdded == 0) {
+            return new GeometryFactory().createPoint((Coordinate) null);
+        }
+        UnionListener listener = params.getListener();
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(listener);
+        SegmentBuffer segments = dsr.getUniqueDirectedSegments();
+        timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+        CoverageUnion.countSegments(listener, dsr, segments.size());
+        segments = CoverageUnion.simplify(new SegmentBuffer[] { segments }, gfact, params)[0];
+        return CoverageUnion.buildResult(segments, null, gfact, params);
+    }
+}
@@ -1,6 +1,7 @@
 package org.dbaston.coverageop;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineSegment;
@@ -8,65 +9,494 @@ import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.MultiLineString;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.PrecisionModel;
 import com.vividsolutions.jts.operation.linemerge.LineMerger;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /** A DuplicateSegmentFinder extracts the LineSegments that make up a set of
  * supplied Polygon or MultiPolygon geometries, and provides methods to 
- * retrieve only the segments that are or are not unique.  Currently, the class
- * assumes that a segment will be shared by at most two input features, and will
- * return incorrect results if this condition is not met.
+ * retrieve only the segments that are or are not unique.  By default, the
+ * class assumes that a segment will be shared by at most two input features,
+ * and will return incorrect results if this condition is not met.  With the
+ * {@link UnionParameters.SegmentStorage#COUNTED_TABLE} storage, the
+ * occurrences of each segment are counted in each direction, and a segment
+ * is unique if it has been found in only one direction, so that duplicated
+ * or stacked features are dissolved correctly.
+ * 
+ * Segments are extracted from each ring with the interior of their polygon
+ * on their right, and the direction of each unique segment is retained so
+ * that rings can be traced directly from the unique segments using a
+ * {@link RingTracer}.
+ * 
+ * Segments may be stored either as LineSegment objects in a HashMap, or as
+ * packed ordinates in a {@link SegmentTable}, as selected by the
+ * {@link UnionParameters} supplied at construction.  With the
+ * {@link UnionParameters.SegmentStorage#SORTED} storage, segments are
+ * instead appended to a {@link SegmentSorter} and cancelled together, the
+ * first time the unique segments are requested; the segments that survive
+ * are then held in a SegmentTable.  Geometries may also be
+ * supplied in several groups, in which case segments are stored in a
+ * SegmentTable tagged with the index of their group, and only cancel
+ * segments of the same group.
+ * 
+ * If the UnionParameters specify a PrecisionModel, each ordinate is
+ * snapped to its grid before segments are compared, so that inputs whose
+ * shared vertices differ slightly (as after reprojection) are still
+ * dissolved.  Segments that collapse to a point are discarded.
  * @author dbaston
  */
 public class DuplicateSegmentFinder {
-    protected HashSet<LineSegment> lines;
+    /** A SegmentSink receives the segments extracted from a geometry by
+     *  {@link DuplicateSegmentFinder#extractSegments}.  Each segment is
+     *  directed from (x0, y0) to (x1, y1), with the interior of the polygon
+     *  from which it was extracted on its right.
+     */
+    public interface SegmentSink {
+        void addSegment(double x0, double y0, double x1, double y1);
+    }
+    
+    /** Unique normalized segments, each mapped to true if the segment was
+     *  directed from p1 to p0 before it was normalized.
+     */
+    protected HashMap<LineSegment, Boolean> lines;
 	protected HashSet<LineSegment> duplicateLines;
+	protected SegmentTable[] tables;
+    private SegmentSorter sorter;
 	private boolean retainUnique;
+    private boolean counting;
+    private UnionParameters params;
+    private int numTags = 1;
+    private long numSegmentsProcessed;
+    private SegmentSink sink = new SegmentSink() {
+        @Override
+        public void addSegment(double x0, double y0, double x1, double y1) {
+            processSegment(x0, y0, x1, y1);
+        }
+    };
     
+    /** Constructs an empty DuplicateSegmentFinder.
+     * @param retainUnique if true, segments that are found more than once
+     *                     are retained, and can be retrieved with
+     *                     {@link #getDuplicateSegments()}
+     */
     public DuplicateSegmentFinder(boolean retainUnique) {
-        lines = new HashSet<>(); 
+        this(retainUnique, new UnionParameters());
+    }
+    
+    public DuplicateSegmentFinder(boolean retainUnique, UnionParameters params) {
+        this.retainUnique = retainUnique;
+        this.counting = params.getSegmentStorage() == UnionParameters.SegmentStorage.COUNTED_TABLE;
+        this.params = params;
+        this.sink = snapSegments(sink, params.getPrecisionModel());
+        if (params.getSegmentStorage() == UnionParameters.SegmentStorage.SORTED) {
+            sorter = new SegmentSorter();
+        } else if (params.getSegmentStorage() != UnionParameters.SegmentStorage.HASH_SET) {
+            tables = new SegmentTable[] { new SegmentTable() };
+        } else {
+            lines = new HashMap<>();
+        }
+        if (retainUnique) {
+            duplicateLines = new HashSet<>();
+        }
     }
     
     public DuplicateSegmentFinder(Collection<Geometry> geoms, boolean retainUnique) {
+        this(geoms, retainUnique, new UnionParameters());
+    }
+    
+    /** Constructs a DuplicateSegmentFinder from the supplied geometries.  If
+     *  the parallelism of the supplied UnionParameters is greater than one,
+     *  segments are cancelled by a {@link ParallelSegmentCanceller} and
+     *  stored in several SegmentTables, regardless of the selected
+     *  SegmentStorage.  Duplicate segments are only retained by a serial
+     *  DuplicateSegmentFinder, so the parallelism is not used if
+     *  retainUnique is true.  With the SORTED storage, the parallelism is
+     *  instead used to sort the segments.
+     */
+    public DuplicateSegmentFinder(Collection<Geometry> geoms, boolean retainUnique, UnionParameters params) {
+        this.retainUnique = retainUnique;
+        this.counting = params.getSegmentStorage() == UnionParameters.SegmentStorage.COUNTED_TABLE;
+        this.params = params;
+        this.sink = snapSegments(sink, params.getPrecisionModel());
+        boolean sorted = params.getSegmentStorage() == UnionParameters.SegmentStorage.SORTED;
+        if (params.getParallelism() > 1 && !retainUnique && !sorted) {
+            ParallelSegmentCanceller canceller = new ParallelSegmentCanceller(params.getParallelism(), counting,
+                                                                              params.getPrecisionModel());
+            tables = canceller.cancel(geoms);
+            numSegmentsProcessed = canceller.getNumSegments();
+            return;
+        }
+        
         int numPoints = 0;
 		for (Geometry g : geoms) {
 	   		numPoints += g.getNumPoints();
 		} 
 	    
-		lines = new HashSet(numPoints);
-		duplicateLines = new HashSet(numPoints);
+        if (sorted) {
+            sorter = new SegmentSorter(numPoints);
+        } else if (params.getSegmentStorage() != UnionParameters.SegmentStorage.HASH_SET) {
+            // Most segments are cancelled shortly after they are inserted,
+            // so the table is sized for half of the input segments and
+            // allowed to grow if needed.
+            tables = new SegmentTable[] { new SegmentTable(numPoints / 2) };
+        } else {
+            lines = new HashMap<>(numPoints);
+            duplicateLines = new HashSet(numPoints);
+        }
+        if (retainUnique && duplicateLines == null) {
+            duplicateLines = new HashSet<>(numPoints / 2);
+        }
         for (Geometry g : geoms) {
             add(g);
         }
+        cancelSorted();
     }
     
+    /** Constructs a DuplicateSegmentFinder from several groups of
+     *  geometries, cancelling segments only within each group.  The unique
+     *  segments of each group can be retrieved with
+     *  {@link #getUniqueSegmentsByTag()}.
+     * @param groups
+     * @param params
+     */
+    public DuplicateSegmentFinder(List<? extends Collection<Geometry>> groups, UnionParameters params) {
+        numTags = groups.size();
+        counting = params.getSegmentStorage() == UnionParameters.SegmentStorage.COUNTED_TABLE;
+        this.params = params;
+        boolean sorted = params.getSegmentStorage() == UnionParameters.SegmentStorage.SORTED;
+        if (params.getParallelism() > 1 && !sorted) {
+            ParallelSegmentCanceller canceller = new ParallelSegmentCanceller(params.getParallelism(), counting,
+                                                                              params.getPrecisionModel());
+            tables = canceller.cancelGroups(groups);
+            numSegmentsProcessed = canceller.getNumSegments();
+            return;
+        }
+        
+        int numPoints = 0;
+        for (Collection<Geometry> group : groups) {
+            for (Geometry g : group) {
+                numPoints += g.getNumPoints();
+            }
+        }
+        
+        if (sorted) {
+            sorter = new SegmentSorter(numPoints);
+        } else {
+            tables = new SegmentTable[] { new SegmentTable(numPoints / 2) };
+        }
+        final int[] tag = new int[1];
+        SegmentSink taggedSink = snapSegments(new SegmentSink() {
+            @Override
+            public void addSegment(double x0, double y0, double x1, double y1) {
+                if (sorter != null) {
+                    sorter.add(x0, y0, x1, y1, tag[0]);
+                } else {
+                    cancelNormalized(tables[0], x0, y0, x1, y1, tag[0], counting);
+                }
+                numSegmentsProcessed++;
+            }
+        }, params.getPrecisionModel());
+        for (tag[0] = 0; tag[0] < numTags; tag[0]++) {
+            for (Geometry g : groups.get(tag[0])) {
+                extractSegments(g, taggedSink);
+            }
+        }
+        cancelSorted();
+    }
+    
+    /** cancelSorted cancels the segments held by the SegmentSorter, if one
+     *  is in use, and stores the segments that survive in a SegmentTable.
+     *  Any segments found later are toggled in the table.
+     */
+    private void cancelSorted() {
+        if (sorter != null) {
+            tables = new SegmentTable[] {
+                sorter.cancel(params.getParallelism(), retainUnique ? duplicateLines : null)
+            };
+            sorter = null;
+        }
+    }
+    
+    /** getUniqueSegmentsByTag returns the unique segments of each group of
+     *  geometries supplied at construction, indexed by group.
+     * @return Array of SegmentBuffers, one per group
+     */
+    public SegmentBuffer[] getUniqueSegmentsByTag() {
+        cancelSorted();
+        SegmentBuffer[] byTag = new SegmentBuffer[numTags];
+        for (int i = 0; i < numTags; i++) {
+            byTag[i] = new SegmentBuffer(16);
+        }
+        for (SegmentTable table : tables) {
+            for (int s = table.nextBoundary(0); s >= 0; s = table.nextBoundary(s + 1)) {
+                addDirected(byTag[table.getTag(s)], table, s);
+            }
+        }
+        return byTag;
+    }
+    
+    /** getUniqueDirectedSegments returns the unique segments, each directed
+     *  as it was in the ring from which it was extracted, so that the
+     *  interior of the union lies on its right.
+     * @return SegmentBuffer of directed segments
+     */
+    public SegmentBuffer getUniqueDirectedSegments() {
+        cancelSorted();
+        SegmentBuffer segments = new SegmentBuffer(Math.max(getNumUniqueSegments(), 1));
+        if (tables == null) {
+            for (Map.Entry<LineSegment, Boolean> e : lines.entrySet()) {
+                LineSegment l = e.getKey();
+                if (e.getValue()) {
+                    segments.add(l.p1.x, l.p1.y, l.p0.x, l.p0.y);
+                } else {
+                    segments.add(l.p0.x, l.p0.y, l.p1.x, l.p1.y);
+                }
+            }
+            return segments;
+        }
+        for (SegmentTable table : tables) {
+            for (int s = table.nextBoundary(0); s >= 0; s = table.nextBoundary(s + 1)) {
+                addDirected(segments, table, s);
+            }
+        }
+        return segments;
+    }
+    
+    private static void addDirected(SegmentBuffer buffer, SegmentTable table, int s) {
+        if (table.isReversed(s)) {
+            buffer.add(table.getX1(s), table.getY1(s), table.getX0(s), table.getY0(s), table.getTag(s));
+        } else {
+            buffer.add(table.getX0(s), table.getY0(s), table.getX1(s), table.getY1(s), table.getTag(s));
+        }
+    }
+    
+    /** getUniqueSegments returns the segments that were found in only
+     *  one input geometry.  If segments are stored in a SegmentTable, the
+     *  returned Set is a copy of the table contents.
+     * @return Set of normalized LineSegments
+     */
 	public Set<LineSegment> getUniqueSegments() {
-		return lines;
+        cancelSorted();
+        if (tables != null) {
+            HashSet<LineSegment> segments = new HashSet<>(2 * getNumUniqueSegments());
+            for (SegmentTable table : tables) {
+                for (int s = table.nextBoundary(0); s >= 0; s = table.nextBoundary(s + 1)) {
+                    segments.add(new LineSegment(table.getX0(s), table.getY0(s),
+                                                 table.getX1(s), table.getY1(s)));
+                }
+            }
+            return segments;
+        }
+		return lines.keySet();
 	}
+    
+    /** getNumUniqueSegments returns the number of segments that were found
+     *  in only one input geometry.
+     */
+    public int getNumUniqueSegments() {
+        cancelSorted();
+        if (tables == null) {
+            return lines.size();
+        }
+        int n = 0;
+        for (SegmentTable table : tables) {
+            n += table.getNumBoundary();
+        }
+        return n;
+    }
 
+    /** getNumOverlappingSegments returns the number of segments that were
+     *  found more than once in the same direction, indicating duplicated or
+     *  overlapping inputs.  Segments are only counted with the
+     *  {@link UnionParameters.SegmentStorage#COUNTED_TABLE} storage, so
+     *  zero is returned for other storage.
+     */
+    public int getNumOverlappingSegments() {
+        cancelSorted();
+        int n = 0;
+        if (tables != null) {
+            for (SegmentTable table : tables) {
+                n += table.getNumOverlapping();
+            }
+        }
+        return n;
+    }
+
+    /** getPartialUnion returns a copy of the segments that have not been
+     *  cancelled, so that the union can be continued with segments
+     *  cancelled elsewhere.
+     * @throws IllegalStateException if geometries were supplied in several
+     *         groups
+     */
+    public PartialUnion getPartialUnion() {
+        cancelSorted();
+        if (numTags > 1) {
+            throw new IllegalStateException("Segments of several groups cannot form a PartialUnion");
+        }
+        PartialUnion partial = new PartialUnion(params);
+        if (tables == null) {
+            SegmentTable table = new SegmentTable(lines.size());
+            for (Map.Entry<LineSegment, Boolean> e : lines.entrySet()) {
+                LineSegment l = e.getKey();
+                table.toggle(l.p0.x, l.p0.y, l.p1.x, l.p1.y, 0, e.getValue());
+            }
+            return partial.merge(new PartialUnion(table, false, params));
+        }
+        for (SegmentTable table : tables) {
+            partial.merge(new PartialUnion(table, counting, params));
+        }
+        return partial;
+    }
+
+    /** isCounting determines if the occurrences of each segment are
+     *  counted, rather than toggled.
+     */
+    public boolean isCounting() {
+        return counting;
+    }
+
+    /** getNumSegmentsProcessed returns the number of segments that have
+     *  been extracted from the inputs, before cancellation.
+     */
+    public long getNumSegmentsProcessed() {
+        return numSegmentsProcessed;
+    }
+    
 	public Set<LineSegment> getDuplicateSegments() {
+        cancelSorted();
 		return duplicateLines;
 	}
 	
 	protected void processSegment(LineSegment ls) {
+        boolean reversed = ls.p1.compareTo(ls.p0) < 0;
 		ls.normalize();
-		if (!lines.remove(ls)) {
-			lines.add(ls);
+		if (lines.remove(ls) == null) {
+			lines.put(ls, reversed);
 		} else if (this.retainUnique) {
 			duplicateLines.add(ls);
 		}
 	}
+    
+    /** getSink returns a SegmentSink that cancels the segments passed to
+     *  it, after snapping them to the PrecisionModel of the
+     *  UnionParameters supplied at construction.
+     */
+    SegmentSink getSink() {
+        return sink;
+    }
+    
+    /** processSegment cancels the segment between two points, storing
+     *  it in the SegmentTable if one is in use, and as a LineSegment
+     *  otherwise.  No objects are allocated when a SegmentTable is used.
+     *  If a SegmentSorter is in use, the segment is only appended to it.
+     */
+    protected void processSegment(double x0, double y0, double x1, double y1) {
+        numSegmentsProcessed++;
+        if (sorter != null) {
+            sorter.add(x0, y0, x1, y1, 0);
+            return;
+        }
+        if (tables == null) {
+            processSegment(new LineSegment(x0, y0, x1, y1));
+            return;
+        }
+        if (!cancelNormalized(tables[0], x0, y0, x1, y1, 0, counting) && retainUnique) {
+            LineSegment ls = new LineSegment(x0 + 0.0, y0 + 0.0, x1 + 0.0, y1 + 0.0);
+            ls.normalize();
+            duplicateLines.add(ls);
+        }
+    }
+    
+    /** toggleNormalized normalizes a segment in the same way as
+     *  LineSegment.normalize(), converting any negative zeros so that they
+     *  compare equal to positive zeros, and toggles it in the supplied
+     *  SegmentTable.
+     * @return true if the segment was inserted, false if it was removed
+     */
+    static boolean toggleNormalized(SegmentTable table, double x0, double y0, double x1, double y1, int tag) {
+        if (x1 < x0 || (x1 == x0 && y1 < y0)) {
+            return table.toggle(x1 + 0.0, y1 + 0.0, x0 + 0.0, y0 + 0.0, tag, true);
+        } else {
+            return table.toggle(x0 + 0.0, y0 + 0.0, x1 + 0.0, y1 + 0.0, tag, false);
+        }
+    }
+
+    /** snapSegments returns a SegmentSink that rounds the ordinates of each
+     *  segment to the supplied PrecisionModel and passes the segment to the
+     *  supplied sink, unless it has collapsed to a point.  The supplied sink
+     *  is returned unchanged if the PrecisionModel is null or FLOATING.
+     */
+    public static SegmentSink snapSegments(final SegmentSink sink, final PrecisionModel precisionModel) {
+        if (precisionModel == null || precisionModel.getType() == PrecisionModel.FLOATING) {
+            return sink;
+        }
+        return new SegmentSink() {
+            @Override
+            public void addSegment(double x0, double y0, double x1, double y1) {
+                x0 = precisionModel.makePrecise(x0);
+                y0 = precisionModel.makePrecise(y0);
+                x1 = precisionModel.makePrecise(x1);
+                y1 = precisionModel.makePrecise(y1);
+                if (x0 != x1 || y0 != y1) {
+                    sink.addSegment(x0, y0, x1, y1);
+                }
+            }
+        };
+    }
+
+    /** countNormalized normalizes a segment in the same way as
+     *  {@link #toggleNormalized} and counts it in the supplied SegmentTable.
+     * @return the number of occurrences of the segment, including this one
+     */
+    static int countNormalized(SegmentTable table, double x0, double y0, double x1, double y1, int tag) {
+        if (x1 < x0 || (x1 == x0 && y1 < y0)) {
+            return table.count(x1 + 0.0, y1 + 0.0, x0 + 0.0, y0 + 0.0, tag, true);
+        } else {
+            return table.count(x0 + 0.0, y0 + 0.0, x1 + 0.0, y1 + 0.0, tag, false);
+        }
+    }
+
+    /** cancelNormalized counts a segment in the supplied SegmentTable if
+     *  counting is true, and toggles it otherwise.
+     * @return true if this is the first occurrence of the segment
+     */
+    static boolean cancelNormalized(SegmentTable table, double x0, double y0, double x1, double y1,
+                                    int tag, boolean counting) {
+        if (counting) {
+            return countNormalized(table, x0, y0, x1, y1, tag) == 1;
+        }
+        return toggleNormalized(table, x0, y0, x1, y1, tag);
+    }
 	
     /** add extracts the Segments that make up a geometry, and adds them to
      *  the hash of Segments.
      *  @param geom the Polygon or MultiPolygon to be added
      */
     protected void add (Geometry g) {
+        extractSegments(g, sink);
+    }
+    
+    /** extractSegments passes each segment of the rings of a Polygon or
+     *  MultiPolygon to the supplied SegmentSink.  Segments of shells are
+     *  passed in clockwise order and segments of holes in counter-clockwise
+     *  order, so that the interior of the polygon lies on their right.
+     *  Zero-length segments, from repeated consecutive vertices, are
+     *  skipped.  Ordinates are read from each CoordinateSequence without
+     *  copying them into Coordinates, although a sink may still allocate
+     *  objects for the segments it stores.
+     *  @param g the Polygon or MultiPolygon whose segments are extracted
+     *  @param sink the SegmentSink that receives the segments
+     */
+    public static void extractSegments(Geometry g, SegmentSink sink) {
         if (g instanceof MultiPolygon) {
             for (int i = 0; i < g.getNumGeometries(); i++) {
-                add((Polygon) g.getGeometryN(i));
+                extractSegments((Polygon) g.getGeometryN(i), sink);
             }
             return;
         }
@@ -75,21 +505,32 @@ public class DuplicateSegmentFinder {
             throw new IllegalArgumentException("Geometries must be Polygons or MultiPolygons");
         }
         
+        // Read the ordinates of each ring directly from its
+        // CoordinateSequence, passing each segment to the sink
         Polygon p = (Polygon) g;
-        Coordinate[][] rings = new Coordinate[1 + p.getNumInteriorRing()][];
-        
-        // Populate the array of ring coordinates
-        rings[0] = p.getExteriorRing().getCoordinates();
-        for (int i = 0; i < p.getNumInteriorRing(); i++) {
-            rings[i+1] = p.getInteriorRingN(i).getCoordinates();
-        }
-            
-        // Loop over the aray of ring coordinates, constructing LineSegments
-        // and checking them for uniqueness
-        for (int i = 0; i < rings.length; i++) {
-            for (int j = 0; j < rings[i].length - 1; j++) {
-                LineSegment ls = new LineSegment (rings[i][j], rings[i][j+1]);
-                processSegment(ls);
+        for (int i = 0; i <= p.getNumInteriorRing(); i++) {
+            LineString ring = i == 0 ? p.getExteriorRing() : p.getInteriorRingN(i - 1);
+            CoordinateSequence seq = ring.getCoordinateSequence();
+            int n = seq.size();
+            if (n < 4) {
+                continue;
+            }
+            boolean reverse = (PolygonAssembler.signedArea(seq) > 0) == (i == 0);
+            double px = seq.getX(0);
+            double py = seq.getY(0);
+            for (int j = 1; j < n; j++) {
+                double x = seq.getX(j);
+                double y = seq.getY(j);
+                if (x == px && y == py) {
+                    continue;
+                }
+                if (reverse) {
+                    sink.addSegment(x, y, px, py);
+                } else {
+                    sink.addSegment(px, py, x, y);
+                }
+                px = x;
+                py = y;
             }
         }
     }
@@ -101,14 +542,48 @@ public class DuplicateSegmentFinder {
 	 *          LineSegment.
 	 */
 	public LineString[] getUniqueLineStrings(GeometryFactory gfact) {
-		LineString[] linestrings = new LineString[lines.size()];
+        cancelSorted();
+		LineString[] linestrings = new LineString[getNumUniqueSegments()];
 		int i = 0;
+        if (tables != null) {
+            for (SegmentTable table : tables) {
+                for (int s = table.nextBoundary(0); s >= 0; s = table.nextBoundary(s + 1)) {
+                    linestrings[i++] = createLineString(gfact, table.getX0(s), table.getY0(s),
+                                                        table.getX1(s), table.getY1(s));
+                }
+            }
+            return linestrings;
+        }
 		for (LineSegment l : getUniqueSegments()) {
-            linestrings[i++] = l.toGeometry(gfact);
+            linestrings[i++] = createLineString(gfact, l.p0.x, l.p0.y, l.p1.x, l.p1.y);
         }
 		return linestrings;
 	}
 	
+    /** toLineStrings converts each segment in the supplied SegmentBuffer
+     *  into a LineString using the supplied GeometryFactory.
+     */
+    public static LineString[] toLineStrings(SegmentBuffer segments, GeometryFactory gfact) {
+        LineString[] linestrings = new LineString[segments.size()];
+        for (int i = 0; i < segments.size(); i++) {
+            linestrings[i] = createLineString(gfact, segments.getX0(i), segments.getY0(i),
+                                              segments.getX1(i), segments.getY1(i));
+        }
+        return linestrings;
+    }
+    
+    /** createLineString constructs a two-point LineString using the
+     *  CoordinateSequenceFactory of the supplied GeometryFactory.
+     */
+    private static LineString createLineString(GeometryFactory gfact, double x0, double y0, double x1, double y1) {
+        CoordinateSequence seq = gfact.getCoordinateSequenceFactory().create(2, 2);
+        seq.setOrdinate(0, CoordinateSequence.X, x0);
+        seq.setOrdinate(0, CoordinateSequence.Y, y0);
+        seq.setOrdinate(1, CoordinateSequence.X, x1);
+        seq.setOrdinate(1, CoordinateSequence.Y, y1);
+        return gfact.createLineString(seq);
+    }
+	
 	/** getUniqueMultiLineString converts the collection of LineSegment objects
   into a MultiLineString using the supplied GeometryFactory.
 	 *  @param gfact a GeometryFactory to use for creating LineStrings
@@ -127,9 +602,7 @@ public class DuplicateSegmentFinder {
      */
     public Collection<LineString> getUniqueMergedLineSegments(GeometryFactory gfact) {
         LineMerger lm = new LineMerger();
-        for (LineSegment l : getUniqueSegments()) {
-            lm.add(l.toGeometry(gfact));
-        }
+        lm.add(Arrays.asList(getUniqueLineStrings(gfact)));
         return lm.getMergedLineStrings();    
     }
 }
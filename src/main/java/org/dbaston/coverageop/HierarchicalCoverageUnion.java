@@ -0,0 +1,266 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** A HierarchicalCoverageUnion computes the unions of a coverage at several
+ *  nested levels of grouping, such as the blocks, block groups, tracts and
+ *  counties of a census.  The features are grouped by the parent key of
+ *  the first level, and the groups of each level are grouped by the parent
+ *  key of the next.
+ *
+ *  The unique segments of a group are the directed boundary of its union,
+ *  with the interior on their right, just as the segments extracted from a
+ *  polygon.  So each group above the first level is computed by cancelling
+ *  the unique segments of its child groups, rather than the segments of
+ *  the features, and the segments of interior boundaries are never seen
+ *  again once they have been cancelled.  The unique segments of every
+ *  group are retained, and a union is only built from them when it is
+ *  requested.  Groups of the same level are cancelled as separate tasks,
+ *  using the number of threads given by the parallelism of the
+ *  UnionParameters.
+ *
+ *  As with {@link CoverageUnion}, the features must form a coverage, and
+ *  every feature or group must have exactly one parent at each level.
+ * @author dbaston
+ */
+public class HierarchicalCoverageUnion {
+    /** A ParentKey identifies the group to which each feature or group of
+     *  one level belongs at the next level.
+     */
+    public interface ParentKey {
+        /** getParent returns the key of the group containing the feature
+         *  or group with the supplied key.
+         */
+        Object getParent(Object key);
+    }
+
+    private final GeometryFactory gfact;
+    private final UnionParameters params;
+    private final List<Map<Object, SegmentBuffer>> segments = new ArrayList<>();
+    private final List<Map<Object, Geometry>> unions = new ArrayList<>();
+
+    public HierarchicalCoverageUnion(Map<?, ? extends Geometry> features, List<? extends ParentKey> levels) {
+        this(features, levels, null, new UnionParameters());
+    }
+
+    /** Constructs a HierarchicalCoverageUnion, cancelling the segments of
+     *  every level.
+     * @param features Polygons or MultiPolygons forming a coverage, keyed by
+     *                 the key supplied to the ParentKey of the first level
+     * @param levels the ParentKey of each level, from the lowest to the
+     *               highest
+     * @param gfact GeometryFactory used to construct the unions, or null to
+     *              use the factory of the first feature
+     * @param params
+     */
+    public HierarchicalCoverageUnion(Map<?, ? extends Geometry> features, List<? extends ParentKey> levels,
+                                     GeometryFactory gfact, UnionParameters params) {
+        if (gfact == null) {
+            gfact = features.isEmpty() ? new GeometryFactory() : features.values().iterator().next().getFactory();
+        }
+        this.gfact = gfact;
+        this.params = params;
+
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(params.getListener());
+        ExecutorService executor = params.getParallelism() > 1
+                ? Executors.newFixedThreadPool(params.getParallelism()) : null;
+        try {
+            Map<Object, List<Geometry>> featureGroups = new LinkedHashMap<>();
+            for (Map.Entry<?, ? extends Geometry> e : features.entrySet()) {
+                addToGroup(featureGroups, levels.get(0).getParent(e.getKey()), e.getValue());
+            }
+            List<Callable<SegmentBuffer>> tasks = new ArrayList<>(featureGroups.size());
+            for (List<Geometry> group : featureGroups.values()) {
+                tasks.add(cancelFeatures(group));
+            }
+            addLevel(featureGroups.keySet(), invokeAll(executor, tasks));
+
+            for (int level = 1; level < levels.size(); level++) {
+                Map<Object, List<SegmentBuffer>> groups = new LinkedHashMap<>();
+                for (Map.Entry<Object, SegmentBuffer> e : segments.get(level - 1).entrySet()) {
+                    addToGroup(groups, levels.get(level).getParent(e.getKey()), e.getValue());
+                }
+                tasks = new ArrayList<>(groups.size());
+                for (List<SegmentBuffer> group : groups.values()) {
+                    tasks.add(cancelSegments(group));
+                }
+                addLevel(groups.keySet(), invokeAll(executor, tasks));
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+    }
+
+    private static <T> void addToGroup(Map<Object, List<T>> groups, Object key, T item) {
+        List<T> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(key, group);
+        }
+        group.add(item);
+    }
+
+    private void addLevel(Collection<Object> keys, List<SegmentBuffer> buffers) {
+        Map<Object, SegmentBuffer> level = new LinkedHashMap<>();
+        int i = 0;
+        for (Object key : keys) {
+            level.put(key, buffers.get(i++));
+        }
+        segments.add(level);
+        unions.add(new LinkedHashMap<Object, Geometry>());
+    }
+
+    private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+        if (executor != null) {
+            return ParallelSegmentCanceller.invokeAll(executor, tasks);
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            try {
+                results.add(task.call());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return results;
+    }
+
+    /** cancelFeatures returns a task that cancels the segments of a group
+     *  of features, snapping them to the PrecisionModel of the
+     *  UnionParameters.
+     */
+    private Callable<SegmentBuffer> cancelFeatures(final List<Geometry> group) {
+        return new Callable<SegmentBuffer>() {
+            @Override
+            public SegmentBuffer call() {
+                int numPoints = 0;
+                for (Geometry g : group) {
+                    numPoints += g.getNumPoints();
+                }
+                final SegmentTable table = new SegmentTable(numPoints / 2);
+                final boolean counting = isCounting();
+                DuplicateSegmentFinder.SegmentSink sink = DuplicateSegmentFinder.snapSegments(new DuplicateSegmentFinder.SegmentSink() {
+                    @Override
+                    public void addSegment(double x0, double y0, double x1, double y1) {
+                        DuplicateSegmentFinder.cancelNormalized(table, x0, y0, x1, y1, 0, counting);
+                    }
+                }, params.getPrecisionModel());
+                for (Geometry g : group) {
+                    DuplicateSegmentFinder.extractSegments(g, sink);
+                }
+                return getBoundary(table);
+            }
+        };
+    }
+
+    /** cancelSegments returns a task that cancels the unique segments of a
+     *  group of child groups.
+     */
+    private Callable<SegmentBuffer> cancelSegments(final List<SegmentBuffer> group) {
+        return new Callable<SegmentBuffer>() {
+            @Override
+            public SegmentBuffer call() {
+                int numSegments = 0;
+                for (SegmentBuffer child : group) {
+                    numSegments += child.size();
+                }
+                SegmentTable table = new SegmentTable(numSegments / 2);
+                boolean counting = isCounting();
+                for (SegmentBuffer child : group) {
+                    for (int i = 0; i < child.size(); i++) {
+                        DuplicateSegmentFinder.cancelNormalized(table, child.getX0(i), child.getY0(i),
+                                                                child.getX1(i), child.getY1(i), 0, counting);
+                    }
+                }
+                return getBoundary(table);
+            }
+        };
+    }
+
+    private boolean isCounting() {
+        return params.getSegmentStorage() == UnionParameters.SegmentStorage.COUNTED_TABLE;
+    }
+
+    /** getBoundary returns the directed boundary segments of a table.
+     */
+    private static SegmentBuffer getBoundary(SegmentTable table) {
+        SegmentBuffer boundary = new SegmentBuffer(Math.max(table.getNumBoundary(), 1));
+        for (int s = table.nextBoundary(0); s >= 0; s = table.nextBoundary(s + 1)) {
+            if (table.isReversed(s)) {
+                boundary.add(table.getX1(s), table.getY1(s), table.getX0(s), table.getY0(s));
+            } else {
+                boundary.add(table.getX0(s), table.getY0(s), table.getX1(s), table.getY1(s));
+            }
+        }
+        return boundary;
+    }
+
+    /** getNumLevels returns the number of levels of grouping.
+     */
+    public int getNumLevels() {
+        return segments.size();
+    }
+
+    /** getKeys returns the keys of the groups of a level, in the order in
+     *  which they were first found.
+     * @param level the level, with zero being the lowest
+     */
+    public List<Object> getKeys(int level) {
+        return Collections.unmodifiableList(new ArrayList<>(segments.get(level).keySet()));
+    }
+
+    /** getNumUniqueSegments returns the number of segments on the boundary
+     *  of a group.
+     */
+    public int getNumUniqueSegments(int level, Object key) {
+        return segments.get(level).get(key).size();
+    }
+
+    /** getUnion returns the union of a group, building it from the unique
+     *  segments of the group if it has not already been built.
+     * @param level the level, with zero being the lowest
+     * @param key the key of the group
+     * @return the union, or null if the level has no group with the key
+     */
+    public synchronized Geometry getUnion(int level, Object key) {
+        Map<Object, Geometry> built = unions.get(level);
+        Geometry union = built.get(key);
+        if (union == null) {
+            SegmentBuffer boundary = segments.get(level).get(key);
+            if (boundary == null) {
+                return null;
+            }
+            union = CoverageUnion.buildResult(boundary, null, gfact, params);
+            built.put(key, union);
+        }
+        return union;
+    }
+
+    /** getUnions returns the union of each group of a level.
+     * @param level the level, with zero being the lowest
+     * @return Map of group keys to the union of each group, in the order
+     *         returned by {@link #getKeys(int)}
+     */
+    public Map<Object, Geometry> getUnions(int level) {
+        Map<Object, Geometry> result = new LinkedHashMap<>();
+        for (Object key : segments.get(level).keySet()) {
+            result.put(key, getUnion(level, key));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,417 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.algorithm.LineIntersector;
+import com.vividsolutions.jts.algorithm.RobustLineIntersector;
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.noding.BasicSegmentString;
+import com.vividsolutions.jts.noding.MCIndexNoder;
+import com.vividsolutions.jts.noding.SegmentIntersector;
+import com.vividsolutions.jts.noding.SegmentString;
+import com.vividsolutions.jts.operation.union.UnaryUnionOp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** A HybridCoverageUnion computes the union of a set of polygons that is
+ *  expected to be a coverage, but may contain overlaps or incorrectly noded
+ *  features.  Segments are cancelled as by {@link CoverageUnion}, and the
+ *  unique segments that remain are checked for the signs that the
+ *  coverage assumption has failed:
+ *  <ul>
+ *  <li>crossings, where a unique segment intersects the interior of
+ *      another, as happens where features overlap or where a vertex of one
+ *      feature lies within a segment of its neighbor; and</li>
+ *  <li>dangling ends, where the number of unique segments entering a vertex
+ *      differs from the number leaving it.</li>
+ *  </ul>
+ *  If there are neither, the result is built and its polygons are checked
+ *  for overlap, which occurs where the boundary of a feature lies within
+ *  other features and was cancelled from view.
+ *
+ *  The features whose envelopes intersect a problem are unioned with
+ *  UnaryUnionOp, and their union is dissolved with the remaining features
+ *  on the fast path.  The check is repeated, adding any features near
+ *  problems that remain, until the result is clean.  Segments are always
+ *  counted, as by {@link UnionParameters.SegmentStorage#COUNTED_TABLE}, so
+ *  duplicated features do not require the fallback.  Rings are always
+ *  traced, since a ring that is merged and polygonized loses the direction
+ *  that distinguishes an overlapping shell from a hole.
+ * @author dbaston
+ */
+public class HybridCoverageUnion {
+    /** Relative tolerance used to find the features near a problem, since
+     *  computed crossings may not lie exactly on the segments that
+     *  produced them.
+     */
+    private static final double QUERY_TOLERANCE = 1e-9;
+
+    private final Geometry union;
+    private final boolean[] inFallback;
+    private final List<Envelope> problems = new ArrayList<>();
+    private int numFallback;
+    private int numRounds;
+
+    public HybridCoverageUnion(List<Geometry> geoms) {
+        this(geoms, null, new UnionParameters());
+    }
+
+    /** Computes the union of the supplied features.
+     * @param geoms Polygons or MultiPolygons
+     * @param gfact GeometryFactory used to construct the result, or null to
+     *              use the factory of the first input
+     * @param params
+     */
+    public HybridCoverageUnion(List<Geometry> geoms, GeometryFactory gfact, UnionParameters params) {
+        inFallback = new boolean[geoms.size()];
+        if (geoms.isEmpty()) {
+            union = new GeometryFactory().createPoint((Coordinate) null);
+            return;
+        }
+        if (gfact == null) {
+            gfact = geoms.get(0).getFactory();
+        }
+
+        UnionParameters counted = new UnionParameters(params)
+                .setSegmentStorage(UnionParameters.SegmentStorage.COUNTED_TABLE)
+                .setRingConstruction(UnionParameters.RingConstruction.TRACE);
+        UnionListener listener = params.getListener();
+        STRtree index = null;
+        Geometry fallbackUnion = null;
+        Geometry result;
+        while (true) {
+            numRounds++;
+            List<Geometry> inputs = new ArrayList<>(geoms.size() - numFallback + 1);
+            for (int i = 0; i < geoms.size(); i++) {
+                if (!inFallback[i]) {
+                    inputs.add(geoms.get(i));
+                }
+            }
+            if (fallbackUnion != null && !fallbackUnion.isEmpty()) {
+                inputs.add(fallbackUnion);
+            }
+
+            UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(listener);
+            DuplicateSegmentFinder dsr = new DuplicateSegmentFinder(inputs, false, counted);
+            SegmentBuffer segments = dsr.getUniqueDirectedSegments();
+            timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+            CoverageUnion.countSegments(listener, dsr, segments.size());
+
+            timer = new UnionStatistics.PhaseTimer(listener);
+            List<Envelope> found = findProblems(segments);
+            timer.stop(UnionListener.Phase.VALIDATE);
+
+            Geometry built = null;
+            if (found.isEmpty() || numFallback == geoms.size()) {
+                built = CoverageUnion.buildResult(segments, inputs, gfact, counted);
+                if (found.isEmpty()) {
+                    timer = new UnionStatistics.PhaseTimer(listener);
+                    found = findOverlaps(built);
+                    timer.stop(UnionListener.Phase.VALIDATE);
+                }
+            }
+            UnionStatistics.count(listener, UnionListener.Count.BOUNDARY_PROBLEMS, found.size());
+            if (found.isEmpty() || numFallback == geoms.size()) {
+                result = built;
+                break;
+            }
+            problems.addAll(found);
+
+            if (index == null) {
+                index = new STRtree();
+                for (int i = 0; i < geoms.size(); i++) {
+                    index.insert(geoms.get(i).getEnvelopeInternal(), i);
+                }
+            }
+            // Route the features at each problem to the fallback, along with
+            // the features they may overlap, whose boundaries within them
+            // have been cancelled
+            List<Integer> hits = new ArrayList<>();
+            for (Envelope problem : found) {
+                hits.addAll(queryNear(index, problem));
+            }
+            int numAdded = 0;
+            for (int hit : hits) {
+                for (int i : queryNear(index, geoms.get(hit).getEnvelopeInternal())) {
+                    if (!inFallback[i]) {
+                        inFallback[i] = true;
+                        numAdded++;
+                    }
+                }
+            }
+            if (numAdded == 0) {
+                // The problems lie on the boundary of the fallback union
+                // itself, so union everything
+                Arrays.fill(inFallback, true);
+                numAdded = geoms.size() - numFallback;
+            }
+            numFallback += numAdded;
+
+            timer = new UnionStatistics.PhaseTimer(listener);
+            fallbackUnion = UnaryUnionOp.union(getFallbackGeometries(geoms), gfact);
+            timer.stop(UnionListener.Phase.FALLBACK);
+        }
+        UnionStatistics.count(listener, UnionListener.Count.FALLBACK_FEATURES, numFallback);
+        union = result;
+    }
+
+    /** queryNear returns the indices of the features whose envelopes
+     *  intersect the supplied envelope, expanded by the query tolerance.
+     */
+    private static List<Integer> queryNear(STRtree index, Envelope env) {
+        double tolerance = QUERY_TOLERANCE * Math.max(1, Math.max(
+                Math.max(Math.abs(env.getMinX()), Math.abs(env.getMaxX())),
+                Math.max(Math.abs(env.getMinY()), Math.abs(env.getMaxY()))));
+        Envelope expanded = new Envelope(env);
+        expanded.expandBy(tolerance);
+        List<Integer> near = new ArrayList<>();
+        for (Object o : index.query(expanded)) {
+            near.add((Integer) o);
+        }
+        return near;
+    }
+
+    private List<Geometry> getFallbackGeometries(List<Geometry> geoms) {
+        List<Geometry> fallback = new ArrayList<>(numFallback);
+        for (int i = 0; i < geoms.size(); i++) {
+            if (inFallback[i]) {
+                fallback.add(geoms.get(i));
+            }
+        }
+        return fallback;
+    }
+
+    /** findProblems returns the locations of crossings, dangling ends and
+     *  inconsistent pinch vertices in a set of directed unique segments, as
+     *  point Envelopes.  All are absent from the unique segments of a
+     *  correctly noded coverage.
+     */
+    static List<Envelope> findProblems(SegmentBuffer segments) {
+        Set<Coordinate> found = new LinkedHashSet<>();
+
+        Map<Coordinate, Vertex> vertices = new HashMap<>();
+        List<SegmentString> strings = new ArrayList<>(segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            Coordinate p0 = new Coordinate(segments.getX0(i) + 0.0, segments.getY0(i) + 0.0);
+            Coordinate p1 = new Coordinate(segments.getX1(i) + 0.0, segments.getY1(i) + 0.0);
+            getVertex(vertices, p0).balance++;
+            getVertex(vertices, p1).balance--;
+            strings.add(new BasicSegmentString(new Coordinate[] { p0, p1 }, null));
+        }
+
+        // Each vertex of a valid boundary is entered and left by the same
+        // number of segments.  Where more than one ring meets at a vertex,
+        // the segments entering and leaving it alternate around it, so that
+        // the sectors between them alternate between the interior and the
+        // exterior of the union.
+        for (SegmentString ss : strings) {
+            Coordinate[] pts = ss.getCoordinates();
+            Vertex v0 = vertices.get(pts[0]);
+            Vertex v1 = vertices.get(pts[1]);
+            if (v0.degree > 2) {
+                v0.addEdge(pts[0], pts[1], true);
+            }
+            if (v1.degree > 2) {
+                v1.addEdge(pts[1], pts[0], false);
+            }
+        }
+        for (Map.Entry<Coordinate, Vertex> e : vertices.entrySet()) {
+            Vertex v = e.getValue();
+            if (v.balance != 0 || (v.degree > 2 && !v.isAlternating())) {
+                found.add(e.getKey());
+            }
+        }
+
+        CrossingFinder crossings = new CrossingFinder();
+        MCIndexNoder noder = new MCIndexNoder();
+        noder.setSegmentIntersector(crossings);
+        noder.computeNodes(strings);
+        found.addAll(crossings.crossings);
+
+        List<Envelope> envelopes = new ArrayList<>(found.size());
+        for (Coordinate c : found) {
+            envelopes.add(new Envelope(c));
+        }
+        return envelopes;
+    }
+
+    private static Vertex getVertex(Map<Coordinate, Vertex> vertices, Coordinate c) {
+        Vertex v = vertices.get(c);
+        if (v == null) {
+            v = new Vertex();
+            vertices.put(c, v);
+        }
+        v.degree++;
+        return v;
+    }
+
+    /** A Vertex records the segments that enter and leave a point of the
+     *  unique boundary.  The direction of each segment is only recorded at
+     *  vertices where more than one ring meets.
+     */
+    private static class Vertex {
+        int balance;
+        int degree;
+        double[] angles;
+        boolean[] leaving;
+        int numEdges;
+
+        void addEdge(Coordinate from, Coordinate to, boolean isLeaving) {
+            if (angles == null) {
+                angles = new double[degree];
+                leaving = new boolean[degree];
+            }
+            angles[numEdges] = Math.atan2(to.y - from.y, to.x - from.x);
+            leaving[numEdges] = isLeaving;
+            numEdges++;
+        }
+
+        boolean isAlternating() {
+            Integer[] order = new Integer[numEdges];
+            for (int i = 0; i < numEdges; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(angles[a], angles[b]);
+                }
+            });
+            for (int i = 0; i < numEdges; i++) {
+                if (leaving[order[i]] == leaving[order[(i + 1) % numEdges]]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** findOverlaps returns the envelopes of the shells of the polygons of
+     *  a union that overlap another of its polygons.  The polygons of the
+     *  union of a valid coverage meet only at points, so the midpoint of the
+     *  first segment of each shell is outside of every other polygon.
+     */
+    static List<Envelope> findOverlaps(Geometry union) {
+        List<Envelope> found = new ArrayList<>();
+        int n = union.getNumGeometries();
+        if (n < 2) {
+            return found;
+        }
+        STRtree index = new STRtree();
+        for (int i = 0; i < n; i++) {
+            index.insert(union.getGeometryN(i).getEnvelopeInternal(), i);
+        }
+        IndexedPointInAreaLocator[] locators = new IndexedPointInAreaLocator[n];
+        for (int i = 0; i < n; i++) {
+            Polygon p = (Polygon) union.getGeometryN(i);
+            CoordinateSequence seq = p.getExteriorRing().getCoordinateSequence();
+            Coordinate mid = new Coordinate((seq.getX(0) + seq.getX(1)) / 2, (seq.getY(0) + seq.getY(1)) / 2);
+            for (Object o : index.query(new Envelope(mid))) {
+                int j = (Integer) o;
+                if (j == i) {
+                    continue;
+                }
+                if (locators[j] == null) {
+                    locators[j] = new IndexedPointInAreaLocator(union.getGeometryN(j));
+                }
+                if (locators[j].locate(mid) != Location.EXTERIOR) {
+                    found.add(p.getEnvelopeInternal());
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /** A CrossingFinder records every intersection that lies in the
+     *  interior of at least one of the intersecting segments.
+     */
+    private static class CrossingFinder implements SegmentIntersector {
+        private final LineIntersector li = new RobustLineIntersector();
+        private final List<Coordinate> crossings = new ArrayList<>();
+
+        @Override
+        public void processIntersections(SegmentString e0, int segIndex0, SegmentString e1, int segIndex1) {
+            if (e0 == e1) {
+                return;
+            }
+            Coordinate[] a = e0.getCoordinates();
+            Coordinate[] b = e1.getCoordinates();
+            li.computeIntersection(a[segIndex0], a[segIndex0 + 1], b[segIndex1], b[segIndex1 + 1]);
+            if (li.hasIntersection() && li.isInteriorIntersection()) {
+                // Collinear segments intersect at two points, which may
+                // include a shared endpoint
+                for (int i = 0; i < li.getIntersectionNum(); i++) {
+                    Coordinate c = li.getIntersection(i);
+                    if (!isEndpoint(c, a, segIndex0) || !isEndpoint(c, b, segIndex1)) {
+                        crossings.add(new Coordinate(c));
+                    }
+                }
+            }
+        }
+
+        private static boolean isEndpoint(Coordinate c, Coordinate[] pts, int segIndex) {
+            return c.equals2D(pts[segIndex]) || c.equals2D(pts[segIndex + 1]);
+        }
+
+        @Override
+        public boolean isDone() {
+            return false;
+        }
+    }
+
+    /** getUnion returns the union of the features, as a MultiPolygon, or an
+     *  empty Point if no features were supplied.
+     */
+    public Geometry getUnion() {
+        return union;
+    }
+
+    /** getFallbackFeatures returns the indices of the features that were
+     *  unioned with UnaryUnionOp, in ascending order.
+     */
+    public int[] getFallbackFeatures() {
+        int[] features = new int[numFallback];
+        int j = 0;
+        for (int i = 0; i < inFallback.length; i++) {
+            if (inFallback[i]) {
+                features[j++] = i;
+            }
+        }
+        return features;
+    }
+
+    /** isFallback determines if a feature was unioned with UnaryUnionOp.
+     */
+    public boolean isFallback(int feature) {
+        return inFallback[feature];
+    }
+
+    /** getProblemLocations returns the locations that caused features to be
+     *  routed to the fallback: point Envelopes of crossings and dangling
+     *  ends, and the Envelopes of polygons that overlapped others.
+     */
+    public List<Envelope> getProblemLocations() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    /** getNumRounds returns the number of times the segments were
+     *  cancelled and checked; one if the input was a valid coverage.
+     */
+    public int getNumRounds() {
+        return numRounds;
+    }
+}
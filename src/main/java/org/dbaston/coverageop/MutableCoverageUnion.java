@@ -0,0 +1,438 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** A MutableCoverageUnion maintains the union of a coverage while features
+ *  are added to and removed from it.  The unique segments of the coverage
+ *  are kept in a {@link SegmentTable}, as by {@link CoverageUnion}.  Since
+ *  segments are cancelled by toggling them, removing a feature is the same
+ *  operation as adding it, except that its segments are reversed: a
+ *  segment that it shared with a neighbor reappears directed as the
+ *  neighbor's segment, and a segment on the boundary of the union is
+ *  cancelled.
+ *
+ *  Rings never span more than one connected component of the boundary, so
+ *  a ring that is not connected to an edited feature is unchanged by the
+ *  edit.  So only the components that pass through a vertex of the
+ *  feature are traced again, together with the segments of the feature
+ *  that remain, and only the polygons that contain their rings are
+ *  rebuilt.  Each ring records the nodes at which it touches other rings,
+ *  so that the rings of a component can be found from any one of them.
+ *  Rings are found using a Quadtree of their envelopes, which is also used
+ *  to find the polygon that contains a new hole whose shell was not
+ *  affected, as when a feature is removed from the interior of the union.
+ *
+ *  As with {@link CoverageUnion}, the features must form a coverage, and a
+ *  feature that is removed must be identical to one that was added.
+ * @author dbaston
+ */
+public class MutableCoverageUnion {
+    private final GeometryFactory gfact;
+    private final PrecisionModel precisionModel;
+    private final SegmentTable table;
+    private final Quadtree ringIndex = new Quadtree();
+    private final Map<Coordinate, List<Ring>> ringsAtNode = new HashMap<>();
+    private Geometry union;
+
+    /** A Ring is a ring of the union.  A Ring is either the shell of a
+     *  polygon, in which case it holds the polygon and its holes, or a hole
+     *  of its shell.
+     */
+    private static class Ring {
+        final LinearRing ring;
+        final Envelope env;
+        Ring shell;          // null if this ring is the shell of a polygon
+        List<Ring> holes;    // holes of the polygon, if this is a shell
+        Polygon polygon;
+        List<Coordinate> nodes = Collections.emptyList();
+
+        Ring(LinearRing ring) {
+            this.ring = ring;
+            this.env = ring.getEnvelopeInternal();
+        }
+    }
+
+    public MutableCoverageUnion(GeometryFactory gfact) {
+        this(Collections.<Geometry>emptyList(), gfact, new UnionParameters());
+    }
+
+    public MutableCoverageUnion(Collection<Geometry> geoms) {
+        this(geoms, null, new UnionParameters());
+    }
+
+    /** Constructs a MutableCoverageUnion of the supplied features.  The
+     *  PrecisionModel of the UnionParameters is applied to the features
+     *  supplied here and to those that are later added or removed; the
+     *  other parameters are not used.
+     * @param geoms Polygons or MultiPolygons forming a coverage
+     * @param gfact GeometryFactory used to construct the union, or null to
+     *              use the factory of the first input
+     * @param params
+     */
+    public MutableCoverageUnion(Collection<Geometry> geoms, GeometryFactory gfact, UnionParameters params) {
+        if (gfact == null) {
+            gfact = geoms.isEmpty() ? new GeometryFactory() : geoms.iterator().next().getFactory();
+        }
+        this.gfact = gfact;
+        this.precisionModel = params.getPrecisionModel();
+
+        int numPoints = 0;
+        for (Geometry g : geoms) {
+            numPoints += g.getNumPoints();
+        }
+        table = new SegmentTable(numPoints / 2);
+        DuplicateSegmentFinder.SegmentSink sink = DuplicateSegmentFinder.snapSegments(new DuplicateSegmentFinder.SegmentSink() {
+            @Override
+            public void addSegment(double x0, double y0, double x1, double y1) {
+                toggle(x0, y0, x1, y1);
+            }
+        }, precisionModel);
+        for (Geometry g : geoms) {
+            DuplicateSegmentFinder.extractSegments(g, sink);
+        }
+
+        SegmentBuffer segments = new SegmentBuffer(Math.max(table.size(), 1));
+        for (int s = table.next(0); s >= 0; s = table.next(s + 1)) {
+            addDirected(segments, s);
+        }
+        rebuild(segments, Collections.<Ring>emptySet());
+    }
+
+    /** add adds a Polygon or MultiPolygon to the coverage, updating the
+     *  rings of the union that it touches.
+     */
+    public void add(Geometry g) {
+        edit(g, false);
+    }
+
+    /** remove removes a Polygon or MultiPolygon that was previously added
+     *  to the coverage, updating the rings of the union that it touches.
+     */
+    public void remove(Geometry g) {
+        edit(g, true);
+    }
+
+    /** getUnion returns the current union of the coverage, as a
+     *  MultiPolygon.
+     */
+    public Geometry getUnion() {
+        if (union == null) {
+            List<Polygon> polys = new ArrayList<>();
+            for (Object o : ringIndex.queryAll()) {
+                Ring r = (Ring) o;
+                if (r.shell == null) {
+                    polys.add(r.polygon);
+                }
+            }
+            union = gfact.createMultiPolygon(polys.toArray(new Polygon[polys.size()]));
+        }
+        return union;
+    }
+
+    /** getNumRings returns the number of shells and holes in the union.
+     */
+    public int getNumRings() {
+        return ringIndex.size();
+    }
+
+    private void edit(Geometry g, final boolean remove) {
+        final SegmentBuffer segments = new SegmentBuffer(Math.max(g.getNumPoints(), 1));
+        DuplicateSegmentFinder.extractSegments(g, DuplicateSegmentFinder.snapSegments(new DuplicateSegmentFinder.SegmentSink() {
+            @Override
+            public void addSegment(double x0, double y0, double x1, double y1) {
+                if (remove) {
+                    segments.add(x1, y1, x0, y0);
+                } else {
+                    segments.add(x0, y0, x1, y1);
+                }
+            }
+        }, precisionModel));
+
+        Set<Ring> affected = findAffected(segments);
+        for (int i = 0; i < segments.size(); i++) {
+            toggle(segments.getX0(i), segments.getY0(i), segments.getX1(i), segments.getY1(i));
+        }
+
+        for (Ring r : affected) {
+            CoordinateSequence seq = r.ring.getCoordinateSequence();
+            for (int i = 1; i < seq.size(); i++) {
+                segments.add(seq.getX(i - 1), seq.getY(i - 1), seq.getX(i), seq.getY(i));
+            }
+        }
+        rebuild(segments, affected);
+        union = null;
+    }
+
+    /** findAffected returns the rings of the union that pass through an
+     *  endpoint of the supplied segments, and the other rings of their
+     *  connected components.
+     */
+    private Set<Ring> findAffected(SegmentBuffer segments) {
+        Set<Ring> affected = new LinkedHashSet<>();
+        if (segments.size() == 0) {
+            return affected;
+        }
+        Set<Coordinate> vertices = new HashSet<>();
+        Envelope env = new Envelope();
+        for (int i = 0; i < segments.size(); i++) {
+            Coordinate c = new Coordinate(segments.getX0(i) + 0.0, segments.getY0(i) + 0.0);
+            vertices.add(c);
+            env.expandToInclude(c);
+        }
+
+        for (Object o : ringIndex.query(env)) {
+            Ring r = (Ring) o;
+            if (!r.env.intersects(env)) {
+                continue;
+            }
+            CoordinateSequence seq = r.ring.getCoordinateSequence();
+            Coordinate c = new Coordinate();
+            for (int i = 0; i < seq.size() - 1; i++) {
+                double x = seq.getX(i);
+                double y = seq.getY(i);
+                if (env.contains(x, y)) {
+                    c.x = x + 0.0;
+                    c.y = y + 0.0;
+                    if (vertices.contains(c)) {
+                        affected.add(r);
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<Ring> pending = new ArrayList<>(affected);
+        while (!pending.isEmpty()) {
+            Ring r = pending.remove(pending.size() - 1);
+            for (Coordinate node : r.nodes) {
+                for (Ring other : ringsAtNode.get(node)) {
+                    if (affected.add(other)) {
+                        pending.add(other);
+                    }
+                }
+            }
+        }
+        return affected;
+    }
+
+    /** rebuild traces the rings formed by the supplied segments that remain
+     *  in the table, replacing the affected rings, and rebuilds the
+     *  polygons that contain the new rings or contained the affected ones.
+     * @param candidates segments that may be on the boundary of the new
+     *                   rings, including every segment of the affected
+     *                   rings
+     * @param affected rings of the union whose segments have changed
+     */
+    private void rebuild(SegmentBuffer candidates, Set<Ring> affected) {
+        SegmentBuffer boundary = new SegmentBuffer(Math.max(candidates.size(), 1));
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            int slot = find(candidates.getX0(i), candidates.getY0(i), candidates.getX1(i), candidates.getY1(i));
+            if (slot >= 0 && seen.add(slot)) {
+                addDirected(boundary, slot);
+            }
+        }
+        RingTracer tracer = new RingTracer(boundary, gfact);
+        Set<Coordinate> nodes = new HashSet<>(tracer.getNodes());
+
+        // Polygons whose rings were affected are rebuilt, as are polygons
+        // whose shell encloses a new hole.
+        Set<Ring> polygons = new LinkedHashSet<>();
+        for (Ring r : affected) {
+            ringIndex.remove(r.env, r);
+            for (Coordinate node : r.nodes) {
+                List<Ring> atNode = ringsAtNode.get(node);
+                atNode.remove(r);
+                if (atNode.isEmpty()) {
+                    ringsAtNode.remove(node);
+                }
+            }
+            if (r.shell == null) {
+                polygons.add(r);
+            } else {
+                polygons.add(r.shell);
+            }
+        }
+        for (LinearRing hole : tracer.getHoles()) {
+            Envelope env = hole.getEnvelopeInternal();
+            for (Object o : ringIndex.query(env)) {
+                Ring r = (Ring) o;
+                if (r.shell == null && r.env.covers(env)) {
+                    polygons.add(r);
+                }
+            }
+        }
+
+        // Shells to which holes may be assigned, and holes to assign.
+        // Unaffected holes of a rebuilt shell must be assigned again, since
+        // the shell may have been split.
+        List<LinearRing> shells = new ArrayList<>(tracer.getShells());
+        List<LinearRing> holes = new ArrayList<>(tracer.getHoles());
+        Map<LinearRing, Ring> existing = new IdentityHashMap<>();
+        for (Ring p : polygons) {
+            if (affected.contains(p)) {
+                for (Ring h : p.holes) {
+                    if (!affected.contains(h)) {
+                        holes.add(h.ring);
+                        existing.put(h.ring, h);
+                    }
+                }
+            } else {
+                shells.add(p.ring);
+                existing.put(p.ring, p);
+                p.holes.removeAll(affected);
+            }
+        }
+
+        Map<LinearRing, List<LinearRing>> holesOf = assignHoles(shells, holes);
+        for (Map.Entry<LinearRing, List<LinearRing>> e : holesOf.entrySet()) {
+            Ring shell = existing.get(e.getKey());
+            if (shell == null) {
+                shell = insert(e.getKey(), nodes);
+            }
+            if (shell.shell != null || shell.holes == null) {
+                // A new shell, or a hole that is not contained by a shell
+                shell.shell = null;
+                shell.holes = new ArrayList<>();
+            }
+            for (LinearRing h : e.getValue()) {
+                Ring hole = existing.get(h);
+                if (hole == null) {
+                    hole = insert(h, nodes);
+                }
+                hole.shell = shell;
+                hole.holes = null;
+                shell.holes.add(hole);
+            }
+            LinearRing[] holeRings = new LinearRing[shell.holes.size()];
+            for (int i = 0; i < holeRings.length; i++) {
+                holeRings[i] = shell.holes.get(i).ring;
+            }
+            shell.polygon = gfact.createPolygon(shell.ring, holeRings);
+        }
+    }
+
+    /** insert indexes a new ring, recording the supplied nodes through
+     *  which it passes.
+     */
+    private Ring insert(LinearRing ring, Set<Coordinate> nodes) {
+        Ring r = new Ring(ring);
+        ringIndex.insert(r.env, r);
+        if (!nodes.isEmpty()) {
+            CoordinateSequence seq = ring.getCoordinateSequence();
+            for (int i = 0; i < seq.size() - 1; i++) {
+                Coordinate c = new Coordinate(seq.getX(i) + 0.0, seq.getY(i) + 0.0);
+                if (nodes.contains(c)) {
+                    if (r.nodes.isEmpty()) {
+                        r.nodes = new ArrayList<>();
+                    }
+                    r.nodes.add(c);
+                    List<Ring> atNode = ringsAtNode.get(c);
+                    if (atNode == null) {
+                        atNode = new ArrayList<>(2);
+                        ringsAtNode.put(c, atNode);
+                    }
+                    atNode.add(r);
+                }
+            }
+        }
+        return r;
+    }
+
+    /** assignHoles finds the shell that contains each hole.  A hole whose
+     *  envelope is covered by that of a single shell is assigned to it
+     *  directly, and other holes are located using a
+     *  {@link PolygonAssembler}.  Holes that are not contained by any shell
+     *  are returned as shells with no holes.
+     * @return the holes of each shell
+     */
+    private static Map<LinearRing, List<LinearRing>> assignHoles(List<LinearRing> shells, List<LinearRing> holes) {
+        Map<LinearRing, List<LinearRing>> holesOf = new IdentityHashMap<>();
+        for (LinearRing shell : shells) {
+            holesOf.put(shell, new ArrayList<LinearRing>());
+        }
+        if (holes.isEmpty()) {
+            return holesOf;
+        }
+
+        STRtree index = new STRtree();
+        for (LinearRing shell : shells) {
+            index.insert(shell.getEnvelopeInternal(), shell);
+        }
+        List<LinearRing> unassigned = new ArrayList<>();
+        for (LinearRing hole : holes) {
+            Envelope env = hole.getEnvelopeInternal();
+            LinearRing only = null;
+            int numCovering = 0;
+            for (Object o : index.query(env)) {
+                LinearRing shell = (LinearRing) o;
+                if (shell.getEnvelopeInternal().covers(env)) {
+                    only = shell;
+                    numCovering++;
+                }
+            }
+            if (numCovering == 1) {
+                holesOf.get(only).add(hole);
+            } else {
+                unassigned.add(hole);
+            }
+        }
+
+        if (!unassigned.isEmpty()) {
+            for (Polygon p : PolygonAssembler.getAssembled(shells, unassigned)) {
+                LinearRing shell = (LinearRing) p.getExteriorRing();
+                List<LinearRing> assigned = holesOf.get(shell);
+                if (assigned == null) {
+                    assigned = new ArrayList<>();
+                    holesOf.put(shell, assigned);
+                }
+                for (int i = 0; i < p.getNumInteriorRing(); i++) {
+                    assigned.add((LinearRing) p.getInteriorRingN(i));
+                }
+            }
+        }
+        return holesOf;
+    }
+
+    private void toggle(double x0, double y0, double x1, double y1) {
+        if (x1 < x0 || (x1 == x0 && y1 < y0)) {
+            table.toggle(x1 + 0.0, y1 + 0.0, x0 + 0.0, y0 + 0.0, 0, true);
+        } else {
+            table.toggle(x0 + 0.0, y0 + 0.0, x1 + 0.0, y1 + 0.0, 0, false);
+        }
+    }
+
+    private int find(double x0, double y0, double x1, double y1) {
+        if (x1 < x0 || (x1 == x0 && y1 < y0)) {
+            return table.find(x1 + 0.0, y1 + 0.0, x0 + 0.0, y0 + 0.0, 0);
+        }
+        return table.find(x0 + 0.0, y0 + 0.0, x1 + 0.0, y1 + 0.0, 0);
+    }
+
+    private void addDirected(SegmentBuffer segments, int s) {
+        if (table.isReversed(s)) {
+            segments.add(table.getX1(s), table.getY1(s), table.getX0(s), table.getY0(s));
+        } else {
+            segments.add(table.getX0(s), table.getY0(s), table.getX1(s), table.getY1(s));
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** A ParallelSegmentCanceller cancels the shared segments of a collection of
+ *  geometries using several threads.  Segments are hash-partitioned into
+ *  shards, each of which is a {@link SegmentTable} that is only modified by
+ *  a single thread, so no locking is required.
+ *
+ *  Inputs are processed in rounds.  In the first phase of each round, the
+ *  inputs of the round are divided among the threads, which extract their
+ *  segments and append each one to a {@link SegmentBuffer} for the shard of
+ *  its normalized form.  In the second phase, each shard drains the buffers that
+ *  were filled for it and cancels the segments.  Rounds bound the memory
+ *  used by the buffers.
+ *
+ *  Geometries may be supplied in several groups, in which case the segments
+ *  of each group are tagged with the index of the group, and only segments
+ *  of the same group cancel each other.
+ *
+ *  If counting is requested, each shard counts the occurrences of its
+ *  segments in each direction, as described by {@link SegmentTable#count},
+ *  rather than toggling them.
+ * @author dbaston
+ */
+public class ParallelSegmentCanceller {
+    private static final int POINTS_PER_ROUND = 1 << 22;
+
+    private final int parallelism;
+    private final int shardBits;
+    private final boolean counting;
+    private final PrecisionModel precisionModel;
+    private long numSegments;
+
+    public ParallelSegmentCanceller(int parallelism) {
+        this(parallelism, false);
+    }
+
+    /** Creates a ParallelSegmentCanceller.
+     * @param parallelism number of threads
+     * @param counting true to count the occurrences of each segment, so that
+     *                 segments shared by more than two features are
+     *                 cancelled correctly
+     */
+    public ParallelSegmentCanceller(int parallelism, boolean counting) {
+        this(parallelism, counting, null);
+    }
+
+    /** Creates a ParallelSegmentCanceller.
+     * @param parallelism number of threads
+     * @param counting true to count the occurrences of each segment
+     * @param precisionModel PrecisionModel to which segments are snapped
+     *                       before they are cancelled, or null to use the
+     *                       segments as they are
+     */
+    public ParallelSegmentCanceller(int parallelism, boolean counting, PrecisionModel precisionModel) {
+        this.counting = counting;
+        this.precisionModel = precisionModel;
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least one");
+        }
+        this.parallelism = parallelism;
+
+        // Use a power-of-two number of shards, at least as many as threads
+        int bits = 0;
+        while ((1 << bits) < parallelism) {
+            bits++;
+        }
+        this.shardBits = bits;
+    }
+
+    /** shardOf returns the shard in which a normalized segment is stored.
+     *  The hash is remixed so that shard membership does not constrain the
+     *  low-order bits that select a slot within a SegmentTable.
+     */
+    int shardOf(double x0, double y0, double x1, double y1, int tag) {
+        if (shardBits == 0) {
+            return 0;
+        }
+        return (SegmentTable.hash(x0, y0, x1, y1, tag) * 0x9E3779B9) >>> (32 - shardBits);
+    }
+
+    /** getNumSegments returns the number of segments extracted by the
+     *  most recent call to cancel or cancelGroups.
+     */
+    public long getNumSegments() {
+        return numSegments;
+    }
+
+    /** cancel extracts the segments of the supplied geometries and returns
+     *  the segments that were found an odd number of times (or, if
+     *  counting, in only one direction), distributed among one SegmentTable
+     *  per shard.
+     * @param geoms Polygons or MultiPolygons
+     * @return Array of SegmentTables holding the unique segments
+     */
+    public SegmentTable[] cancel(Collection<Geometry> geoms) {
+        return cancelGroups(Collections.singletonList(geoms));
+    }
+
+    /** cancelGroups extracts the segments of the supplied groups of
+     *  geometries and returns the segments that were found an odd number of
+     *  times within their group, tagged with the index of the group.
+     * @param groups Collections of Polygons or MultiPolygons
+     * @return Array of SegmentTables holding the unique segments
+     */
+    public SegmentTable[] cancelGroups(List<? extends Collection<Geometry>> groups) {
+        int numShards = 1 << shardBits;
+        final SegmentTable[] shards = new SegmentTable[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new SegmentTable();
+        }
+
+        numSegments = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Geometry> round = new ArrayList<>();
+            List<Integer> roundTags = new ArrayList<>();
+            int roundPoints = 0;
+            for (int tag = 0; tag < groups.size(); tag++) {
+                for (Geometry g : groups.get(tag)) {
+                    round.add(g);
+                    roundTags.add(tag);
+                    roundPoints += g.getNumPoints();
+                    if (roundPoints >= POINTS_PER_ROUND) {
+                        cancelRound(executor, round, roundTags, shards);
+                        round.clear();
+                        roundTags.clear();
+                        roundPoints = 0;
+                    }
+                }
+            }
+            if (!round.isEmpty()) {
+                cancelRound(executor, round, roundTags, shards);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        return shards;
+    }
+
+    private void cancelRound(ExecutorService executor, final List<Geometry> round,
+                             final List<Integer> roundTags, final SegmentTable[] shards) {
+        final int numShards = shards.length;
+        final int numWorkers = Math.min(parallelism, round.size());
+        final SegmentBuffer[][] buffers = new SegmentBuffer[numWorkers][numShards];
+
+        // Phase 1: extract segments and route them to per-shard buffers
+        List<Callable<Void>> extractors = new ArrayList<>(numWorkers);
+        for (int w = 0; w < numWorkers; w++) {
+            final int worker = w;
+            extractors.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    final SegmentBuffer[] out = buffers[worker];
+                    for (int i = 0; i < numShards; i++) {
+                        out[i] = new SegmentBuffer();
+                    }
+                    final int[] tag = new int[1];
+                    DuplicateSegmentFinder.SegmentSink router = DuplicateSegmentFinder.snapSegments(new DuplicateSegmentFinder.SegmentSink() {
+                        @Override
+                        public void addSegment(double x0, double y0, double x1, double y1) {
+                            // Route by the normalized segment, so that both
+                            // occurrences of a segment reach the same shard,
+                            // but retain the direction of the segment.
+                            int shard;
+                            if (x1 < x0 || (x1 == x0 && y1 < y0)) {
+                                shard = shardOf(x1 + 0.0, y1 + 0.0, x0 + 0.0, y0 + 0.0, tag[0]);
+                            } else {
+                                shard = shardOf(x0 + 0.0, y0 + 0.0, x1 + 0.0, y1 + 0.0, tag[0]);
+                            }
+                            out[shard].add(x0, y0, x1, y1, tag[0]);
+                        }
+                    }, precisionModel);
+                    for (int i = worker; i < round.size(); i += numWorkers) {
+                        tag[0] = roundTags.get(i);
+                        DuplicateSegmentFinder.extractSegments(round.get(i), router);
+                    }
+                    return null;
+                }
+            });
+        }
+        invokeAll(executor, extractors);
+
+        for (SegmentBuffer[] out : buffers) {
+            for (SegmentBuffer b : out) {
+                numSegments += b.size();
+            }
+        }
+
+        // Phase 2: each shard drains the buffers that were routed to it
+        List<Callable<Void>> cancellers = new ArrayList<>(numShards);
+        for (int s = 0; s < numShards; s++) {
+            final int shard = s;
+            cancellers.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    SegmentTable table = shards[shard];
+                    for (int w = 0; w < numWorkers; w++) {
+                        SegmentBuffer in = buffers[w][shard];
+                        for (int i = 0; i < in.size(); i++) {
+                            DuplicateSegmentFinder.cancelNormalized(table, in.getX0(i), in.getY0(i),
+                                                                    in.getX1(i), in.getY1(i), in.getTag(i),
+                                                                    counting);
+                        }
+                        buffers[w][shard] = null;
+                    }
+                    return null;
+                }
+            });
+        }
+        invokeAll(executor, cancellers);
+    }
+
+    /** invokeAll runs the supplied tasks and waits for them to complete,
+     *  rethrowing any exception thrown by a task.
+     * @return the results of the tasks, in the order of the tasks
+     */
+    static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> f : executor.invokeAll(tasks)) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for tasks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,240 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/** A PartialUnion holds the segments of a set of polygons that have not
+ *  been cancelled, which is all that is needed to continue a union.
+ *  Because cancellation does not depend on the order in which segments
+ *  are found, the features of a coverage may be divided among several
+ *  PartialUnions, in separate threads or processes, which are then
+ *  combined with {@link #merge(PartialUnion)} in any order or grouping.
+ *  Polygons are only built when {@link #getUnion(GeometryFactory)} is
+ *  called on the final PartialUnion.  The segments cancelled by a
+ *  {@link DuplicateSegmentFinder} can be retrieved as a PartialUnion using
+ *  {@link DuplicateSegmentFinder#getPartialUnion()}.
+ *
+ *  A PartialUnion may be written to a stream in a compact binary form, of
+ *  one byte and four ordinates per segment, and read back with
+ *  {@link #read(InputStream)}.
+ *
+ *  Segments are toggled unless the UnionParameters select
+ *  {@link UnionParameters.SegmentStorage#COUNTED_TABLE}, in which case
+ *  each segment records whether it has been found in each direction.  A
+ *  counted segment found in both directions is retained, since a third
+ *  occurrence in another partition must not restore it to the boundary,
+ *  but it is not returned by {@link #getUniqueDirectedSegments()}.
+ * @author dbaston
+ */
+public class PartialUnion {
+    private static final int MAGIC = 0x43555031;  // "CUP1"
+    private static final byte COUNTED = 1;
+    private static final byte FORWARD = 1;
+    private static final byte REVERSE = 2;
+
+    private final SegmentTable table;
+    private final boolean counting;
+    private final UnionParameters params;
+
+    /** Creates an empty PartialUnion using the default UnionParameters.
+     */
+    public PartialUnion() {
+        this(new UnionParameters());
+    }
+
+    /** Creates an empty PartialUnion.  The UnionParameters select the
+     *  storage and the PrecisionModel applied to added features, and are
+     *  used to build the union.
+     */
+    public PartialUnion(UnionParameters params) {
+        this(new SegmentTable(),
+             params.getSegmentStorage() == UnionParameters.SegmentStorage.COUNTED_TABLE, params);
+    }
+
+    PartialUnion(SegmentTable table, boolean counting, UnionParameters params) {
+        this.table = table;
+        this.counting = counting;
+        this.params = params;
+    }
+
+    /** add cancels the segments of a Polygon or MultiPolygon, after
+     *  snapping them to the PrecisionModel of the UnionParameters.
+     */
+    public void add(Geometry g) {
+        DuplicateSegmentFinder.extractSegments(g, DuplicateSegmentFinder.snapSegments(new DuplicateSegmentFinder.SegmentSink() {
+            @Override
+            public void addSegment(double x0, double y0, double x1, double y1) {
+                DuplicateSegmentFinder.cancelNormalized(table, x0, y0, x1, y1, 0, counting);
+            }
+        }, params.getPrecisionModel()));
+    }
+
+    /** merge cancels the segments of another PartialUnion against the
+     *  segments of this one.  The other PartialUnion is not modified.
+     * @return this PartialUnion
+     * @throws IllegalArgumentException if one PartialUnion counts segments
+     *         and the other toggles them
+     */
+    public PartialUnion merge(PartialUnion other) {
+        if (other.counting != counting) {
+            throw new IllegalArgumentException("Cannot merge counted and toggled segments");
+        }
+        SegmentTable from = other.table;
+        for (int s = from.next(0); s >= 0; s = from.next(s + 1)) {
+            addNormalized(from.getX0(s), from.getY0(s), from.getX1(s), from.getY1(s), getDirections(from, s));
+        }
+        return this;
+    }
+
+    /** getDirections returns the directions in which the segment in a slot
+     *  has been found, as a combination of FORWARD and REVERSE.
+     */
+    private static byte getDirections(SegmentTable table, int s) {
+        byte directions = 0;
+        if (table.getCount(s, false) > 0) {
+            directions |= FORWARD;
+        }
+        if (table.getCount(s, true) > 0) {
+            directions |= REVERSE;
+        }
+        return directions;
+    }
+
+    private void addNormalized(double x0, double y0, double x1, double y1, byte directions) {
+        if (counting) {
+            if ((directions & FORWARD) != 0) {
+                table.count(x0, y0, x1, y1, 0, false);
+            }
+            if ((directions & REVERSE) != 0) {
+                table.count(x0, y0, x1, y1, 0, true);
+            }
+        } else {
+            table.toggle(x0, y0, x1, y1, 0, directions == REVERSE);
+        }
+    }
+
+    /** getNumSegments returns the number of segments held, including
+     *  counted segments that are no longer on the boundary.
+     */
+    public int getNumSegments() {
+        return table.size();
+    }
+
+    /** getNumUniqueSegments returns the number of segments on the boundary
+     *  of the union.
+     */
+    public int getNumUniqueSegments() {
+        return table.getNumBoundary();
+    }
+
+    /** getUniqueDirectedSegments returns the segments on the boundary of
+     *  the union, each directed so that the interior of the union lies on
+     *  its right.
+     */
+    public SegmentBuffer getUniqueDirectedSegments() {
+        SegmentBuffer segments = new SegmentBuffer(Math.max(table.getNumBoundary(), 1));
+        for (int s = table.nextBoundary(0); s >= 0; s = table.nextBoundary(s + 1)) {
+            if (table.isReversed(s)) {
+                segments.add(table.getX1(s), table.getY1(s), table.getX0(s), table.getY0(s));
+            } else {
+                segments.add(table.getX0(s), table.getY0(s), table.getX1(s), table.getY1(s));
+            }
+        }
+        return segments;
+    }
+
+    /** getUnion builds the union from the segments on its boundary, as
+     *  would be returned by
+     *  {@link CoverageUnion#union(Collection, GeometryFactory, UnionParameters)}
+     *  on all of the features added to this PartialUnion and those merged
+     *  into it.
+     * @param gfact GeometryFactory used to construct the union
+     * @return the union, or an empty Point if no segments remain on the
+     *         boundary
+     */
+    public Geometry getUnion(GeometryFactory gfact) {
+        if (table.getNumBoundary() == 0) {
+            return gfact.createPoint((Coordinate) null);
+        }
+        return CoverageUnion.buildResult(getUniqueDirectedSegments(), null, gfact, params);
+    }
+
+    /** write writes the segments of this PartialUnion to a stream.  The
+     *  stream is flushed but not closed.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeByte(counting ? COUNTED : 0);
+        data.writeInt(table.size());
+        for (int s = table.next(0); s >= 0; s = table.next(s + 1)) {
+            data.writeByte(getDirections(table, s));
+            data.writeDouble(table.getX0(s));
+            data.writeDouble(table.getY0(s));
+            data.writeDouble(table.getX1(s));
+            data.writeDouble(table.getY1(s));
+        }
+        data.flush();
+    }
+
+    /** toByteArray returns the segments of this PartialUnion in the form
+     *  written by {@link #write(OutputStream)}.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(9 + 33 * table.size());
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /** read reads a PartialUnion written by {@link #write(OutputStream)},
+     *  using the default UnionParameters to build the union.
+     */
+    public static PartialUnion read(InputStream in) throws IOException {
+        return read(in, new UnionParameters());
+    }
+
+    /** read reads a PartialUnion written by {@link #write(OutputStream)}.
+     *  Whether segments are counted is read from the stream, and the
+     *  supplied UnionParameters are used for everything else.  Nothing is
+     *  read past the end of the PartialUnion, so the stream should be
+     *  buffered by the caller.
+     * @throws IOException if the stream cannot be read or does not hold a
+     *         PartialUnion
+     */
+    public static PartialUnion read(InputStream in, UnionParameters params) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Stream does not contain a PartialUnion");
+        }
+        boolean counting = (data.readByte() & COUNTED) != 0;
+        int n = data.readInt();
+        PartialUnion partial = new PartialUnion(new SegmentTable(n), counting, params);
+        for (int i = 0; i < n; i++) {
+            byte directions = data.readByte();
+            double x0 = data.readDouble();
+            double y0 = data.readDouble();
+            double x1 = data.readDouble();
+            double y1 = data.readDouble();
+            partial.addNormalized(x0, y0, x1, y1, directions);
+        }
+        return partial;
+    }
+
+    public static PartialUnion fromByteArray(byte[] bytes) throws IOException {
+        return read(new ByteArrayInputStream(bytes));
+    }
+}
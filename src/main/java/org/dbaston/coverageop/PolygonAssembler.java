@@ -1,22 +1,401 @@
 package org.dbaston.coverageop;
 
+import com.vividsolutions.jts.algorithm.RayCrossingCounter;
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.algorithm.locate.PointOnGeometryLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Location;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
 import com.vividsolutions.jts.index.strtree.STRtree;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-/**
- *
+/** PolygonAssembler constructs Polygons from a set of rings, by determining
+ *  which rings are holes of which shells.  Each hole is assigned to the
+ *  smallest shell that contains it, using a single vertex of the hole and
+ *  a prepared point-in-ring test, and each Polygon is constructed once,
+ *  with all of its holes.
  * @author dbaston
  */
 public class PolygonAssembler {
+    /** A PolygonSink receives the Polygons constructed by
+     *  {@link PolygonAssembler#assembleTo}, each as soon as its holes are
+     *  known.
+     */
+    public interface PolygonSink {
+        void addPolygon(Polygon p);
+    }
+    
+    /** Rings with more points than this are located against using an
+     *  IndexedPointInAreaLocator rather than a simple ray-crossing count.
+     */
+    private static final int INDEXED_LOCATOR_MIN_POINTS = 64;
+    
+    /** A Ring wraps a LinearRing with the information needed to locate
+     *  points against it.
+     */
+    private static class Ring {
+        final LinearRing ring;
+        final Envelope env;
+        final double area;
+        PointOnGeometryLocator locator;
+        int shellIndex = -1;  // index of this ring among the shells
+        int depth;            // number of rings enclosing this ring
+        
+        Ring(LinearRing ring) {
+            this.ring = ring;
+            this.env = ring.getEnvelopeInternal();
+            this.area = Math.abs(signedArea(ring.getCoordinateSequence()));
+        }
+        
+        /** locate determines the location of a point relative to the area
+         *  enclosed by this ring.
+         */
+        int locate(Coordinate c) {
+            if (!env.intersects(c)) {
+                return Location.EXTERIOR;
+            }
+            if (ring.getNumPoints() < INDEXED_LOCATOR_MIN_POINTS) {
+                return RayCrossingCounter.locatePointInRing(c, ring.getCoordinateSequence());
+            }
+            synchronized (this) {
+                if (locator == null) {
+                    locator = new IndexedPointInAreaLocator(ring.getFactory().createPolygon(ring, null));
+                    // The locator builds its index lazily, on the first
+                    // query, so query it here to make it safe to share
+                    // between threads.
+                    locator.locate(c);
+                }
+            }
+            return locator.locate(c);
+        }
+        
+        /** locateRing determines if the supplied ring lies inside or outside
+         *  of this ring, assuming that the two rings do not cross.  The first
+         *  vertex of the supplied ring that does not lie on this ring is
+         *  tested.
+         * @return Location.INTERIOR, Location.EXTERIOR, or Location.BOUNDARY
+         *         if every vertex lies on this ring
+         */
+        int locateRing(Ring other) {
+            if (!env.covers(other.env)) {
+                return Location.EXTERIOR;
+            }
+            CoordinateSequence seq = other.ring.getCoordinateSequence();
+            Coordinate c = new Coordinate();
+            for (int i = 0; i < seq.size(); i++) {
+                seq.getCoordinate(i, c);
+                int loc = locate(c);
+                if (loc != Location.BOUNDARY) {
+                    return loc;
+                }
+            }
+            return Location.BOUNDARY;
+        }
+    }
+    
+    /** signedArea computes the area of a closed ring using the shoelace
+     *  formula, reading ordinates directly from its CoordinateSequence.
+     *  The area is positive if the ring is counter-clockwise.  Ordinates
+     *  are taken relative to the first vertex to limit loss of precision.
+     */
+    static double signedArea(CoordinateSequence seq) {
+        double x0 = seq.getX(0);
+        double y0 = seq.getY(0);
+        double area2 = 0;
+        for (int i = 1; i < seq.size() - 2; i++) {
+            area2 += (seq.getX(i) - x0) * (seq.getY(i + 1) - y0) - (seq.getX(i + 1) - x0) * (seq.getY(i) - y0);
+        }
+        return area2 / 2;
+    }
+    
+    private static STRtree buildIndex(Ring[] rings) {
+        STRtree index = new STRtree();
+        for (Ring r : rings) {
+            index.insert(r.env, r);
+        }
+        index.build();
+        return index;
+    }
+    
+    /** findContainingRing returns the smallest of the indexed rings that
+     *  contains the supplied ring, or null if no indexed ring contains it.
+     */
+    private static Ring findContainingRing(STRtree index, Ring r) {
+        return findContainingRing(index.query(r.env), r);
+    }
+    
+    /** findContainingRing returns the smallest of the candidate rings that
+     *  contains the supplied ring, or null if no candidate contains it.
+     */
+    private static Ring findContainingRing(List<?> candidates, Ring r) {
+        Ring best = null;
+        for (Object o : candidates) {
+            Ring candidate = (Ring) o;
+            if (candidate == r || candidate.area <= r.area) {
+                continue;
+            }
+            if (best != null && candidate.area >= best.area) {
+                continue;
+            }
+            if (candidate.locateRing(r) == Location.INTERIOR) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+    
+    private static Ring[] toRings(Collection<LinearRing> rings) {
+        Ring[] result = new Ring[rings.size()];
+        int i = 0;
+        for (LinearRing r : rings) {
+            result[i++] = new Ring(r);
+        }
+        return result;
+    }
+    
+    private static void addHole(List<List<LinearRing>> holesOf, int shellIndex, LinearRing hole) {
+        if (holesOf.get(shellIndex) == null) {
+            holesOf.set(shellIndex, new ArrayList<LinearRing>());
+        }
+        holesOf.get(shellIndex).add(hole);
+    }
+    
+    /** createPolygons constructs one Polygon per shell, using the holes
+     *  assigned to each shell.
+     */
+    private static List<Polygon> createPolygons(GeometryFactory gfact, Ring[] shells, List<List<LinearRing>> holesOf) {
+        List<Polygon> polys = new ArrayList<>(shells.length);
+        for (int i = 0; i < shells.length; i++) {
+            List<LinearRing> holes = holesOf.get(i);
+            polys.add(gfact.createPolygon(shells[i].ring,
+                    holes == null ? null : holes.toArray(new LinearRing[holes.size()])));
+        }
+        return polys;
+    }
+    
+    /** getAssembled constructs Polygons from rings that are already known to
+     *  be shells or holes, such as the rings produced by a
+     *  {@link RingTracer}.  Each hole is assigned to the smallest shell that
+     *  contains it.  Holes that are not contained by any shell are returned
+     *  as Polygons of their own.
+     * @param shells
+     * @param holes
+     * @return Array of Polygons, one per shell
+     */
+    public static Polygon[] getAssembled (List<LinearRing> shells, List<LinearRing> holes) {
+        return getAssembled(shells, holes, null);
+    }
+    
+    /** HoleLocator finds the containing shell of each hole in a range,
+     *  splitting the range among fork-join tasks.
+     */
+    private static class HoleLocator extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int MIN_HOLES_PER_TASK = 256;
+        
+        private final STRtree shellIndex;
+        private final List<LinearRing> holes;
+        private final Ring[] shellOf;
+        private final int from;
+        private final int to;
+        
+        HoleLocator(STRtree shellIndex, List<LinearRing> holes, Ring[] shellOf, int from, int to) {
+            this.shellIndex = shellIndex;
+            this.holes = holes;
+            this.shellOf = shellOf;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= MIN_HOLES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    shellOf[i] = findContainingRing(shellIndex, new Ring(holes.get(i)));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new HoleLocator(shellIndex, holes, shellOf, from, mid),
+                      new HoleLocator(shellIndex, holes, shellOf, mid, to));
+        }
+    }
+    
+    /** getAssembled constructs Polygons from rings that are already known to
+     *  be shells or holes, optionally finding the shell of each hole in
+     *  parallel.  Holes are located independently of each other, so this
+     *  does not depend on the hole and shell belonging to the same
+     *  connected component of the boundary, which in general they do not.
+     * @param shells
+     * @param holes
+     * @param pool ForkJoinPool on which to locate the holes, or null to
+     *             locate them serially
+     * @return Array of Polygons, one per shell
+     */
+    public static Polygon[] getAssembled (List<LinearRing> shells, List<LinearRing> holes, ForkJoinPool pool) {
+        if (shells.isEmpty() && holes.isEmpty()) {
+            return new Polygon[0];
+        }
+        GeometryFactory gfact = (shells.isEmpty() ? holes : shells).get(0).getFactory();
+        
+        Ring[] shellRings = toRings(shells);
+        List<List<LinearRing>> holesOf = new ArrayList<>(shellRings.length);
+        for (int i = 0; i < shellRings.length; i++) {
+            holesOf.add(null);
+        }
+        
+        List<Polygon> orphans = new ArrayList<>();
+        if (!holes.isEmpty()) {
+            for (int i = 0; i < shellRings.length; i++) {
+                shellRings[i].shellIndex = i;
+            }
+            STRtree shellIndex = buildIndex(shellRings);
+            
+            Ring[] shellOf = new Ring[holes.size()];
+            HoleLocator locator = new HoleLocator(shellIndex, holes, shellOf, 0, holes.size());
+            if (pool == null) {
+                locator.compute();
+            } else {
+                pool.invoke(locator);
+            }
+            
+            for (int i = 0; i < shellOf.length; i++) {
+                LinearRing hole = holes.get(i);
+                Ring shell = shellOf[i];
+                if (shell == null) {
+                    orphans.add(gfact.createPolygon(hole, null));
+                    continue;
+                }
+                addHole(holesOf, shell.shellIndex, hole);
+            }
+        }
+        
+        List<Polygon> polys = createPolygons(gfact, shellRings, holesOf);
+        polys.addAll(orphans);
+        return polys.toArray(new Polygon[polys.size()]);
+    }
+    
+    /** MAX_X orders Rings by the maximum x-ordinate of their envelope. */
+    private static final Comparator<Ring> MAX_X = new Comparator<Ring>() {
+        @Override
+        public int compare(Ring a, Ring b) {
+            return Double.compare(a.env.getMaxX(), b.env.getMaxX());
+        }
+    };
+    
+    /** MIN_X orders Rings by the minimum x-ordinate of their envelope. */
+    private static final Comparator<Ring> MIN_X = new Comparator<Ring>() {
+        @Override
+        public int compare(Ring a, Ring b) {
+            return Double.compare(a.env.getMinX(), b.env.getMinX());
+        }
+    };
+    
+    /** assembleTo constructs Polygons from rings that are already known to
+     *  be shells or holes, as does {@link #getAssembled(List, List)}, but
+     *  passes each Polygon to a PolygonSink as soon as it is complete,
+     *  rather than returning all of them at once.
+     *
+     *  Holes are visited in order of the minimum x-ordinate of their
+     *  envelope, sweeping from left to right.  A shell can only contain a
+     *  hole if its envelope begins at or before the hole's, so shells are
+     *  added to a Quadtree of open shells as the sweep reaches them.  Once
+     *  the sweep has passed the end of a shell's envelope, no hole that
+     *  remains can lie inside it, so its Polygon is constructed and passed
+     *  to the sink, and the shell is dropped.  The supplied lists are
+     *  cleared, so that rings can be reclaimed once their Polygons have been
+     *  passed to the sink.
+     * @param shells
+     * @param holes
+     * @param sink PolygonSink to receive one Polygon per shell, and one per
+     *             hole not contained by any shell
+     * @return the number of Polygons passed to the sink
+     */
+    public static long assembleTo(List<LinearRing> shells, List<LinearRing> holes, PolygonSink sink) {
+        if (shells.isEmpty() && holes.isEmpty()) {
+            return 0;
+        }
+        GeometryFactory gfact = (shells.isEmpty() ? holes : shells).get(0).getFactory();
+        
+        Ring[] shellRings = toRings(shells);
+        Ring[] holeRings = toRings(holes);
+        shells.clear();
+        holes.clear();
+        Arrays.sort(shellRings, MIN_X);
+        Arrays.sort(holeRings, MIN_X);
+        
+        List<List<LinearRing>> holesOf = new ArrayList<>(shellRings.length);
+        for (int i = 0; i < shellRings.length; i++) {
+            shellRings[i].shellIndex = i;
+            holesOf.add(null);
+        }
+        
+        Quadtree open = new Quadtree();
+        PriorityQueue<Ring> byEnd = new PriorityQueue<>(Math.max(shellRings.length, 1), MAX_X);
+        long emitted = 0;
+        int nextShell = 0;
+        for (int i = 0; i < holeRings.length; i++) {
+            Ring hole = holeRings[i];
+            holeRings[i] = null;
+            double x = hole.env.getMinX();
+            
+            while (nextShell < shellRings.length && shellRings[nextShell].env.getMinX() <= x) {
+                open.insert(shellRings[nextShell].env, shellRings[nextShell]);
+                byEnd.add(shellRings[nextShell]);
+                shellRings[nextShell] = null;
+                nextShell++;
+            }
+            while (!byEnd.isEmpty() && byEnd.peek().env.getMaxX() < x) {
+                Ring shell = byEnd.poll();
+                open.remove(shell.env, shell);
+                emit(gfact, shell, holesOf, sink);
+                emitted++;
+            }
+            
+            Ring shell = findContainingRing(open.query(hole.env), hole);
+            if (shell == null) {
+                sink.addPolygon(gfact.createPolygon(hole.ring, null));
+                emitted++;
+            } else {
+                addHole(holesOf, shell.shellIndex, hole.ring);
+            }
+        }
+        
+        while (!byEnd.isEmpty()) {
+            emit(gfact, byEnd.poll(), holesOf, sink);
+            emitted++;
+        }
+        for (int i = nextShell; i < shellRings.length; i++) {
+            emit(gfact, shellRings[i], holesOf, sink);
+            shellRings[i] = null;
+            emitted++;
+        }
+        return emitted;
+    }
+    
+    /** emit constructs the Polygon of a shell and passes it to a sink,
+     *  releasing the holes that were assigned to the shell.
+     */
+    private static void emit(GeometryFactory gfact, Ring shell, List<List<LinearRing>> holesOf, PolygonSink sink) {
+        List<LinearRing> holes = holesOf.set(shell.shellIndex, null);
+        sink.addPolygon(gfact.createPolygon(shell.ring,
+                holes == null ? null : holes.toArray(new LinearRing[holes.size()])));
+    }
+    
     /** addInteriorRing constructs a new Polygon using the shell and interior
      *  rings of p, plus an additional supplied interior ring.  It does not
      *  check that the resulting polygon is valid.
@@ -45,8 +424,8 @@ public class PolygonAssembler {
             throw new IllegalArgumentException("Supplied ring geometry must be a LinearRing, closed LineString, or a Polygon with no interior rings.");
         }
 
-        for (int i = 1; i < p.getNumInteriorRing(); i++) {
-            holes[i] = gfact.createLinearRing(p.getInteriorRingN(i).getCoordinateSequence());
+        for (int i = 0; i < p.getNumInteriorRing(); i++) {
+            holes[i+1] = gfact.createLinearRing(p.getInteriorRingN(i).getCoordinateSequence());
         }
         
         return gfact.createPolygon(shell, holes);
@@ -62,82 +441,60 @@ public class PolygonAssembler {
         Polygon[] polys = new Polygon[rings.size()];
         int i = 0;
         for (LineString l : rings) {
-            polys[i] = gfact.createPolygon(l.getCoordinates());
+            polys[i] = gfact.createPolygon(gfact.createLinearRing(l.getCoordinateSequence()), null);
             i++;
         }
         
         return getAssembled(polys);
     }
     
+    /** getAssembled constructs Polygons from rings of unknown orientation,
+     *  each supplied as the exterior ring of a Polygon.  Rings are processed
+     *  from largest to smallest area, and each ring is nested within the
+     *  smallest larger ring that contains it.  Rings at an even depth of the
+     *  resulting tree are shells, and rings at an odd depth are holes of
+     *  their parent.
+     * @param polys
+     * @return Array of Polygons, one per shell
+     */
     public static Polygon[] getAssembled (Polygon[] polys) {
-        // Sort the array so that, when iterating positively over the array,
-        // polygon shells are encountered before their potential holes.
-        Arrays.sort(polys, new Comparator<Geometry>() {
-            @Override
-            public int compare(Geometry a, Geometry b) {
-                // If Geometry a could be contained within Geometry b
-                // (ie, a is a hole within the shell of b), this function
-                // must return 1 or 0.  The function may return 1 or 0
-                // even if it is impossible that b is a hole within a.
-                return Double.compare(a.getEnvelopeInternal().getMinX(),
-                                      b.getEnvelopeInternal().getMinY());
-                
-                //return ((Double) b.getEnvelopeInternal().getArea()).compareTo(
-                //        a.getEnvelopeInternal().getArea());
-            }
-        });
+        if (polys.length == 0) {
+            return new Polygon[0];
+        }
+        GeometryFactory gfact = polys[0].getFactory();
         
-        // Build a spatial index on the rings (represented as polygons)
-        STRtree polyIndex = new STRtree();
+        Ring[] rings = new Ring[polys.length];
         for (int i = 0; i < polys.length; i++) {
-            polyIndex.insert(polys[i].getEnvelopeInternal(), i);
+            rings[i] = new Ring((LinearRing) polys[i].getExteriorRing());
         }
-
-        int numPolys = polys.length;
-        // Identify polygons that should be considered interior rings of other polygons
-        for (int i = 0; i < polys.length; i++) {
-            if (polys[i] == null) {
-                // This polygon has already been identified as an interior ring
-                // of something else...skip it.
-                numPolys -= 1;
-                continue;
+        
+        // Sort the rings so that a containing ring is always processed
+        // before the rings that it contains.
+        Arrays.sort(rings, new Comparator<Ring>() {
+            @Override
+            public int compare(Ring a, Ring b) {
+                return Double.compare(b.area, a.area);
             }
+        });
+        
+        STRtree ringIndex = buildIndex(rings);
+        List<Ring> shells = new ArrayList<>();
+        List<List<LinearRing>> holesOf = new ArrayList<>();
+        
+        for (Ring r : rings) {
+            Ring parent = findContainingRing(ringIndex, r);
+            r.depth = parent == null ? 0 : parent.depth + 1;
             
-            List<Integer> potentialInteriorRings = polyIndex.query(polys[i].getEnvelopeInternal());
-            
-            // If multiple rings are within the exterior ring of a polygon,
-            // the outermost ring needs to be located first.
-            Collections.sort(potentialInteriorRings); 
-                                                      
-            for (int j : potentialInteriorRings) {
-                if (i < j   // only j > i could be an interior ring of i, because an interior
-                            // ring's envelope cannot have a minimum X coordinate greater than
-                            // its containing shell
-                        && polys[j] != null                // make sure this polygon is not already
-                                                           // identified as an interior ring of
-                                                           // something else.  what would appear to be
-                                                           // an interior ring of an interior ring should
-                                                           // be considered a separate exterior ring in a 
-                                                           // separate polygon
-                        && polys[j].getEnvelopeInternal().intersects(polys[i].getEnvelopeInternal()) // bbox isect
-                        && polys[i].contains(polys[j])) { // ring is inside poly
-                    
-                    polys[i] = addInteriorRing(polys[i], polys[j]);
-                    polys[j] = null;
-                }
+            if (r.depth % 2 == 0) {
+                r.shellIndex = shells.size();
+                shells.add(r);
+                holesOf.add(null);
+            } else {
+                addHole(holesOf, parent.shellIndex, r.ring);
             }
         }
-  
-        Polygon[] polyArray = new Polygon[numPolys];
-        {
-            int i = 0;
-            for (Polygon p : polys) {
-                if (p != null) {
-                    polyArray[i++] = p;
-                }
-            }
-        }
-
-        return polyArray;
+        
+        List<Polygon> polyList = createPolygons(gfact, shells.toArray(new Ring[shells.size()]), holesOf);
+        return polyList.toArray(new Polygon[polyList.size()]);
     }
 }
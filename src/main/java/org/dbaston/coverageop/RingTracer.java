@@ -0,0 +1,442 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/** A RingTracer constructs the rings of a polygonal union directly from its
+ *  unique boundary segments.  Each segment is treated as a half-edge,
+ *  directed so that the interior of the union lies on its right, as
+ *  produced by {@link DuplicateSegmentFinder#getUniqueDirectedSegments()}.
+ *
+ *  Half-edges are sorted by their origin and then by angle, so that the
+ *  half-edges leaving each vertex are contiguous.  Rings are traced in two
+ *  steps, in the same way as the maximal and minimal edge rings of the JTS
+ *  overlay operations.  First, maximal rings are traced by following, at
+ *  each vertex, the outgoing half-edge that is reached first when turning
+ *  counter-clockwise from the incoming half-edge, so that each ring bounds
+ *  a single interior wedge at each vertex.  This separates the halves of a
+ *  bow-tie, but joins a hole to a shell that it touches.  Maximal rings
+ *  that pass through a vertex more than once are then split into minimal
+ *  rings by turning clockwise instead, considering only the half-edges of
+ *  the same maximal ring.  Because the interior lies on the right of each
+ *  half-edge, shells are traced clockwise and holes counter-clockwise, so
+ *  no polygonization or point-in-polygon test is needed to tell them
+ *  apart.
+ *
+ *  Rings never span more than one connected component of the boundary, so
+ *  when a ForkJoinPool is supplied, the components are labelled using
+ *  union-find over the segment endpoints and traced in parallel.
+ *
+ *  If the segments do not form closed rings, as may happen with invalid or
+ *  incorrectly noded inputs, the half-edges that cannot be closed into a
+ *  ring are discarded.
+ * @author dbaston
+ */
+public class RingTracer {
+    private final SegmentBuffer edges;
+    private final GeometryFactory gfact;
+    private final double[] angles;
+    private final Integer[] order;
+    private final ForkJoinPool pool;
+    private int[] ringOf;     // maximal ring of each half-edge
+    private boolean[] used;   // whether each half-edge is in a minimal ring
+
+    private List<LinearRing> shells;
+    private List<LinearRing> holes;
+
+    /** Below this number of half-edges, rings are always traced serially.
+     */
+    private static final int MIN_PARALLEL_EDGES = 1 << 14;
+
+    /** A RingCollector holds the rings traced by a single task, and the
+     *  scratch lists used to trace them.
+     */
+    private static class RingCollector {
+        final List<LinearRing> shells = new ArrayList<>();
+        final List<LinearRing> holes = new ArrayList<>();
+        final List<Integer> maximalRing = new ArrayList<>();
+        final List<Integer> minimalRing = new ArrayList<>();
+    }
+
+    public RingTracer(SegmentBuffer edges, GeometryFactory gfact) {
+        this(edges, gfact, null);
+    }
+
+    /** Creates a RingTracer that traces the rings of each connected
+     *  component of the boundary as a separate task.
+     * @param edges directed unique boundary segments
+     * @param gfact GeometryFactory used to construct the rings
+     * @param pool ForkJoinPool on which to trace the components, or null to
+     *             trace them serially
+     */
+    public RingTracer(final SegmentBuffer edges, GeometryFactory gfact, ForkJoinPool pool) {
+        this.edges = edges;
+        this.gfact = gfact;
+        this.pool = pool;
+
+        int n = edges.size();
+        angles = new double[n];
+        order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            angles[i] = Math.atan2(edges.getY1(i) - edges.getY0(i), edges.getX1(i) - edges.getX0(i));
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = compareOrigin(a, edges.getX0(b), edges.getY0(b));
+                if (c != 0) {
+                    return c;
+                }
+                return Double.compare(angles[a], angles[b]);
+            }
+        });
+    }
+
+    /** compareOrigin compares the origin of a half-edge with a point.
+     */
+    private int compareOrigin(int e, double x, double y) {
+        int c = Double.compare(edges.getX0(e) + 0.0, x + 0.0);
+        if (c != 0) {
+            return c;
+        }
+        return Double.compare(edges.getY0(e) + 0.0, y + 0.0);
+    }
+
+    /** firstOutgoing returns the position in the sorted order of the first
+     *  half-edge whose origin is not less than the supplied point.
+     */
+    private int firstOutgoing(double x, double y) {
+        int lo = 0;
+        int hi = order.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareOrigin(order[mid], x, y) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** nextEdge returns the half-edge that follows the supplied half-edge
+     *  in its ring, or -1 if no suitable half-edge leaves its destination.
+     * @param e the incoming half-edge
+     * @param ring if non-negative, only half-edges of this maximal ring
+     *             are considered, and the outgoing half-edge reached first
+     *             when turning clockwise is selected.  Otherwise, the
+     *             outgoing half-edge reached first when turning
+     *             counter-clockwise is selected.
+     */
+    private int nextEdge(int e, int ring) {
+        double x = edges.getX1(e);
+        double y = edges.getY1(e);
+
+        int lo = firstOutgoing(x, y);
+        int hi = lo;
+        while (hi < order.length && compareOrigin(order[hi], x, y) == 0) {
+            hi++;
+        }
+
+        if (hi - lo == 1 && ring < 0) {
+            return order[lo];
+        }
+
+        // Measure the counter-clockwise turn from the reverse of the
+        // incoming half-edge to each outgoing half-edge.
+        double reverseAngle = Math.atan2(edges.getY0(e) - y, edges.getX0(e) - x);
+        int best = -1;
+        double bestTurn = 0;
+        for (int i = lo; i < hi; i++) {
+            int candidate = order[i];
+            if (ring >= 0 && ringOf[candidate] != ring) {
+                continue;
+            }
+            double turn = angles[candidate] - reverseAngle;
+            if (turn <= 0) {
+                turn += 2 * Math.PI;
+            }
+            if (best < 0 || (ring < 0 ? turn < bestTurn : turn > bestTurn)) {
+                bestTurn = turn;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /** isNode determines if more than one half-edge leaves the destination
+     *  of the supplied half-edge.
+     */
+    private boolean isNode(int e) {
+        int lo = firstOutgoing(edges.getX1(e), edges.getY1(e));
+        return lo + 1 < order.length && compareOrigin(order[lo + 1], edges.getX1(e), edges.getY1(e)) == 0;
+    }
+
+    private void trace() {
+        shells = new ArrayList<>();
+        holes = new ArrayList<>();
+
+        int n = edges.size();
+        ringOf = new int[n];
+        Arrays.fill(ringOf, -1);
+        used = new boolean[n];
+
+        if (pool == null || n < MIN_PARALLEL_EDGES) {
+            RingCollector collector = new RingCollector();
+            for (int start = 0; start < n; start++) {
+                traceFrom(start, collector);
+            }
+            shells = collector.shells;
+            holes = collector.holes;
+            return;
+        }
+
+        // Group the half-edges by connected component, and trace batches of
+        // whole components on the pool.  Every half-edge examined while
+        // tracing from a half-edge belongs to the same component, so tasks
+        // never read or write the state of another task's half-edges.
+        final int[] edgesByComponent = new int[n];
+        final int[] componentStart = labelComponents(edgesByComponent);
+        int numComponents = componentStart.length - 1;
+        int batchSize = Math.max(MIN_PARALLEL_EDGES / 4, n / (4 * pool.getParallelism()));
+
+        List<Callable<RingCollector>> tasks = new ArrayList<>();
+        int first = 0;
+        while (first < numComponents) {
+            int last = first + 1;
+            while (last < numComponents && componentStart[last] - componentStart[first] < batchSize) {
+                last++;
+            }
+            final int from = componentStart[first];
+            final int to = componentStart[last];
+            tasks.add(new Callable<RingCollector>() {
+                @Override
+                public RingCollector call() {
+                    RingCollector collector = new RingCollector();
+                    for (int i = from; i < to; i++) {
+                        traceFrom(edgesByComponent[i], collector);
+                    }
+                    return collector;
+                }
+            });
+            first = last;
+        }
+
+        for (RingCollector collector : ParallelSegmentCanceller.invokeAll(pool, tasks)) {
+            shells.addAll(collector.shells);
+            holes.addAll(collector.holes);
+        }
+    }
+
+    /** labelComponents groups the half-edges into the connected components
+     *  of the graph formed by their endpoints, using union-find over the
+     *  vertices.
+     * @param edgesByComponent filled with the half-edges, ordered so that
+     *                         the half-edges of each component are
+     *                         contiguous
+     * @return the position in edgesByComponent at which each component
+     *         begins, followed by the number of half-edges
+     */
+    private int[] labelComponents(int[] edgesByComponent) {
+        int n = order.length;
+
+        // Identify each vertex by the position of the first half-edge that
+        // leaves it.
+        int[] originOf = new int[n];
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) {
+            boolean sameOrigin = i > 0 && compareOrigin(order[i], edges.getX0(order[i-1]), edges.getY0(order[i-1])) == 0;
+            originOf[i] = sameOrigin ? originOf[i-1] : i;
+            parent[i] = i;
+        }
+
+        for (int i = 0; i < n; i++) {
+            int e = order[i];
+            int dest = firstOutgoing(edges.getX1(e), edges.getY1(e));
+            if (dest < n && compareOrigin(order[dest], edges.getX1(e), edges.getY1(e)) == 0) {
+                int a = find(parent, originOf[i]);
+                int b = find(parent, dest);
+                if (a != b) {
+                    parent[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+        }
+
+        // Counting sort of the half-edges by component root
+        int[] count = new int[n + 1];
+        int[] rootOf = new int[n];
+        for (int i = 0; i < n; i++) {
+            rootOf[i] = find(parent, originOf[i]);
+            count[rootOf[i] + 1]++;
+        }
+        int numComponents = 0;
+        for (int i = 0; i < n; i++) {
+            if (count[i + 1] > 0) {
+                numComponents++;
+            }
+            count[i + 1] += count[i];
+        }
+        int[] componentStart = new int[numComponents + 1];
+        int c = 0;
+        for (int i = 0; i < n; i++) {
+            if (count[i + 1] > count[i]) {
+                componentStart[c++] = count[i];
+            }
+        }
+        componentStart[numComponents] = n;
+
+        for (int i = 0; i < n; i++) {
+            edgesByComponent[count[rootOf[i]]++] = order[i];
+        }
+        return componentStart;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /** traceFrom traces the maximal ring beginning with the supplied
+     *  half-edge, unless the half-edge has already been traced, and adds
+     *  the minimal rings into which it splits to the collector.  The
+     *  maximal ring is identified by its first half-edge.
+     */
+    private void traceFrom(int start, RingCollector collector) {
+        if (ringOf[start] >= 0) {
+            return;
+        }
+
+        int ring = start;
+        List<Integer> maximalRing = collector.maximalRing;
+        maximalRing.clear();
+        boolean closed = false;
+        boolean hasNodes = false;
+        int e = start;
+        while (true) {
+            ringOf[e] = ring;
+            maximalRing.add(e);
+            hasNodes |= isNode(e);
+
+            int next = nextEdge(e, -1);
+            if (next == start) {
+                closed = true;
+                break;
+            }
+            if (next < 0 || ringOf[next] >= 0) {
+                break;
+            }
+            e = next;
+        }
+
+        if (!closed) {
+            return;
+        }
+        if (!hasNodes) {
+            addRing(maximalRing, collector);
+            return;
+        }
+
+        // Split the maximal ring into minimal rings
+        List<Integer> minimalRing = collector.minimalRing;
+        for (int minimalStart : maximalRing) {
+            if (used[minimalStart]) {
+                continue;
+            }
+            minimalRing.clear();
+            e = minimalStart;
+            while (true) {
+                used[e] = true;
+                minimalRing.add(e);
+                int next = nextEdge(e, ring);
+                if (next == minimalStart) {
+                    addRing(minimalRing, collector);
+                    break;
+                }
+                if (next < 0 || used[next]) {
+                    break;
+                }
+                e = next;
+            }
+        }
+    }
+
+    /** addRing constructs a LinearRing from a closed sequence of half-edges
+     *  and adds it to the shells or holes according to its orientation.
+     */
+    private void addRing(List<Integer> ringEdges, RingCollector collector) {
+        if (ringEdges.size() < 3) {
+            return;
+        }
+
+        // Write the ordinates directly into a sequence from the factory,
+        // so that no Coordinates are created unless the factory uses them.
+        CoordinateSequence seq = gfact.getCoordinateSequenceFactory().create(ringEdges.size() + 1, 2);
+        double area2 = 0;
+        int i = 0;
+        for (int e : ringEdges) {
+            seq.setOrdinate(i, CoordinateSequence.X, edges.getX0(e));
+            seq.setOrdinate(i, CoordinateSequence.Y, edges.getY0(e));
+            area2 += edges.getX0(e) * edges.getY1(e) - edges.getX1(e) * edges.getY0(e);
+            i++;
+        }
+        seq.setOrdinate(i, CoordinateSequence.X, seq.getX(0));
+        seq.setOrdinate(i, CoordinateSequence.Y, seq.getY(0));
+        LinearRing ring = gfact.createLinearRing(seq);
+
+        // A clockwise ring (negative area) has the interior of the union
+        // on its inside, and is therefore a shell.
+        if (area2 < 0) {
+            collector.shells.add(ring);
+        } else {
+            collector.holes.add(ring);
+        }
+    }
+
+    /** getNodes returns the vertices from which more than one half-edge
+     *  begins, which are the only vertices at which rings may touch.
+     */
+    public List<Coordinate> getNodes() {
+        List<Coordinate> nodes = new ArrayList<>();
+        for (int i = 1; i < order.length; i++) {
+            int e = order[i];
+            if (compareOrigin(order[i - 1], edges.getX0(e), edges.getY0(e)) == 0
+                    && (i == 1 || compareOrigin(order[i - 2], edges.getX0(e), edges.getY0(e)) != 0)) {
+                nodes.add(new Coordinate(edges.getX0(e) + 0.0, edges.getY0(e) + 0.0));
+            }
+        }
+        return nodes;
+    }
+
+    /** getShells returns the rings traced clockwise, which are the shells
+     *  of the union.
+     */
+    public List<LinearRing> getShells() {
+        if (shells == null) {
+            trace();
+        }
+        return shells;
+    }
+
+    /** getHoles returns the rings traced counter-clockwise, which are the
+     *  holes of the union.
+     */
+    public List<LinearRing> getHoles() {
+        if (holes == null) {
+            trace();
+        }
+        return holes;
+    }
+}
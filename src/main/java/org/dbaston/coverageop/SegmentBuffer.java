@@ -0,0 +1,82 @@
+package org.dbaston.coverageop;
+
+import java.util.Arrays;
+
+/** A SegmentBuffer is a growable list of tagged segments whose ordinates
+ *  are stored in a flat array of doubles.  It is used to hand batches of
+ *  segments between threads without allocating an object per segment.
+ * @author dbaston
+ */
+public class SegmentBuffer {
+    /** The largest number of segments whose four ordinates each can be
+     *  held in a single array, rounded down to a power of two. */
+    static final int MAX_CAPACITY = Integer.highestOneBit((Integer.MAX_VALUE - 8) / 4);
+
+    private double[] ordinates;
+    private int[] tags;
+    private int size;
+
+    public SegmentBuffer() {
+        this(64);
+    }
+
+    public SegmentBuffer(int initialCapacity) {
+        initialCapacity = Math.min(Math.max(initialCapacity, 1), MAX_CAPACITY);
+        ordinates = new double[4 * initialCapacity];
+        tags = new int[initialCapacity];
+    }
+
+    public void add(double x0, double y0, double x1, double y1) {
+        add(x0, y0, x1, y1, 0);
+    }
+
+    public void add(double x0, double y0, double x1, double y1, int tag) {
+        if (size == tags.length) {
+            if (size >= MAX_CAPACITY) {
+                throw new IllegalStateException("SegmentBuffer cannot hold more than "
+                        + MAX_CAPACITY + " segments");
+            }
+            int capacity = (int) Math.min(2L * size, MAX_CAPACITY);
+            ordinates = Arrays.copyOf(ordinates, 4 * capacity);
+            tags = Arrays.copyOf(tags, capacity);
+        }
+        int i = 4 * size;
+        tags[size] = tag;
+        ordinates[i]   = x0;
+        ordinates[i+1] = y0;
+        ordinates[i+2] = x1;
+        ordinates[i+3] = y1;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** clear removes all segments from the buffer without releasing its
+     *  storage.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public double getX0(int i) {
+        return ordinates[4 * i];
+    }
+
+    public double getY0(int i) {
+        return ordinates[4 * i + 1];
+    }
+
+    public double getX1(int i) {
+        return ordinates[4 * i + 2];
+    }
+
+    public double getY1(int i) {
+        return ordinates[4 * i + 3];
+    }
+
+    public int getTag(int i) {
+        return tags[i];
+    }
+}
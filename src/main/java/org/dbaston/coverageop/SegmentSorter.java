@@ -0,0 +1,228 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.LineSegment;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** A SegmentSorter cancels segments by sorting rather than hashing.  The
+ *  normalized ordinates of every segment are appended to flat primitive
+ *  arrays, with no lookup as each segment is added.  When all segments
+ *  have been added, each segment is represented by a single long holding
+ *  its hash code and its position, and these are sorted, so that equal
+ *  segments become neighbors.  A single linear sweep then cancels each
+ *  pair of equal segments, in the same way as toggling them in a
+ *  {@link SegmentTable}: a segment found an odd number of times survives,
+ *  with the direction and tag of its last occurrence.
+ *
+ *  The sort reads and writes memory sequentially, so it avoids the random
+ *  access of a hash table whose size exceeds the CPU cache.  When more than
+ *  one thread is used, the sort keys are first partitioned into buckets by
+ *  the high-order bits of their hash, which is a single pass of a radix
+ *  sort, and the buckets are then sorted in parallel.
+ * @author dbaston
+ */
+public class SegmentSorter {
+    /** Below this number of segments, segments are always sorted serially.
+     */
+    private static final int MIN_PARALLEL_SEGMENTS = 1 << 16;
+
+    /** The largest number of segments whose four ordinates each can be
+     *  held in a single array, rounded down to a power of two. */
+    static final int MAX_CAPACITY = Integer.highestOneBit((Integer.MAX_VALUE - 8) / 4);
+
+    private double[] ordinates;
+    private int[] tags;
+    private boolean[] reversed;
+    private int size;
+
+    public SegmentSorter() {
+        this(64);
+    }
+
+    /** Creates a SegmentSorter with room for initialCapacity segments.
+     *  An initialCapacity larger than a SegmentSorter can ever hold is
+     *  reduced to its maximum capacity.
+     * @param initialCapacity
+     */
+    public SegmentSorter(int initialCapacity) {
+        initialCapacity = Math.min(Math.max(initialCapacity, 1), MAX_CAPACITY);
+        ordinates = new double[4 * initialCapacity];
+        tags = new int[initialCapacity];
+        reversed = new boolean[initialCapacity];
+    }
+
+    /** add appends a directed segment with the supplied tag, normalizing
+     *  it in the same way as LineSegment.normalize() and converting any
+     *  negative zeros to positive zeros.
+     */
+    public void add(double x0, double y0, double x1, double y1, int tag) {
+        if (size == tags.length) {
+            if (size >= MAX_CAPACITY) {
+                throw new IllegalStateException("SegmentSorter cannot hold more than "
+                        + MAX_CAPACITY + " segments");
+            }
+            int capacity = (int) Math.min(2L * size, MAX_CAPACITY);
+            ordinates = Arrays.copyOf(ordinates, 4 * capacity);
+            tags = Arrays.copyOf(tags, capacity);
+            reversed = Arrays.copyOf(reversed, capacity);
+        }
+        int i = 4 * size;
+        boolean isReversed = x1 < x0 || (x1 == x0 && y1 < y0);
+        if (isReversed) {
+            ordinates[i]   = x1 + 0.0;
+            ordinates[i+1] = y1 + 0.0;
+            ordinates[i+2] = x0 + 0.0;
+            ordinates[i+3] = y0 + 0.0;
+        } else {
+            ordinates[i]   = x0 + 0.0;
+            ordinates[i+1] = y0 + 0.0;
+            ordinates[i+2] = x1 + 0.0;
+            ordinates[i+3] = y1 + 0.0;
+        }
+        tags[size] = tag;
+        reversed[size] = isReversed;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** cancel sorts the segments and returns those that were found an odd
+     *  number of times, in a toggled SegmentTable.  The segments held by
+     *  this SegmentSorter are released.
+     * @param parallelism number of threads used to sort the segments
+     * @param duplicates if not null, each cancelled segment is added to
+     *                   this Collection
+     * @return SegmentTable of the segments that were not cancelled
+     */
+    public SegmentTable cancel(int parallelism, Collection<LineSegment> duplicates) {
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            int j = 4 * i;
+            int h = SegmentTable.hash(ordinates[j], ordinates[j+1], ordinates[j+2], ordinates[j+3], tags[i]);
+            keys[i] = ((long) h << 32) | i;
+        }
+        sort(keys, parallelism);
+
+        // Equal segments have equal hashes, so they are found within a run
+        // of keys with the same hash, which is almost always of length one
+        // or two.  Within each run, positions are in ascending order.
+        SegmentTable survivors = new SegmentTable(size / 8);
+        boolean[] matched = new boolean[0];
+        int start = 0;
+        while (start < size) {
+            int end = start + 1;
+            while (end < size && (keys[end] >>> 32) == (keys[start] >>> 32)) {
+                end++;
+            }
+            if (end - start == 1) {
+                keep(survivors, (int) keys[start]);
+            } else {
+                if (matched.length < end - start) {
+                    matched = new boolean[end - start];
+                }
+                Arrays.fill(matched, 0, end - start, false);
+                for (int a = start; a < end; a++) {
+                    if (matched[a - start]) {
+                        continue;
+                    }
+                    int count = 1;
+                    int last = (int) keys[a];
+                    for (int b = a + 1; b < end; b++) {
+                        if (!matched[b - start] && equal(last, (int) keys[b])) {
+                            matched[b - start] = true;
+                            last = (int) keys[b];
+                            count++;
+                            if (duplicates != null && count % 2 == 0) {
+                                int j = 4 * last;
+                                duplicates.add(new LineSegment(ordinates[j], ordinates[j+1], ordinates[j+2], ordinates[j+3]));
+                            }
+                        }
+                    }
+                    if (count % 2 == 1) {
+                        keep(survivors, last);
+                    }
+                }
+            }
+            start = end;
+        }
+
+        ordinates = new double[4];
+        tags = new int[1];
+        reversed = new boolean[1];
+        size = 0;
+        return survivors;
+    }
+
+    private boolean equal(int a, int b) {
+        int i = 4 * a;
+        int j = 4 * b;
+        return tags[a] == tags[b]
+                && ordinates[i] == ordinates[j] && ordinates[i+1] == ordinates[j+1]
+                && ordinates[i+2] == ordinates[j+2] && ordinates[i+3] == ordinates[j+3];
+    }
+
+    private void keep(SegmentTable survivors, int s) {
+        int i = 4 * s;
+        survivors.toggle(ordinates[i], ordinates[i+1], ordinates[i+2], ordinates[i+3], tags[s], reversed[s]);
+    }
+
+    /** sort sorts an array of keys, using the supplied number of threads.
+     */
+    static void sort(final long[] keys, int parallelism) {
+        int n = keys.length;
+        if (parallelism <= 1 || n < MIN_PARALLEL_SEGMENTS) {
+            Arrays.sort(keys);
+            return;
+        }
+
+        // Partition the keys by their high-order bits, with the sign bit
+        // flipped so that buckets are in ascending order, into several
+        // buckets per thread.
+        int bits = 1;
+        while ((1 << bits) < 4 * parallelism && bits < 16) {
+            bits++;
+        }
+        int numBuckets = 1 << bits;
+        int shift = 64 - bits;
+        final int[] bucketStart = new int[numBuckets + 1];
+        for (long key : keys) {
+            bucketStart[(int) ((key ^ Long.MIN_VALUE) >>> shift) + 1]++;
+        }
+        for (int b = 0; b < numBuckets; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        long[] partitioned = new long[n];
+        int[] next = Arrays.copyOf(bucketStart, numBuckets);
+        for (long key : keys) {
+            partitioned[next[(int) ((key ^ Long.MIN_VALUE) >>> shift)]++] = key;
+        }
+
+        final long[] buckets = partitioned;
+        List<Callable<Void>> tasks = new ArrayList<>(numBuckets);
+        for (int b = 0; b < numBuckets; b++) {
+            final int from = bucketStart[b];
+            final int to = bucketStart[b + 1];
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Arrays.sort(buckets, from, to);
+                    System.arraycopy(buckets, from, keys, from, to - from);
+                    return null;
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            ParallelSegmentCanceller.invokeAll(executor, tasks);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package org.dbaston.coverageop;
+
+import java.util.Arrays;
+
+/** A SegmentTable is a hash set of normalized line segments that stores
+ *  segment endpoints as raw double bits in flat primitive arrays, using
+ *  open addressing with linear probing.  Unlike a HashSet of LineSegment
+ *  objects, no objects are allocated when a segment is added or removed,
+ *  which keeps memory use and garbage collection pressure low for large
+ *  coverages.
+ *
+ *  Segments are identified by the bit patterns of their ordinates and by
+ *  an integer tag, so that segments of different groups (for example, the
+ *  groups of a dissolve by attribute) do not cancel each other.  Callers
+ *  are expected to normalize segments (and to convert -0.0 to 0.0) before
+ *  supplying them.  The table also records, for each segment, whether the
+ *  segment was directed from its second point to its first point when it
+ *  was inserted, and may record the owner of each segment, such as the
+ *  index of the feature from which it was extracted.  Slots are visited
+ *  using {@link #next(int)}:
+ *  <pre>
+ *  for (int s = table.next(0); s >= 0; s = table.next(s + 1)) { ... }
+ *  </pre>
+ *
+ *  A table is used either with {@link #toggle}, which removes a segment
+ *  when it is found a second time, or with {@link #count}, which keeps
+ *  every segment and counts its occurrences in each direction.  A counted
+ *  segment is on the boundary of the union if it has been found in only
+ *  one direction, however many times; the slots of such segments are
+ *  visited using {@link #nextBoundary(int)}.
+ * @author dbaston
+ */
+public class SegmentTable {
+    private static final double MAX_LOAD = 0.6;
+    private static final int MIN_CAPACITY = 16;
+
+    /** The largest capacity whose array of four keys per slot can be
+     *  allocated, rounded down to a power of two. */
+    static final int MAX_CAPACITY = Integer.highestOneBit((Integer.MAX_VALUE - 8) / 4);
+
+    private long[] keys;    // x0, y0, x1, y1 bits for each slot
+    private int[]  tags;    // group tag of each slot
+    private boolean[] reversed; // direction of each slot
+    private int[]  hashes;  // cached hash of each slot; zero if empty
+    private int[]  owners;  // owner of each slot, if owners are recorded
+    private int[]  counts;  // forward count in the low 16 bits and reverse
+                            // count in the high 16 bits, if counted
+    private int    mask;
+    private int    size;
+    private int    numInterior;
+    private int    numOverlapping;
+    private int    resizeThreshold;
+
+    public SegmentTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /** Creates a SegmentTable that can hold expectedSize segments
+     *  before it needs to be resized.  An expectedSize larger than the
+     *  table can ever hold is reduced to its maximum capacity.
+     * @param expectedSize
+     */
+    public SegmentTable(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long needed = (long) Math.ceil(Math.max(expectedSize, 1) / MAX_LOAD);
+        int capacity = MIN_CAPACITY;
+        while (capacity < needed && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[4 * capacity];
+        tags = new int[capacity];
+        reversed = new boolean[capacity];
+        hashes = new int[capacity];
+        if (owners != null) {
+            owners = new int[capacity];
+        }
+        if (counts != null) {
+            counts = new int[capacity];
+        }
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * MAX_LOAD);
+    }
+
+    /** hash returns the hash code that a SegmentTable uses for the
+     *  supplied normalized segment.  The low-order bits of the hash select a
+     *  slot in the table, so callers distributing segments among several
+     *  tables should use the high-order bits.
+     */
+    public static int hash(double x0, double y0, double x1, double y1, int tag) {
+        return hash(Double.doubleToLongBits(x0), Double.doubleToLongBits(y0),
+                    Double.doubleToLongBits(x1), Double.doubleToLongBits(y1), tag);
+    }
+
+    private static int hash(long a, long b, long c, long d, int tag) {
+        long h = a + tag;
+        h = h * 0x9E3779B97F4A7C15L + b;
+        h = h * 0x9E3779B97F4A7C15L + c;
+        h = h * 0x9E3779B97F4A7C15L + d;
+        // Finalization step from MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        int result = (int) h;
+        return result == 0 ? 1 : result;
+    }
+
+    /** toggle removes the supplied segment from the table if it is present,
+     *  and inserts it otherwise.
+     * @return true if the segment was inserted, false if it was removed
+     */
+    public boolean toggle(double x0, double y0, double x1, double y1) {
+        return toggle(x0, y0, x1, y1, 0);
+    }
+
+    /** toggle removes the supplied segment from the table if it is present
+     *  with the supplied tag, and inserts it otherwise.
+     * @return true if the segment was inserted, false if it was removed
+     */
+    public boolean toggle(double x0, double y0, double x1, double y1, int tag) {
+        return toggle(x0, y0, x1, y1, tag, false);
+    }
+
+    /** toggle removes the supplied segment from the table if it is present
+     *  with the supplied tag, and inserts it otherwise.
+     * @param isReversed true if the segment is directed from (x1, y1) to
+     *                   (x0, y0).  The direction is only recorded if the
+     *                   segment is inserted.
+     * @return true if the segment was inserted, false if it was removed
+     */
+    public boolean toggle(double x0, double y0, double x1, double y1, int tag, boolean isReversed) {
+        return toggle(x0, y0, x1, y1, tag, isReversed, 0) < 0;
+    }
+
+    /** toggleOwned removes the supplied segment from the table if it is
+     *  present with the supplied tag, and otherwise inserts it with the
+     *  supplied owner.
+     * @param isReversed true if the segment is directed from (x1, y1) to
+     *                   (x0, y0)
+     * @param owner a non-negative owner, recorded if the segment is
+     *              inserted
+     * @return -1 if the segment was inserted, or the owner of the segment
+     *         that was removed
+     */
+    public int toggleOwned(double x0, double y0, double x1, double y1, int tag, boolean isReversed, int owner) {
+        if (owners == null) {
+            owners = new int[hashes.length];
+        }
+        return toggle(x0, y0, x1, y1, tag, isReversed, owner);
+    }
+
+    private int toggle(double x0, double y0, double x1, double y1, int tag, boolean isReversed, int owner) {
+        long a = Double.doubleToLongBits(x0);
+        long b = Double.doubleToLongBits(y0);
+        long c = Double.doubleToLongBits(x1);
+        long d = Double.doubleToLongBits(y1);
+        int h = hash(a, b, c, d, tag);
+
+        int slot = h & mask;
+        while (hashes[slot] != 0) {
+            if (hashes[slot] == h && matches(slot, a, b, c, d, tag)) {
+                int removedOwner = owners == null ? 0 : owners[slot];
+                removeSlot(slot);
+                return removedOwner;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        slot = insert(slot, h, a, b, c, d, tag);
+        reversed[slot] = isReversed;
+        if (owners != null) {
+            owners[slot] = owner;
+        }
+        return -1;
+    }
+
+    /** count records an occurrence of the supplied segment with the
+     *  supplied tag, inserting it if it is not present.  Counts saturate at
+     *  65535 occurrences in each direction.
+     * @param isReversed true if the segment is directed from (x1, y1) to
+     *                   (x0, y0)
+     * @return the number of occurrences of the segment in either direction,
+     *         including this one
+     */
+    public int count(double x0, double y0, double x1, double y1, int tag, boolean isReversed) {
+        if (counts == null) {
+            counts = new int[hashes.length];
+        }
+        long a = Double.doubleToLongBits(x0);
+        long b = Double.doubleToLongBits(y0);
+        long c = Double.doubleToLongBits(x1);
+        long d = Double.doubleToLongBits(y1);
+        int h = hash(a, b, c, d, tag);
+
+        int slot = h & mask;
+        while (hashes[slot] != 0) {
+            if (hashes[slot] == h && matches(slot, a, b, c, d, tag)) {
+                int forward = counts[slot] & 0xFFFF;
+                int reverse = counts[slot] >>> 16;
+                int same = isReversed ? reverse : forward;
+                int opposite = isReversed ? forward : reverse;
+                if (same == 0 && opposite > 0) {
+                    numInterior++;
+                } else if (same == 1 && opposite < 2) {
+                    numOverlapping++;
+                }
+                if (same < 0xFFFF) {
+                    counts[slot] += isReversed ? 0x10000 : 1;
+                }
+                return forward + reverse + 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        slot = insert(slot, h, a, b, c, d, tag);
+        reversed[slot] = isReversed;
+        counts[slot] = isReversed ? 0x10000 : 1;
+        return 1;
+    }
+
+    /** insert stores a segment in the supplied empty slot, or in a slot of
+     *  the resized table if the table is full.
+     * @return the slot in which the segment was stored
+     */
+    private int insert(int slot, int h, long a, long b, long c, long d, int tag) {
+        if (size >= resizeThreshold) {
+            resize();
+            slot = h & mask;
+            while (hashes[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        store(slot, h, a, b, c, d, tag);
+        size++;
+        return slot;
+    }
+
+    /** contains determines if the supplied normalized segment is present
+     *  in the table.
+     */
+    public boolean contains(double x0, double y0, double x1, double y1) {
+        return find(x0, y0, x1, y1, 0) >= 0;
+    }
+
+    /** find returns the slot holding the supplied normalized segment and
+     *  tag, or -1 if the segment is not present in the table.
+     */
+    public int find(double x0, double y0, double x1, double y1, int tag) {
+        long a = Double.doubleToLongBits(x0);
+        long b = Double.doubleToLongBits(y0);
+        long c = Double.doubleToLongBits(x1);
+        long d = Double.doubleToLongBits(y1);
+        int h = hash(a, b, c, d, tag);
+
+        for (int slot = h & mask; hashes[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == h && matches(slot, a, b, c, d, tag)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int slot, long a, long b, long c, long d, int tag) {
+        int i = 4 * slot;
+        return tags[slot] == tag && keys[i] == a && keys[i+1] == b && keys[i+2] == c && keys[i+3] == d;
+    }
+
+    private void store(int slot, int h, long a, long b, long c, long d, int tag) {
+        int i = 4 * slot;
+        tags[slot] = tag;
+        keys[i]   = a;
+        keys[i+1] = b;
+        keys[i+2] = c;
+        keys[i+3] = d;
+        hashes[slot] = h;
+    }
+
+    private void moveSlot(int from, int to) {
+        System.arraycopy(keys, 4 * from, keys, 4 * to, 4);
+        tags[to] = tags[from];
+        reversed[to] = reversed[from];
+        hashes[to] = hashes[from];
+        if (owners != null) {
+            owners[to] = owners[from];
+        }
+        if (counts != null) {
+            counts[to] = counts[from];
+        }
+    }
+
+    /** removeSlot empties a slot, shifting back any following entries in the
+     *  same probe sequence so that no tombstones are required.
+     */
+    private void removeSlot(int slot) {
+        int hole = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & mask;
+            if (hashes[j] == 0) {
+                break;
+            }
+            int home = hashes[j] & mask;
+            // Leave the entry in place if its home slot lies cyclically
+            // within (hole, j]
+            boolean inRange = hole <= j ? (hole < home && home <= j)
+                                        : (hole < home || home <= j);
+            if (!inRange) {
+                moveSlot(j, hole);
+                hole = j;
+            }
+        }
+        hashes[hole] = 0;
+        size--;
+    }
+
+    private void resize() {
+        if (hashes.length >= MAX_CAPACITY) {
+            throw new IllegalStateException("SegmentTable cannot hold more than "
+                    + resizeThreshold + " segments");
+        }
+        long[] oldKeys = keys;
+        int[] oldTags = tags;
+        boolean[] oldReversed = reversed;
+        int[] oldHashes = hashes;
+        int[] oldOwners = owners;
+        int[] oldCounts = counts;
+
+        allocate(2 * oldHashes.length);
+        for (int s = 0; s < oldHashes.length; s++) {
+            int h = oldHashes[s];
+            if (h != 0) {
+                int slot = h & mask;
+                while (hashes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                System.arraycopy(oldKeys, 4 * s, keys, 4 * slot, 4);
+                tags[slot] = oldTags[s];
+                reversed[slot] = oldReversed[s];
+                hashes[slot] = h;
+                if (owners != null) {
+                    owners[slot] = oldOwners[s];
+                }
+                if (counts != null) {
+                    counts[slot] = oldCounts[s];
+                }
+            }
+        }
+    }
+
+    /** clear removes all segments from the table without releasing its
+     *  storage.
+     */
+    public void clear() {
+        Arrays.fill(hashes, 0);
+        size = 0;
+        numInterior = 0;
+        numOverlapping = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** getNumBoundary returns the number of segments on the boundary: all
+     *  segments of a toggled table, and the segments of a counted table
+     *  that have been found in only one direction.
+     */
+    public int getNumBoundary() {
+        return size - numInterior;
+    }
+
+    /** getNumOverlapping returns the number of counted segments that have
+     *  been found more than once in the same direction, as happens when
+     *  features are duplicated or overlap.
+     */
+    public int getNumOverlapping() {
+        return numOverlapping;
+    }
+
+    /** next returns the index of the first occupied slot at or after the
+     *  supplied slot, or -1 if there are no more occupied slots.
+     */
+    public int next(int slot) {
+        for (int s = slot; s < hashes.length; s++) {
+            if (hashes[s] != 0) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /** nextBoundary returns the index of the first slot at or after the
+     *  supplied slot that holds a boundary segment, or -1 if there are no
+     *  more such slots.
+     */
+    public int nextBoundary(int slot) {
+        for (int s = next(slot); s >= 0; s = next(s + 1)) {
+            if (isBoundary(s)) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /** isBoundary determines if the segment in a slot has been found in
+     *  only one direction.  The segments of a toggled table are always on
+     *  the boundary.
+     */
+    public boolean isBoundary(int slot) {
+        return counts == null || (counts[slot] & 0xFFFF) == 0 || (counts[slot] >>> 16) == 0;
+    }
+
+    /** getCount returns the number of times the segment in a slot has been
+     *  counted in the supplied direction, or one if the table is toggled.
+     */
+    public int getCount(int slot, boolean isReversed) {
+        if (counts == null) {
+            return isReversed == reversed[slot] ? 1 : 0;
+        }
+        return isReversed ? counts[slot] >>> 16 : counts[slot] & 0xFFFF;
+    }
+
+    public double getX0(int slot) {
+        return Double.longBitsToDouble(keys[4 * slot]);
+    }
+
+    public double getY0(int slot) {
+        return Double.longBitsToDouble(keys[4 * slot + 1]);
+    }
+
+    public double getX1(int slot) {
+        return Double.longBitsToDouble(keys[4 * slot + 2]);
+    }
+
+    public double getY1(int slot) {
+        return Double.longBitsToDouble(keys[4 * slot + 3]);
+    }
+
+    public int getTag(int slot) {
+        return tags[slot];
+    }
+
+    /** isReversed determines if the segment in a slot was directed from
+     *  (x1, y1) to (x0, y0) when it was inserted.  All occurrences of a
+     *  counted boundary segment have the same direction.
+     */
+    public boolean isReversed(int slot) {
+        return reversed[slot];
+    }
+
+    /** getOwner returns the owner recorded for the segment in a slot, or
+     *  zero if owners have not been recorded.
+     */
+    public int getOwner(int slot) {
+        return owners == null ? 0 : owners[slot];
+    }
+}
@@ -0,0 +1,373 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/** A TiledCoverageUnion computes the union of a coverage that is too large
+ *  to be held in memory, by spilling its segments to disk.
+ *
+ *  Each segment is assigned to the tile of a square grid that contains its
+ *  midpoint.  Both occurrences of a shared segment have the same midpoint,
+ *  so they are always assigned to the same tile, and shared segments can be
+ *  cancelled one tile at a time.  Segments are buffered in memory and
+ *  appended to a file per tile whenever the buffers exceed the memory
+ *  budget.  When the union is built, the segments of each tile are
+ *  cancelled in a {@link SegmentTable}, and the segments that survive are
+ *  appended to a boundary file.  A tile that is too large to be cancelled
+ *  within the memory budget is first split into quadrants, recursively.
+ *  Finally, the boundary is read back and its rings are traced across all
+ *  tiles.
+ *
+ *  The memory budget bounds the segments held while cancelling.  The
+ *  boundary of the union, and the result itself, must still fit in memory,
+ *  which is usually the case because a coverage has far fewer boundary
+ *  segments than shared ones.
+ *
+ *  Segments are written to disk as four big-endian doubles each, and
+ *  temporary files are removed when the union is built or the
+ *  TiledCoverageUnion is closed.
+ * @author dbaston
+ */
+public class TiledCoverageUnion implements Closeable {
+    /** Approximate heap used by each segment buffered before spilling. */
+    private static final long BYTES_PER_BUFFERED_SEGMENT = 36;
+
+    /** Approximate heap used by each segment in a SegmentTable, including
+     *  its empty slots. */
+    private static final long BYTES_PER_TABLE_SEGMENT = 72;
+
+    /** Tiles are not split beyond this depth, so that a tile whose segments
+     *  share a single midpoint is still processed. */
+    private static final int MAX_SPLIT_DEPTH = 24;
+
+    /** A Tile is a set of segments, some buffered and some spilled to a
+     *  file.
+     */
+    private static class Tile {
+        SegmentBuffer buffer;
+        File file;
+        long numSpilled;
+    }
+
+    private final UnionParameters params;
+    private final boolean counting;
+    private final double tileSize;
+    private final long memoryBudget;
+    private final File tempDirectory;
+    private final boolean ownsTempDirectory;
+    private final Map<Long, Tile> tiles = new HashMap<>();
+    private final List<File> files = new ArrayList<>();
+    private final DuplicateSegmentFinder.SegmentSink router;
+    private GeometryFactory gfact;
+    private long numBuffered;
+    private long numAdded;
+    private boolean closed;
+
+    /** Creates a TiledCoverageUnion that spills to a new directory within
+     *  the default temporary-file directory.
+     * @param tileSize width and height of the grid tiles
+     * @param memoryBudget approximate number of bytes that may be used to
+     *                     buffer and cancel segments
+     * @throws IOException if the temporary directory cannot be created
+     */
+    public TiledCoverageUnion(double tileSize, long memoryBudget) throws IOException {
+        this(null, new UnionParameters(), tileSize, memoryBudget, null);
+    }
+
+    /** Creates a TiledCoverageUnion.
+     * @param gfact GeometryFactory used to construct the result, or null to
+     *              borrow the factory of the first geometry added
+     * @param params UnionParameters used to construct the rings of the
+     *               result.  Segments are counted rather than toggled if
+     *               the COUNTED_TABLE storage is selected, and are snapped
+     *               to the PrecisionModel of the parameters, if any.
+     * @param tileSize width and height of the grid tiles
+     * @param memoryBudget approximate number of bytes that may be used to
+     *                     buffer and cancel segments
+     * @param tempDirectory directory in which to spill segments, or null to
+     *                      create a new directory within the default
+     *                      temporary-file directory
+     * @throws IOException if the temporary directory cannot be created
+     */
+    public TiledCoverageUnion(GeometryFactory gfact, UnionParameters params, double tileSize,
+                              long memoryBudget, File tempDirectory) throws IOException {
+        if (!(tileSize > 0)) {
+            throw new IllegalArgumentException("Tile size must be positive");
+        }
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive");
+        }
+        this.gfact = gfact;
+        this.params = params;
+        this.counting = params.getSegmentStorage() == UnionParameters.SegmentStorage.COUNTED_TABLE;
+        this.router = DuplicateSegmentFinder.snapSegments(new DuplicateSegmentFinder.SegmentSink() {
+            @Override
+            public void addSegment(double x0, double y0, double x1, double y1) {
+                route(x0, y0, x1, y1);
+            }
+        }, params.getPrecisionModel());
+        this.tileSize = tileSize;
+        this.memoryBudget = memoryBudget;
+        this.ownsTempDirectory = tempDirectory == null;
+        this.tempDirectory = ownsTempDirectory ? Files.createTempDirectory("coverageop").toFile() : tempDirectory;
+    }
+
+    /** add assigns the segments of a Polygon or MultiPolygon to tiles,
+     *  spilling buffered segments to disk if the memory budget is exceeded.
+     * @param g
+     * @return this TiledCoverageUnion, for chaining
+     * @throws IOException if segments cannot be spilled
+     */
+    public TiledCoverageUnion add(Geometry g) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("TiledCoverageUnion has already been built or closed");
+        }
+        if (gfact == null) {
+            gfact = g.getFactory();
+        }
+        DuplicateSegmentFinder.extractSegments(g, router);
+        numAdded++;
+
+        if (numBuffered * BYTES_PER_BUFFERED_SEGMENT > memoryBudget) {
+            spillAll();
+        }
+        return this;
+    }
+
+    /** addAll adds each geometry returned by the supplied Iterator.
+     * @param geoms
+     * @return this TiledCoverageUnion, for chaining
+     * @throws IOException if segments cannot be spilled
+     */
+    public TiledCoverageUnion addAll(Iterator<? extends Geometry> geoms) throws IOException {
+        while (geoms.hasNext()) {
+            add(geoms.next());
+        }
+        return this;
+    }
+
+    /** getNumTiles returns the number of tiles to which segments have been
+     *  assigned.
+     */
+    public int getNumTiles() {
+        return tiles.size();
+    }
+
+    private void route(double x0, double y0, double x1, double y1) {
+        long tx = (long) Math.floor((x0 + x1) / 2 / tileSize);
+        long ty = (long) Math.floor((y0 + y1) / 2 / tileSize);
+        Long key = (tx << 32) ^ (ty & 0xFFFFFFFFL);
+
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            tile = new Tile();
+            tiles.put(key, tile);
+        }
+        if (tile.buffer == null) {
+            tile.buffer = new SegmentBuffer(16);
+        }
+        tile.buffer.add(x0, y0, x1, y1);
+        numBuffered++;
+    }
+
+    /** spillAll appends the buffered segments of every tile to its file,
+     *  and releases the buffers.
+     */
+    private void spillAll() throws IOException {
+        for (Tile tile : tiles.values()) {
+            spill(tile);
+        }
+        numBuffered = 0;
+    }
+
+    private void spill(Tile tile) throws IOException {
+        if (tile.buffer == null) {
+            return;
+        }
+        if (tile.file == null) {
+            tile.file = createFile();
+        }
+        try (DataOutputStream out = openForAppend(tile.file)) {
+            SegmentBuffer b = tile.buffer;
+            for (int i = 0; i < b.size(); i++) {
+                writeSegment(out, b.getX0(i), b.getY0(i), b.getX1(i), b.getY1(i));
+            }
+        }
+        tile.numSpilled += tile.buffer.size();
+        tile.buffer = null;
+    }
+
+    /** build cancels the shared segments of each tile and constructs the
+     *  union from the surviving segments.  The TiledCoverageUnion is closed
+     *  once the union is built.
+     * @return the union, as a MultiPolygon, or an empty Point if no
+     *         features have been added
+     * @throws IOException if spilled segments cannot be read or written
+     */
+    public Geometry build() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("TiledCoverageUnion has already been built or closed");
+        }
+        try {
+            if (numAdded == 0) {
+                return new GeometryFactory().createPoint((Coordinate) null);
+            }
+
+            File boundaryFile = createFile();
+            long numBoundary = 0;
+            try (DataOutputStream boundary = openForAppend(boundaryFile)) {
+                for (Iterator<Tile> it = tiles.values().iterator(); it.hasNext(); ) {
+                    Tile tile = it.next();
+                    it.remove();
+                    if (tile.file == null) {
+                        // Never spilled, so the tile already fits in memory
+                        SegmentTable table = new SegmentTable(tile.buffer.size());
+                        SegmentBuffer b = tile.buffer;
+                        tile.buffer = null;
+                        for (int i = 0; i < b.size(); i++) {
+                            DuplicateSegmentFinder.cancelNormalized(table, b.getX0(i), b.getY0(i), b.getX1(i), b.getY1(i), 0, counting);
+                        }
+                        numBoundary += writeSurvivors(table, boundary);
+                    } else {
+                        spill(tile);
+                        numBoundary += cancelFile(tile.file, tile.numSpilled, tileSize, boundary, 0);
+                    }
+                }
+            }
+
+            SegmentBuffer segments = new SegmentBuffer((int) Math.min(numBoundary, Integer.MAX_VALUE - 8));
+            try (DataInputStream in = openForRead(boundaryFile)) {
+                for (long i = 0; i < numBoundary; i++) {
+                    segments.add(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+                }
+            }
+            boundaryFile.delete();
+
+            return CoverageUnion.buildResult(segments, null, gfact, params);
+        } finally {
+            close();
+        }
+    }
+
+    /** cancelFile cancels the shared segments in a spilled file, appending
+     *  the surviving segments to the boundary.  If the segments do not fit
+     *  in the memory budget, they are first split into the quadrants of
+     *  their tile.  The file is deleted once it has been read.
+     * @param size width of the tile whose segments are in the file
+     * @return the number of surviving segments
+     */
+    private long cancelFile(File file, long count, double size, DataOutputStream boundary, int depth) throws IOException {
+        if (count * BYTES_PER_TABLE_SEGMENT <= memoryBudget || depth >= MAX_SPLIT_DEPTH) {
+            SegmentTable table = new SegmentTable((int) Math.min(count, Integer.MAX_VALUE / 4));
+            try (DataInputStream in = openForRead(file)) {
+                for (long i = 0; i < count; i++) {
+                    DuplicateSegmentFinder.cancelNormalized(table, in.readDouble(), in.readDouble(),
+                                                            in.readDouble(), in.readDouble(), 0, counting);
+                }
+            }
+            file.delete();
+            return writeSurvivors(table, boundary);
+        }
+
+        double half = size / 2;
+        File[] quadrants = new File[4];
+        long[] counts = new long[4];
+        DataOutputStream[] outs = new DataOutputStream[4];
+        try (DataInputStream in = openForRead(file)) {
+            for (int q = 0; q < 4; q++) {
+                quadrants[q] = createFile();
+                outs[q] = openForAppend(quadrants[q]);
+            }
+            for (long i = 0; i < count; i++) {
+                double x0 = in.readDouble();
+                double y0 = in.readDouble();
+                double x1 = in.readDouble();
+                double y1 = in.readDouble();
+                int q = (int) (((long) Math.floor((x0 + x1) / 2 / half)) & 1)
+                      | (int) (((long) Math.floor((y0 + y1) / 2 / half)) & 1) << 1;
+                writeSegment(outs[q], x0, y0, x1, y1);
+                counts[q]++;
+            }
+        } finally {
+            for (DataOutputStream out : outs) {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+        file.delete();
+
+        long numSurvivors = 0;
+        for (int q = 0; q < 4; q++) {
+            numSurvivors += cancelFile(quadrants[q], counts[q], half, boundary, depth + 1);
+        }
+        return numSurvivors;
+    }
+
+    /** writeSurvivors appends the segments remaining in a table to the
+     *  boundary, restoring the direction in which they were added.
+     */
+    private static long writeSurvivors(SegmentTable table, DataOutputStream boundary) throws IOException {
+        for (int s = table.nextBoundary(0); s >= 0; s = table.nextBoundary(s + 1)) {
+            if (table.isReversed(s)) {
+                writeSegment(boundary, table.getX1(s), table.getY1(s), table.getX0(s), table.getY0(s));
+            } else {
+                writeSegment(boundary, table.getX0(s), table.getY0(s), table.getX1(s), table.getY1(s));
+            }
+        }
+        return table.getNumBoundary();
+    }
+
+    private static void writeSegment(DataOutputStream out, double x0, double y0, double x1, double y1) throws IOException {
+        out.writeDouble(x0);
+        out.writeDouble(y0);
+        out.writeDouble(x1);
+        out.writeDouble(y1);
+    }
+
+    private File createFile() throws IOException {
+        File f = File.createTempFile("segments", ".bin", tempDirectory);
+        files.add(f);
+        return f;
+    }
+
+    private static DataOutputStream openForAppend(File f) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, true), 1 << 16));
+    }
+
+    private static DataInputStream openForRead(File f) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+    }
+
+    /** close deletes any spilled segments.  No more features may be added
+     *  after the TiledCoverageUnion is closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        tiles.clear();
+        for (File f : files) {
+            f.delete();
+        }
+        files.clear();
+        if (ownsTempDirectory) {
+            tempDirectory.delete();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.dbaston.coverageop;
+
+/** A UnionListener receives the timings and counts of the phases of a
+ *  {@link CoverageUnion}.  A listener is attached using
+ *  {@link UnionParameters#setListener(UnionListener)}.
+ *
+ *  When the result is built using more than one thread, as by
+ *  {@link CoverageUnion#unionByKey}, a listener may be called from several
+ *  threads at once.
+ * @author dbaston
+ */
+public interface UnionListener {
+    /** Phase identifies a phase of the union. */
+    enum Phase {
+        /** Extraction and cancellation of shared segments. */
+        CANCEL_SEGMENTS,
+        /** Simplification of the arcs of the boundary by an
+         *  {@link ArcSimplifier}. */
+        SIMPLIFY,
+        /** Merging of unique segments with a LineMerger. */
+        MERGE_LINES,
+        /** Construction of ring polygons from merged lines, including any
+         *  Polygonizer fallback. */
+        RING_POLYGONS,
+        /** Tracing of rings with a RingTracer. */
+        TRACE_RINGS,
+        /** Assignment of holes to shells by the PolygonAssembler. */
+        ASSEMBLE,
+        /** Search of the unique segments for crossings and dangling ends by
+         *  a {@link HybridCoverageUnion}. */
+        VALIDATE,
+        /** Union of the features near invalid boundary with UnaryUnionOp by
+         *  a HybridCoverageUnion. */
+        FALLBACK
+    }
+
+    /** Count identifies a quantity counted during the union. */
+    enum Count {
+        /** Segments extracted from the inputs. */
+        INPUT_SEGMENTS,
+        /** Segments that were cancelled by another segment. */
+        CANCELLED_SEGMENTS,
+        /** Segments that were not cancelled, forming the boundary of the
+         *  union. */
+        UNIQUE_SEGMENTS,
+        /** Segments found more than once in the same direction, indicating
+         *  duplicated or overlapping inputs.  Only reported when segments
+         *  are counted. */
+        OVERLAPPING_SEGMENTS,
+        /** Lines produced by the LineMerger. */
+        MERGED_LINES,
+        /** 1 if every merged line was closed, so the Polygonizer was not
+         *  needed, and 0 otherwise. */
+        ALL_RINGS_CLOSED,
+        /** Polygonizer faces that were found to lie outside of the union. */
+        FACES_REJECTED,
+        /** Shells traced by the RingTracer. */
+        TRACED_SHELLS,
+        /** Holes traced by the RingTracer. */
+        TRACED_HOLES,
+        /** Holes assigned to a shell by the PolygonAssembler. */
+        HOLES_ASSIGNED,
+        /** Crossings and dangling ends found in the unique segments by a
+         *  HybridCoverageUnion. */
+        BOUNDARY_PROBLEMS,
+        /** Features routed to UnaryUnionOp by a HybridCoverageUnion. */
+        FALLBACK_FEATURES
+    }
+
+    /** phaseCompleted is called after each phase of the union.
+     * @param phase
+     * @param elapsedNanos wall time of the phase
+     * @param allocatedBytes bytes allocated by the thread that ran the
+     *                       phase, or -1 if the JVM does not report thread
+     *                       allocation.  Allocation by worker threads is not
+     *                       included.
+     */
+    void phaseCompleted(Phase phase, long elapsedNanos, long allocatedBytes);
+
+    /** counted is called with each count as it becomes known.
+     * @param count
+     * @param value
+     */
+    void counted(Count count, long value);
+}
@@ -0,0 +1,179 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.PrecisionModel;
+
+/** UnionParameters collects the options that control how a
+ *  {@link CoverageUnion} is computed.  The default parameters reproduce the
+ *  behavior of
+ *  {@link CoverageUnion#union(java.util.Collection, com.vividsolutions.jts.geom.GeometryFactory)}.
+ *  Parameters suited to a particular set of inputs can be chosen by a
+ *  {@link UnionPlanner}.
+ * @author dbaston
+ */
+public class UnionParameters {
+    /** SegmentStorage identifies the structure used by a
+     *  {@link DuplicateSegmentFinder} to cancel shared segments.
+     */
+    public enum SegmentStorage {
+        /** A HashSet of LineSegment objects.  A LineSegment and two
+         *  Coordinates are allocated for every segment of the inputs, so
+         *  only the other storages cancel segments without allocating
+         *  objects. */
+        HASH_SET,
+        /** A {@link SegmentTable} of packed ordinates. */
+        PACKED_TABLE,
+        /** A {@link SegmentTable} of packed ordinates that counts the
+         *  occurrences of each segment in each direction, so that segments
+         *  shared by any number of features, as by duplicated or stacked
+         *  polygons, are dissolved correctly. */
+        COUNTED_TABLE,
+        /** Packed ordinates that are sorted by a {@link SegmentSorter}, so
+         *  that equal segments are cancelled as neighbors in a single
+         *  sweep, rather than looked up as they are found. */
+        SORTED
+    }
+
+    /** RingConstruction identifies how the rings of the union are
+     *  constructed from its unique boundary segments.
+     */
+    public enum RingConstruction {
+        /** Trace rings directly from directed segments using a
+         *  {@link RingTracer}. */
+        TRACE,
+        /** Merge segments with a LineMerger, falling back to a Polygonizer
+         *  if the merged lines are not closed.  Where the union touches
+         *  itself at a vertex, the Polygons produced in this way may be
+         *  invalid, and may differ from one run to the next.  Results that
+         *  are streamed to a {@link PolygonAssembler.PolygonSink} are
+         *  always traced instead. */
+        MERGE_AND_POLYGONIZE
+    }
+
+    private SegmentStorage segmentStorage = SegmentStorage.HASH_SET;
+    private RingConstruction ringConstruction = RingConstruction.TRACE;
+    private int parallelism = 1;
+    private UnionListener listener;
+    private PrecisionModel precisionModel;
+    private double simplifyTolerance;
+
+    public UnionParameters() {
+    }
+    
+    /** Creates a copy of the supplied UnionParameters.
+     * @param other
+     */
+    public UnionParameters(UnionParameters other) {
+        this.segmentStorage = other.segmentStorage;
+        this.ringConstruction = other.ringConstruction;
+        this.parallelism = other.parallelism;
+        this.listener = other.listener;
+        this.precisionModel = other.precisionModel;
+        this.simplifyTolerance = other.simplifyTolerance;
+    }
+
+    public SegmentStorage getSegmentStorage() {
+        return segmentStorage;
+    }
+
+    /** setSegmentStorage selects the structure used to cancel shared
+     *  segments.
+     * @param segmentStorage
+     * @return this UnionParameters, for chaining
+     */
+    public UnionParameters setSegmentStorage(SegmentStorage segmentStorage) {
+        this.segmentStorage = segmentStorage;
+        return this;
+    }
+
+    public RingConstruction getRingConstruction() {
+        return ringConstruction;
+    }
+
+    /** setRingConstruction selects how the rings of the union are
+     *  constructed from its unique boundary segments.
+     * @param ringConstruction
+     * @return this UnionParameters, for chaining
+     */
+    public UnionParameters setRingConstruction(RingConstruction ringConstruction) {
+        this.ringConstruction = ringConstruction;
+        return this;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** setParallelism sets the number of threads used to cancel shared
+     *  segments and, when rings are traced, to trace the rings of separate
+     *  connected components of the boundary and to assign holes to shells.
+     *  With a parallelism greater than one, segments are always stored in
+     *  packed SegmentTables.
+     * @param parallelism
+     * @return this UnionParameters, for chaining
+     */
+    public UnionParameters setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least one");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+    
+    public UnionListener getListener() {
+        return listener;
+    }
+    
+    /** setListener attaches a UnionListener that receives the timing of
+     *  each phase of the union and the counts of segments and rings.
+     * @param listener the listener, or null to collect no metrics
+     * @return this UnionParameters, for chaining
+     */
+    public UnionParameters setListener(UnionListener listener) {
+        this.listener = listener;
+        return this;
+    }
+    
+    public PrecisionModel getPrecisionModel() {
+        return precisionModel;
+    }
+    
+    /** setPrecisionModel sets a PrecisionModel to whose grid the ordinates
+     *  of every segment are snapped before shared segments are cancelled,
+     *  so that vertices that differ by less than the grid spacing are
+     *  matched.  The rings of the result are built from the snapped
+     *  vertices, and segments that collapse to a point are discarded.
+     *  Snapping can only match vertices that round to the same grid point,
+     *  so the grid should be coarse compared with the differences between
+     *  vertices that should match, and fine compared with the features.
+     * @param precisionModel the PrecisionModel, or null (or a FLOATING
+     *                       PrecisionModel) to compare exact ordinates
+     * @return this UnionParameters, for chaining
+     */
+    public UnionParameters setPrecisionModel(PrecisionModel precisionModel) {
+        this.precisionModel = precisionModel;
+        return this;
+    }
+    
+    public double getSimplifyTolerance() {
+        return simplifyTolerance;
+    }
+    
+    /** setSimplifyTolerance sets a distance tolerance with which the
+     *  boundary of the union is simplified before its rings are built.
+     *  Each arc of the boundary between nodes is simplified once, by an
+     *  {@link ArcSimplifier}, preserving the nodes and the topology of the
+     *  arcs.  The results of {@link CoverageUnion#unionByKey} share their
+     *  simplified arcs, so neighboring groups remain free of gaps.
+     *  Simplification is applied by the union methods of CoverageUnion.
+     * @param simplifyTolerance the tolerance, or zero to leave the
+     *                          boundary unsimplified
+     * @return this UnionParameters, for chaining
+     */
+    public UnionParameters setSimplifyTolerance(double simplifyTolerance) {
+        if (!(simplifyTolerance >= 0)) {
+            throw new IllegalArgumentException("Simplification tolerance must not be negative");
+        }
+        this.simplifyTolerance = simplifyTolerance;
+        return this;
+    }
+}
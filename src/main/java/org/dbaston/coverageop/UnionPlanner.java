@@ -0,0 +1,274 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.util.PolygonExtracter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** A UnionPlanner chooses how to compute a {@link CoverageUnion} from
+ *  statistics of the inputs that are cheap to collect: the number of
+ *  points and rings, the extent of the inputs, the maximum heap size, and
+ *  the number of processors.  The estimate of the memory needed uses the
+ *  maximum heap size rather than the heap currently free, which depends on
+ *  garbage that has not yet been collected, so the same inputs are always
+ *  planned in the same way.
+ *
+ *  Small inputs are unioned serially, using the default HASH_SET storage.
+ *  Larger inputs use a packed {@link SegmentTable}, which uses less than
+ *  half of the memory per segment, and inputs large enough for the cost of
+ *  starting threads to be repaid are unioned in parallel.  If the segments
+ *  are not expected to fit within half of the heap, the union is instead
+ *  computed by a {@link TiledCoverageUnion}, which spills segments to disk.
+ *  Rings are always traced, since tracing does not depend on a Polygonizer
+ *  fallback.  The SORTED storage is not chosen, because it has been no
+ *  faster than a packed table at any size measured.
+ *
+ *  Each plan is logged at Level.FINE to the Logger named by this class.
+ * @author dbaston
+ */
+public class UnionPlanner {
+    private static final Logger LOGGER = Logger.getLogger(UnionPlanner.class.getName());
+
+    /** Inputs with at least this many points use a packed SegmentTable. */
+    static final long MIN_PACKED_POINTS = 10000;
+
+    /** Inputs with at least this many points are unioned in parallel. */
+    static final long MIN_PARALLEL_POINTS = 1 << 20;
+
+    /** No more than this many threads are used by a plan. */
+    static final int MAX_PARALLELISM = 8;
+
+    /** Approximate heap used per input segment with each storage,
+     *  assuming that about half of the segments are held at once.  The
+     *  boundary of the union and its rings are included as a margin. */
+    private static final long BYTES_PER_SEGMENT_HASHED = 150;
+    private static final long BYTES_PER_SEGMENT_PACKED = 75;
+
+    /** Segments are spilled to disk if their estimated size exceeds this
+     *  fraction of the maximum heap. */
+    private static final double MAX_HEAP_FRACTION = 0.5;
+
+    /** The smallest memory budget given to a TiledCoverageUnion. */
+    private static final long MIN_MEMORY_BUDGET = 1 << 20;
+
+    /** Strategy identifies how a planned union is computed. */
+    public enum Strategy {
+        /** All segments are cancelled in memory by
+         *  {@link CoverageUnion#union(Collection, GeometryFactory, UnionParameters)}. */
+        IN_MEMORY,
+        /** Segments are spilled to disk by a {@link TiledCoverageUnion}. */
+        TILED
+    }
+
+    /** A Plan records the statistics of a set of inputs and the strategy
+     *  and parameters chosen to union them.
+     */
+    public static class Plan {
+        private final long numGeometries;
+        private final long numPoints;
+        private final long numRings;
+        private final long maxHeap;
+        private final int processors;
+        private final long estimatedBytes;
+        private final Strategy strategy;
+        private final UnionParameters params;
+        private final double tileSize;
+        private final long memoryBudget;
+
+        private Plan(long numGeometries, long numPoints, long numRings, long maxHeap, int processors,
+                     long estimatedBytes, Strategy strategy, UnionParameters params,
+                     double tileSize, long memoryBudget) {
+            this.numGeometries = numGeometries;
+            this.numPoints = numPoints;
+            this.numRings = numRings;
+            this.maxHeap = maxHeap;
+            this.processors = processors;
+            this.estimatedBytes = estimatedBytes;
+            this.strategy = strategy;
+            this.params = params;
+            this.tileSize = tileSize;
+            this.memoryBudget = memoryBudget;
+        }
+
+        public long getNumPoints() {
+            return numPoints;
+        }
+
+        public long getNumRings() {
+            return numRings;
+        }
+
+        /** getMeanRingSize returns the mean number of points per ring of
+         *  the inputs, or zero if there are no rings.
+         */
+        public double getMeanRingSize() {
+            return numRings == 0 ? 0 : (double) numPoints / numRings;
+        }
+
+        /** getEstimatedBytes returns the estimated heap needed to cancel
+         *  the segments of the inputs in memory.  A ring has one segment
+         *  fewer than it has points, so the smaller the mean ring size, the
+         *  fewer segments there are per point.
+         */
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        /** getParameters returns the parameters chosen for the union.  The
+         *  returned UnionParameters should not be modified.
+         */
+        public UnionParameters getParameters() {
+            return params;
+        }
+
+        /** getTileSize returns the tile size of a TILED plan, or zero. */
+        public double getTileSize() {
+            return tileSize;
+        }
+
+        /** getMemoryBudget returns the memory budget of a TILED plan, or
+         *  zero. */
+        public long getMemoryBudget() {
+            return memoryBudget;
+        }
+
+        /** union computes the union of the inputs for which this Plan was
+         *  made.
+         * @param geoms the inputs for which this Plan was made
+         * @param gfact GeometryFactory used to construct the result, or
+         *              null to borrow the factory of the inputs
+         * @return the union, as a MultiPolygon, or an empty Point if there
+         *         are no inputs
+         * @throws IllegalStateException if a TILED plan cannot spill its
+         *         segments to disk
+         */
+        public Geometry union(Collection<Geometry> geoms, GeometryFactory gfact) {
+            if (strategy == Strategy.TILED) {
+                try (TiledCoverageUnion tiled = new TiledCoverageUnion(gfact, params, tileSize, memoryBudget, null)) {
+                    return tiled.addAll(geoms.iterator()).build();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed plan: " + this, e);
+                    throw new IllegalStateException("Could not spill segments to disk", e);
+                }
+            }
+            return CoverageUnion.union(geoms, gfact, params);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(strategy)
+              .append(" union of ").append(numGeometries).append(" geometries")
+              .append(" (").append(numPoints).append(" points, ").append(numRings).append(" rings")
+              .append(String.format(", %.1f points per ring)", getMeanRingSize()))
+              .append(": storage=").append(params.getSegmentStorage())
+              .append(", parallelism=").append(params.getParallelism())
+              .append(", rings=").append(params.getRingConstruction());
+            if (strategy == Strategy.TILED) {
+                sb.append(", tileSize=").append(tileSize)
+                  .append(", memoryBudget=").append(memoryBudget);
+            }
+            sb.append("; estimated ").append(estimatedBytes).append(" bytes, with a maximum heap of ")
+              .append(maxHeap).append(" bytes and ")
+              .append(processors).append(" processors");
+            return sb.toString();
+        }
+    }
+
+    /** plan chooses how to union the supplied geometries, using default
+     *  UnionParameters otherwise.
+     * @param geoms
+     * @return the Plan
+     */
+    public static Plan plan(Collection<Geometry> geoms) {
+        return plan(geoms, new UnionParameters());
+    }
+
+    /** plan chooses how to union the supplied geometries.  The segment
+     *  storage, parallelism and ring construction of the supplied
+     *  UnionParameters are replaced, except that COUNTED_TABLE storage is
+     *  retained, since it changes the result where segments are shared by
+     *  more than two features.  Other parameters, such as the listener and
+     *  PrecisionModel, are retained.
+     * @param geoms
+     * @param base
+     * @return the Plan
+     */
+    public static Plan plan(Collection<Geometry> geoms, UnionParameters base) {
+        Runtime runtime = Runtime.getRuntime();
+        return plan(geoms, base, runtime.maxMemory(), runtime.availableProcessors());
+    }
+
+    /** plan chooses how to union the supplied geometries, given the
+     *  maximum heap size and the number of processors.
+     */
+    static Plan plan(Collection<Geometry> geoms, UnionParameters base, long maxHeap, int processors) {
+        long numPoints = 0;
+        long numRings = 0;
+        Envelope extent = new Envelope();
+        List<Polygon> polys = new ArrayList<>();
+        for (Geometry g : geoms) {
+            numPoints += g.getNumPoints();
+            extent.expandToInclude(g.getEnvelopeInternal());
+            polys.clear();
+            PolygonExtracter.getPolygons(g, polys);
+            for (Polygon p : polys) {
+                numRings += p.isEmpty() ? 0 : 1 + p.getNumInteriorRing();
+            }
+        }
+
+        UnionParameters params = new UnionParameters(base)
+                .setRingConstruction(UnionParameters.RingConstruction.TRACE)
+                .setParallelism(1);
+        boolean counting = base.getSegmentStorage() == UnionParameters.SegmentStorage.COUNTED_TABLE;
+        if (!counting) {
+            params.setSegmentStorage(numPoints < MIN_PACKED_POINTS
+                    ? UnionParameters.SegmentStorage.HASH_SET
+                    : UnionParameters.SegmentStorage.PACKED_TABLE);
+        }
+        if (numPoints >= MIN_PARALLEL_POINTS && processors > 1) {
+            params.setParallelism(Math.min(processors, MAX_PARALLELISM));
+        }
+
+        boolean hashed = params.getSegmentStorage() == UnionParameters.SegmentStorage.HASH_SET
+                && params.getParallelism() == 1;
+        // Each ring repeats its first point, so there are 1 - 1 / m segments
+        // per point for a mean ring size of m
+        long numSegments = numPoints - numRings;
+        long estimatedBytes = numSegments * (hashed ? BYTES_PER_SEGMENT_HASHED : BYTES_PER_SEGMENT_PACKED);
+
+        Strategy strategy = Strategy.IN_MEMORY;
+        double tileSize = 0;
+        long memoryBudget = 0;
+        if (estimatedBytes > MAX_HEAP_FRACTION * maxHeap && !extent.isNull()) {
+            // Divide the extent into enough tiles that each can be
+            // cancelled within the budget, assuming that the points are
+            // spread evenly over it.
+            strategy = Strategy.TILED;
+            memoryBudget = Math.max(maxHeap / 4, MIN_MEMORY_BUDGET);
+            long numTiles = Math.max(estimatedBytes / memoryBudget + 1, 1);
+            double side = Math.max(extent.getWidth(), extent.getHeight());
+            double area = extent.getWidth() * extent.getHeight();
+            tileSize = area > 0 ? Math.sqrt(area / numTiles) : side / numTiles;
+            if (!(tileSize > 0)) {
+                tileSize = 1;
+            }
+        }
+
+        Plan plan = new Plan(geoms.size(), numPoints, numRings, maxHeap, processors,
+                             estimatedBytes, strategy, params, tileSize, memoryBudget);
+        LOGGER.log(Level.FINE, "{0}", plan);
+        return plan;
+    }
+}
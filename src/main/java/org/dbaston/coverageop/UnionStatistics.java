@@ -0,0 +1,146 @@
+package org.dbaston.coverageop;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+
+/** UnionStatistics is a {@link UnionListener} that accumulates the timings
+ *  and counts of one or more unions, for export to a metrics system or
+ *  for logging.
+ *
+ *  <pre>
+ *  UnionStatistics stats = new UnionStatistics();
+ *  CoverageUnion.union(geoms, null, new UnionParameters().setListener(stats));
+ *  log.info(stats.toString());
+ *  </pre>
+ * @author dbaston
+ */
+public class UnionStatistics implements UnionListener {
+    private final Map<Phase, Long> nanos = new EnumMap<>(Phase.class);
+    private final Map<Phase, Long> allocated = new EnumMap<>(Phase.class);
+    private final Map<Count, Long> counts = new EnumMap<>(Count.class);
+
+    @Override
+    public synchronized void phaseCompleted(Phase phase, long elapsedNanos, long allocatedBytes) {
+        nanos.put(phase, getElapsedNanos(phase) + elapsedNanos);
+        if (allocatedBytes >= 0) {
+            allocated.put(phase, getAllocatedBytes(phase) + allocatedBytes);
+        }
+    }
+
+    @Override
+    public synchronized void counted(Count count, long value) {
+        counts.put(count, getCount(count) + value);
+    }
+
+    /** getElapsedNanos returns the total wall time of a phase, or zero if
+     *  the phase did not run.
+     */
+    public synchronized long getElapsedNanos(Phase phase) {
+        Long n = nanos.get(phase);
+        return n == null ? 0 : n;
+    }
+
+    /** getAllocatedBytes returns the total bytes allocated during a phase,
+     *  or zero if the phase did not run or allocation was not reported.
+     */
+    public synchronized long getAllocatedBytes(Phase phase) {
+        Long n = allocated.get(phase);
+        return n == null ? 0 : n;
+    }
+
+    /** getCount returns the total of a count, or zero if it was not
+     *  reported.
+     */
+    public synchronized long getCount(Count count) {
+        Long n = counts.get(count);
+        return n == null ? 0 : n;
+    }
+
+    /** hasPhase determines if a phase has completed at least once.
+     */
+    public synchronized boolean hasPhase(Phase phase) {
+        return nanos.containsKey(phase);
+    }
+
+    /** hasCount determines if a count has been reported at least once.
+     */
+    public synchronized boolean hasCount(Count count) {
+        return counts.containsKey(count);
+    }
+
+    public synchronized void clear() {
+        nanos.clear();
+        allocated.clear();
+        counts.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : nanos.keySet()) {
+            sb.append(phase).append(": ").append(nanos.get(phase) / 1000000.0).append(" ms");
+            if (allocated.containsKey(phase)) {
+                sb.append(", ").append(allocated.get(phase)).append(" bytes");
+            }
+            sb.append('\n');
+        }
+        for (Count count : counts.keySet()) {
+            sb.append(count).append(": ").append(counts.get(count)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** A PhaseTimer measures the wall time and, where the JVM supports it,
+     *  the allocation of the current thread between its creation and a call
+     *  to stop.  It does nothing if no listener is supplied.
+     */
+    static class PhaseTimer {
+        private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+        private static final boolean ALLOCATION_SUPPORTED = isAllocationSupported();
+
+        private final UnionListener listener;
+        private final long startNanos;
+        private final long startBytes;
+
+        PhaseTimer(UnionListener listener) {
+            this.listener = listener;
+            this.startNanos = listener == null ? 0 : System.nanoTime();
+            this.startBytes = listener == null ? 0 : allocatedBytes();
+        }
+
+        void stop(Phase phase) {
+            if (listener == null) {
+                return;
+            }
+            long elapsed = System.nanoTime() - startNanos;
+            long bytes = ALLOCATION_SUPPORTED ? allocatedBytes() - startBytes : -1;
+            listener.phaseCompleted(phase, elapsed, bytes);
+        }
+
+        private static boolean isAllocationSupported() {
+            try {
+                return THREADS instanceof com.sun.management.ThreadMXBean
+                        && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+                        && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+            } catch (LinkageError e) {
+                return false;
+            }
+        }
+
+        private static long allocatedBytes() {
+            if (!ALLOCATION_SUPPORTED) {
+                return -1;
+            }
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+    /** count reports a count to a listener, if one is supplied.
+     */
+    static void count(UnionListener listener, Count count, long value) {
+        if (listener != null) {
+            listener.counted(count, value);
+        }
+    }
+}
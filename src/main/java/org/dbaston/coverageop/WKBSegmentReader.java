@@ -0,0 +1,210 @@
+package org.dbaston.coverageop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** A WKBSegmentReader extracts the segments of the Polygons and
+ *  MultiPolygons in a file of concatenated WKB records, without
+ *  constructing any Geometries.  The file is memory-mapped in windows, and
+ *  ordinates are read directly from the mapped buffer and passed to a
+ *  {@link DuplicateSegmentFinder.SegmentSink}, directed in the same way as
+ *  by {@link DuplicateSegmentFinder#extractSegments}.
+ *
+ *  Records may use either byte order, and may be in extended (EWKB) or ISO
+ *  form, with an SRID and Z or M ordinates, which are ignored.
+ * @author dbaston
+ */
+public class WKBSegmentReader {
+    private static final long WINDOW_SIZE = 1L << 28;
+
+    private static final int WKB_POLYGON = 3;
+    private static final int WKB_MULTIPOLYGON = 6;
+    private static final int EWKB_Z = 0x80000000;
+    private static final int EWKB_M = 0x40000000;
+    private static final int EWKB_SRID = 0x20000000;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long pos;
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+    private WKBSegmentReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    /** read passes the segments of every record in a WKB file to the
+     *  supplied sink.
+     * @param file file of concatenated WKB Polygons or MultiPolygons
+     * @param sink
+     * @return the number of records read
+     * @throws IOException if the file cannot be read or is truncated
+     */
+    public static long read(File file, DuplicateSegmentFinder.SegmentSink sink) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            WKBSegmentReader reader = new WKBSegmentReader(channel);
+            long numRecords = 0;
+            while (reader.pos < reader.size) {
+                reader.readGeometry(sink);
+                numRecords++;
+            }
+            return numRecords;
+        }
+    }
+
+    /** ensure maps a window containing the next n bytes, if the current
+     *  window does not contain them.
+     */
+    private void ensure(long n) throws IOException {
+        if (window != null && pos + n <= windowStart + window.limit()) {
+            return;
+        }
+        if (pos + n > size) {
+            throw new IOException("Unexpected end of WKB file at offset " + pos);
+        }
+        long length = Math.min(Math.max(WINDOW_SIZE, n), size - pos);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("WKB ring at offset " + pos + " is too large to be mapped");
+        }
+        window = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+        window.order(order);
+        windowStart = pos;
+    }
+
+    private int index() {
+        return (int) (pos - windowStart);
+    }
+
+    private int readInt() throws IOException {
+        ensure(4);
+        int value = window.getInt(index());
+        pos += 4;
+        return value;
+    }
+
+    /** readCount reads a count of polygons, rings or points.
+     * @throws IOException if the count is negative, as in a corrupt file
+     */
+    private int readCount() throws IOException {
+        int count = readInt();
+        if (count < 0) {
+            throw new IOException("Invalid WKB count " + count + " at offset " + (pos - 4));
+        }
+        return count;
+    }
+
+    /** readHeader reads the byte order and type of a geometry, skipping any
+     *  SRID.
+     * @return the number of ordinates per point, in the low 8 bits, and the
+     *         base geometry type above them
+     */
+    private int readHeader() throws IOException {
+        ensure(1);
+        byte byteOrder = window.get(index());
+        pos++;
+        order = byteOrder == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        window.order(order);
+
+        int type = readInt();
+        int dimension = 2;
+        if ((type & EWKB_Z) != 0) {
+            dimension++;
+        }
+        if ((type & EWKB_M) != 0) {
+            dimension++;
+        }
+        if ((type & EWKB_SRID) != 0) {
+            readInt();
+        }
+
+        // ISO type codes add 1000 for Z, 2000 for M and 3000 for ZM
+        int baseType = type & 0xFFFF;
+        if (baseType >= 3000) {
+            dimension += 2;
+        } else if (baseType >= 1000) {
+            dimension += 1;
+        }
+        return (baseType % 1000) << 8 | dimension;
+    }
+
+    private void readGeometry(DuplicateSegmentFinder.SegmentSink sink) throws IOException {
+        int header = readHeader();
+        int type = header >>> 8;
+        int dimension = header & 0xFF;
+
+        if (type == WKB_POLYGON) {
+            readPolygon(sink, dimension);
+        } else if (type == WKB_MULTIPOLYGON) {
+            int numPolygons = readCount();
+            for (int i = 0; i < numPolygons; i++) {
+                header = readHeader();
+                if (header >>> 8 != WKB_POLYGON) {
+                    throw new IllegalArgumentException("Geometries must be Polygons or MultiPolygons");
+                }
+                readPolygon(sink, header & 0xFF);
+            }
+        } else {
+            throw new IllegalArgumentException("Geometries must be Polygons or MultiPolygons");
+        }
+    }
+
+    private void readPolygon(DuplicateSegmentFinder.SegmentSink sink, int dimension) throws IOException {
+        int numRings = readCount();
+        for (int r = 0; r < numRings; r++) {
+            int numPoints = readCount();
+            long stride = 8L * dimension;
+            // Fails if the ring extends beyond the end of the file
+            ensure(stride * numPoints);
+            int start = index();
+            pos += stride * numPoints;
+            if (numPoints < 4) {
+                continue;
+            }
+            readRing(sink, start, numPoints, (int) stride, r == 0);
+        }
+    }
+
+    /** readRing passes the segments of a ring within the current window to
+     *  the sink, oriented so that the interior of the polygon is on their
+     *  right.  Zero-length segments are skipped.
+     */
+    private void readRing(DuplicateSegmentFinder.SegmentSink sink, int start, int numPoints, int stride, boolean isShell) {
+        // Signed area relative to the first vertex, as in
+        // PolygonAssembler.signedArea
+        double x0 = window.getDouble(start);
+        double y0 = window.getDouble(start + 8);
+        double area2 = 0;
+        for (int i = 1; i < numPoints - 2; i++) {
+            int a = start + i * stride;
+            int b = a + stride;
+            area2 += (window.getDouble(a) - x0) * (window.getDouble(b + 8) - y0)
+                   - (window.getDouble(b) - x0) * (window.getDouble(a + 8) - y0);
+        }
+        boolean reverse = (area2 > 0) == isShell;
+
+        double px = x0;
+        double py = y0;
+        for (int i = 1; i < numPoints; i++) {
+            int a = start + i * stride;
+            double x = window.getDouble(a);
+            double y = window.getDouble(a + 8);
+            if (x == px && y == py) {
+                continue;
+            }
+            if (reverse) {
+                sink.addSegment(x, y, px, py);
+            } else {
+                sink.addSegment(px, py, x, y);
+            }
+            px = x;
+            py = y;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package org.dbaston.coverageop;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A WindowedCoverageUnion computes the union of a coverage within a
+ *  rectangular window, such as a map tile or viewport, without computing
+ *  the union of the whole coverage.
+ *
+ *  The inputs are indexed once in an STRtree.  For each window, only the
+ *  inputs whose envelopes intersect the window are selected, and only
+ *  their segments that intersect the window are cancelled, so the time
+ *  taken depends on the number of features in the window rather than the
+ *  size of the coverage.  The unique segments are clipped to the window,
+ *  and the rings of the union are closed by adding the parts of the window
+ *  boundary that lie within the union.  These are found by walking around
+ *  the window boundary: each clipped segment that leaves the window enters
+ *  the union, and each clipped segment that enters the window leaves it.
+ *  Only if no clipped segment reaches the window boundary is the window
+ *  boundary located with a point-in-polygon test.
+ *
+ *  Unions may be cached by a key for each window, such as the address of a
+ *  tile.  The cache holds a fixed number of unions, evicting the least
+ *  recently used.  Cached unions are shared, and must not be modified.
+ * @author dbaston
+ */
+public class WindowedCoverageUnion {
+    /** An Event is a point on the window boundary at which clipped
+     *  segments start or end.  Points are ordered clockwise around the
+     *  window, starting from its upper-left corner.
+     */
+    private static class Event implements Comparable<Event> {
+        final int edge;
+        final double position;
+        final double x;
+        final double y;
+        int entering;
+
+        Event(int edge, double position, double x, double y) {
+            this.edge = edge;
+            this.position = position;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (edge != other.edge) {
+                return edge < other.edge ? -1 : 1;
+            }
+            return Double.compare(position, other.position);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Event && compareTo((Event) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(position);
+            return 31 * edge + (int) (bits ^ (bits >>> 32));
+        }
+    }
+
+    private final STRtree index = new STRtree();
+    private final GeometryFactory gfact;
+    private final UnionParameters params;
+    private final Map<Object, Geometry> cache;
+
+    public WindowedCoverageUnion(Collection<Geometry> geoms) {
+        this(geoms, null, new UnionParameters(), 0);
+    }
+
+    /** Constructs a WindowedCoverageUnion, indexing the supplied inputs.
+     * @param geoms Polygons or MultiPolygons forming a coverage
+     * @param gfact GeometryFactory used to construct the unions, or null to
+     *              borrow the factory of the inputs
+     * @param params
+     * @param cacheSize number of unions retained by
+     *                  {@link #getUnion(Object, Envelope)}, or zero to
+     *                  disable caching
+     */
+    public WindowedCoverageUnion(Collection<Geometry> geoms, GeometryFactory gfact,
+                                 UnionParameters params, final int cacheSize) {
+        if (gfact == null) {
+            gfact = geoms.isEmpty() ? new GeometryFactory() : geoms.iterator().next().getFactory();
+        }
+        this.gfact = gfact;
+        this.params = params;
+        this.cache = new LinkedHashMap<Object, Geometry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Geometry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        for (Geometry g : geoms) {
+            index.insert(g.getEnvelopeInternal(), g);
+        }
+        // Build the tree now, so that it can be queried concurrently
+        index.build();
+    }
+
+    /** getUnion returns the union within a window, from the cache if the
+     *  union of the window with the supplied key has already been computed
+     *  and not evicted.  Unions of different windows may be computed
+     *  concurrently.
+     * @param key key identifying the window, such as a tile address
+     * @param window
+     */
+    public Geometry getUnion(Object key, Envelope window) {
+        synchronized (cache) {
+            Geometry union = cache.get(key);
+            if (union != null) {
+                return union;
+            }
+        }
+        Geometry union = union(window);
+        synchronized (cache) {
+            cache.put(key, union);
+        }
+        return union;
+    }
+
+    /** getNumCached returns the number of unions held in the cache.
+     */
+    public int getNumCached() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /** union computes the union of the inputs within a window, as if by
+     *  intersecting the window with the union of all the inputs.
+     * @param window
+     * @return the union within the window, as a MultiPolygon, which is
+     *         empty if the window does not intersect the interior of the
+     *         union
+     */
+    public Geometry union(final Envelope window) {
+        if (window.isNull() || window.getWidth() <= 0 || window.getHeight() <= 0) {
+            return gfact.createMultiPolygon(new Polygon[0]);
+        }
+
+        UnionListener listener = params.getListener();
+        UnionStatistics.PhaseTimer timer = new UnionStatistics.PhaseTimer(listener);
+        @SuppressWarnings("unchecked")
+        List<Geometry> candidates = index.query(window);
+        DuplicateSegmentFinder dsr = new DuplicateSegmentFinder(false, params);
+        final DuplicateSegmentFinder.SegmentSink sink = dsr.getSink();
+        DuplicateSegmentFinder.SegmentSink filter = new DuplicateSegmentFinder.SegmentSink() {
+            @Override
+            public void addSegment(double x0, double y0, double x1, double y1) {
+                if (Math.max(x0, x1) >= window.getMinX() && Math.min(x0, x1) <= window.getMaxX()
+                        && Math.max(y0, y1) >= window.getMinY() && Math.min(y0, y1) <= window.getMaxY()) {
+                    sink.addSegment(x0, y0, x1, y1);
+                }
+            }
+        };
+        for (Geometry g : candidates) {
+            DuplicateSegmentFinder.extractSegments(g, filter);
+        }
+        SegmentBuffer unique = dsr.getUniqueDirectedSegments();
+        timer.stop(UnionListener.Phase.CANCEL_SEGMENTS);
+        CoverageUnion.countSegments(listener, dsr, unique.size());
+
+        SegmentBuffer segments = clip(unique, window, candidates);
+        if (segments.size() == 0) {
+            return gfact.createMultiPolygon(new Polygon[0]);
+        }
+        return CoverageUnion.buildResult(segments, null, gfact, params);
+    }
+
+    /** clip clips directed boundary segments to a window, and adds the
+     *  parts of the window boundary that lie within the union, directed
+     *  clockwise so that the interior of the union remains on their right.
+     *  Clipped segments that lie along the window boundary are replaced by
+     *  the window boundary itself.
+     */
+    private SegmentBuffer clip(SegmentBuffer unique, Envelope window, List<Geometry> candidates) {
+        SegmentBuffer segments = new SegmentBuffer(Math.max(unique.size(), 1));
+        Map<Event, Event> events = new LinkedHashMap<>();
+        double[] clipped = new double[4];
+        Boolean boundaryInside = null;
+        for (int i = 0; i < unique.size(); i++) {
+            if (!clip(unique.getX0(i), unique.getY0(i), unique.getX1(i), unique.getY1(i), window, clipped)) {
+                continue;
+            }
+            double ax = clipped[0], ay = clipped[1], bx = clipped[2], by = clipped[3];
+            if (ax == bx && ay == by) {
+                // The segment only touches the window
+                getEvent(events, window, ax, ay);
+                continue;
+            }
+            if (ay == by && (ay == window.getMaxY() || ay == window.getMinY())
+                    || ax == bx && (ax == window.getMaxX() || ax == window.getMinX())) {
+                // The segment lies along the window boundary, and is
+                // clockwise if the union is inside the window
+                if (boundaryInside == null) {
+                    boundaryInside = ay == by ? (ay == window.getMaxY()) == (bx > ax)
+                                              : (ax == window.getMaxX()) == (by < ay);
+                }
+                continue;
+            }
+            Event a = getEvent(events, window, ax, ay);
+            Event b = getEvent(events, window, bx, by);
+            segments.add(ax, ay, bx, by);
+            if (a != null) {
+                a.entering--;
+            }
+            if (b != null) {
+                b.entering++;
+            }
+        }
+
+        getEvent(events, window, window.getMinX(), window.getMaxY());
+        getEvent(events, window, window.getMaxX(), window.getMaxY());
+        getEvent(events, window, window.getMaxX(), window.getMinY());
+        getEvent(events, window, window.getMinX(), window.getMinY());
+        List<Event> boundary = new ArrayList<>(events.keySet());
+        Collections.sort(boundary);
+
+        // Find whether the union lies within the window after each event,
+        // relative to the first.  A segment leaving the window leaves the
+        // interior of the union on its right, which is clockwise along the
+        // window boundary.
+        int n = boundary.size();
+        int[] inside = new int[n];
+        int lowest = 0;
+        boolean varies = false;
+        for (int i = 0; i < n; i++) {
+            inside[i] = (i == 0 ? 0 : inside[i - 1]) + boundary.get(i).entering;
+            lowest = Math.min(lowest, inside[i]);
+            varies |= inside[i] != inside[0];
+        }
+        int offset;
+        if (varies) {
+            offset = -lowest;
+        } else {
+            if (boundaryInside == null) {
+                Event first = boundary.get(0);
+                Event second = boundary.get(1);
+                boundaryInside = covers(candidates, (first.x + second.x) / 2, (first.y + second.y) / 2);
+            }
+            offset = (boundaryInside ? 1 : 0) - inside[0];
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (inside[i] + offset > 0) {
+                Event from = boundary.get(i);
+                Event to = boundary.get((i + 1) % n);
+                segments.add(from.x, from.y, to.x, to.y);
+            }
+        }
+        return segments;
+    }
+
+    /** getEvent returns the Event for a point on the window boundary,
+     *  creating it if necessary, or null if the point is not on the window
+     *  boundary.  Each corner of the window begins an edge.
+     */
+    private static Event getEvent(Map<Event, Event> events, Envelope window, double x, double y) {
+        Event e;
+        if (y == window.getMaxY() && x < window.getMaxX()) {
+            e = new Event(0, x, x, y);
+        } else if (x == window.getMaxX() && y > window.getMinY()) {
+            e = new Event(1, -y, x, y);
+        } else if (y == window.getMinY() && x > window.getMinX()) {
+            e = new Event(2, -x, x, y);
+        } else if (x == window.getMinX() && y < window.getMaxY()) {
+            e = new Event(3, y, x, y);
+        } else {
+            return null;
+        }
+        Event existing = events.get(e);
+        if (existing != null) {
+            return existing;
+        }
+        events.put(e, e);
+        return e;
+    }
+
+    /** clip clips a segment to a window using the Liang-Barsky algorithm.
+     *  Clipped endpoints are placed exactly on the window boundary.
+     * @param clipped array receiving the ordinates of the clipped segment
+     * @return true if any part of the segment lies within the window
+     */
+    static boolean clip(double x0, double y0, double x1, double y1, Envelope window, double[] clipped) {
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double[] p = { -dx, dx, -dy, dy };
+        double[] q = { x0 - window.getMinX(), window.getMaxX() - x0,
+                       y0 - window.getMinY(), window.getMaxY() - y0 };
+        double t0 = 0;
+        double t1 = 1;
+        int edge0 = -1;
+        int edge1 = -1;
+        for (int k = 0; k < 4; k++) {
+            if (p[k] == 0) {
+                if (q[k] < 0) {
+                    return false;
+                }
+                continue;
+            }
+            double r = q[k] / p[k];
+            if (p[k] < 0) {
+                if (r > t1) {
+                    return false;
+                }
+                if (r > t0) {
+                    t0 = r;
+                    edge0 = k;
+                }
+            } else {
+                if (r < t0) {
+                    return false;
+                }
+                if (r < t1) {
+                    t1 = r;
+                    edge1 = k;
+                }
+            }
+        }
+        // An end that is not clipped is returned exactly, since x0 + 1 * dx
+        // may differ from x1 in the last bit and would then no longer meet
+        // the next segment of the ring
+        if (edge0 < 0) {
+            clipped[0] = x0;
+            clipped[1] = y0;
+        } else {
+            clipPoint(x0, y0, dx, dy, t0, edge0, window, clipped, 0);
+        }
+        if (edge1 < 0) {
+            clipped[2] = x1;
+            clipped[3] = y1;
+        } else {
+            clipPoint(x0, y0, dx, dy, t1, edge1, window, clipped, 2);
+        }
+        return true;
+    }
+
+    /** clipPoint places the point at parameter t along a segment on the
+     *  window edge that clipped it.
+     */
+    private static void clipPoint(double x0, double y0, double dx, double dy, double t, int edge,
+                                  Envelope window, double[] clipped, int offset) {
+        double x = Math.min(Math.max(x0 + t * dx, window.getMinX()), window.getMaxX());
+        double y = Math.min(Math.max(y0 + t * dy, window.getMinY()), window.getMaxY());
+        switch (edge) {
+            case 0: x = window.getMinX(); break;
+            case 1: x = window.getMaxX(); break;
+            case 2: y = window.getMinY(); break;
+            default: y = window.getMaxY(); break;
+        }
+        clipped[offset] = x;
+        clipped[offset + 1] = y;
+    }
+
+    /** covers determines if a point lies within any of the candidate
+     *  inputs.
+     */
+    private boolean covers(List<Geometry> candidates, double x, double y) {
+        Point pt = gfact.createPoint(new Coordinate(x, y));
+        for (Geometry g : candidates) {
+            if (g.getEnvelopeInternal().intersects(x, y) && g.intersects(pt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
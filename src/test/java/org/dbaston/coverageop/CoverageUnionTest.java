@@ -1,13 +1,37 @@
 package org.dbaston.coverageop;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+import com.vividsolutions.jts.io.ByteOrderValues;
+import com.vividsolutions.jts.io.WKBWriter;
 import com.vividsolutions.jts.io.WKTReader;
 import com.vividsolutions.jts.operation.union.UnaryUnionOp;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -48,6 +72,17 @@ public class CoverageUnionTest {
             return result;
         }
         
+        public Geometry getDissolveResult(UnionParameters params) {
+            long startTime, endTime;
+            
+            startTime = System.currentTimeMillis();
+            Geometry result = CoverageUnion.union(geoms, null, params);
+            endTime = System.currentTimeMillis();
+            
+            System.out.println("DU " + describe(params) + ": (" + (endTime-startTime)/1000.0 + ") " + result.toString());
+            return result;
+        }
+        
         public Geometry getReferenceResult() {
             long startTime, endTime;
             
@@ -72,12 +107,46 @@ public class CoverageUnionTest {
             Geometry result = getDissolveResult();
             Geometry refResult = getReferenceResult();
             assertTrue(result.equalsTopo(refResult));
+            
+            for (UnionParameters params : parameterVariants()) {
+                assertTrue(describe(params), getDissolveResult(params).equalsTopo(refResult));
+            }
+            
+            Geometry built = new CoverageUnionBuilder().addAll(geoms.iterator()).build();
+            assertTrue("CoverageUnionBuilder", built.equalsTopo(refResult));
         }
     }
     
     public CoverageUnionTest() {
     }
     
+    /** parameterVariants returns the non-default UnionParameters that
+     *  each UnionChecker.check() should also verify.
+     */
+    private static Collection<UnionParameters> parameterVariants() {
+        ArrayList<UnionParameters> variants = new ArrayList<>();
+        variants.add(new UnionParameters()
+                .setSegmentStorage(UnionParameters.SegmentStorage.PACKED_TABLE));
+        variants.add(new UnionParameters().setParallelism(4));
+        variants.add(new UnionParameters()
+                .setSegmentStorage(UnionParameters.SegmentStorage.COUNTED_TABLE));
+        variants.add(new UnionParameters()
+                .setSegmentStorage(UnionParameters.SegmentStorage.COUNTED_TABLE)
+                .setParallelism(4));
+        variants.add(new UnionParameters()
+                .setSegmentStorage(UnionParameters.SegmentStorage.SORTED));
+        variants.add(new UnionParameters()
+                .setSegmentStorage(UnionParameters.SegmentStorage.SORTED)
+                .setParallelism(4));
+        variants.add(new UnionParameters()
+                .setRingConstruction(UnionParameters.RingConstruction.MERGE_AND_POLYGONIZE));
+        return variants;
+    }
+    
+    private static String describe(UnionParameters params) {
+        return "[" + params.getSegmentStorage() + ", parallelism=" + params.getParallelism() + ", " + params.getRingConstruction() + "]";
+    }
+    
     public static Geometry geometryCollectionUnion(Collection<Geometry> geoms) {
         GeometryFactory gfact = geoms.isEmpty() ? new GeometryFactory() : geoms.iterator().next().getFactory();
         return gfact.createGeometryCollection(geoms.toArray(new Geometry[geoms.size()])).buffer(0.0);
@@ -90,7 +159,7 @@ public class CoverageUnionTest {
     private Collection<Geometry> readBlocks() throws Exception {
         ArrayList<Geometry> geoms = new ArrayList<>();
         WKTReader reader = new WKTReader();
-        BufferedReader br = new BufferedReader(new FileReader("src\\test\\resources\\blocks_vt.csv"));
+        BufferedReader br = new BufferedReader(new FileReader("src/test/resources/blocks_vt.csv"));
         
         br.readLine(); // toss the header
         String line = br.readLine(); 
@@ -140,6 +209,37 @@ public class CoverageUnionTest {
                 .check();
     }
     
+    @Test
+    public void testRepeatedVertex() throws Exception {
+        new UnionChecker()
+                .add("POLYGON ((0 0, 0 0, 0 1, 1 1, 1 0, 0 0))")
+                .add("POLYGON ((1 0, 1 1, 2 1, 2 0, 1 0))")
+                .check();
+
+        List<Geometry> geoms = new ArrayList<>();
+        geoms.add(readWKT("POLYGON ((0 0, 0 0, 0 1, 1 1, 1 0, 0 0))"));
+        geoms.add(readWKT("POLYGON ((1 0, 1 1, 1 1, 2 1, 2 0, 1 0))"));
+        Geometry expected = UnaryUnionOp.union(geoms);
+        File file = File.createTempFile("coverageop", ".wkb");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                for (Geometry g : geoms) {
+                    out.write(new WKBWriter().write(g));
+                }
+            }
+
+            List<UnionParameters> variants = new ArrayList<>(parameterVariants());
+            variants.add(new UnionParameters());
+            for (UnionParameters params : variants) {
+                assertTrue(describe(params), CoverageUnion.unionWKB(file, null, params).equalsTopo(expected));
+                assertTrue(describe(params), new HybridCoverageUnion(geoms, null, params).getUnion().equalsTopo(expected));
+                assertTrue(describe(params), new MutableCoverageUnion(geoms, null, params).getUnion().equalsTopo(expected));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
     @Test
     public void checkPolygonInsideHole() throws Exception {
         new UnionChecker()
@@ -169,6 +269,954 @@ public class CoverageUnionTest {
                 .check();
     }
     
+    @Test
+    public void testUnionByKey() throws Exception {
+        WKTReader reader = new WKTReader();
+        Map<String, Collection<Geometry>> groups = new LinkedHashMap<>();
+        
+        // A 4x4 grid of unit squares, grouped into rows and into a group
+        // containing every other square of the bottom row
+        for (int y = 0; y < 4; y++) {
+            ArrayList<Geometry> row = new ArrayList<>();
+            for (int x = 0; x < 4; x++) {
+                row.add(reader.read("POLYGON ((" + x + " " + y + ", " + x + " " + (y+1) + ", " + (x+1) + " " + (y+1) + ", " + (x+1) + " " + y + ", " + x + " " + y + "))"));
+            }
+            groups.put("row" + y, row);
+        }
+        ArrayList<Geometry> checkered = new ArrayList<>();
+        checkered.add(reader.read("POLYGON ((0 0, 0 1, 1 1, 1 0, 0 0))"));
+        checkered.add(reader.read("POLYGON ((2 0, 2 1, 3 1, 3 0, 2 0))"));
+        groups.put("checkered", checkered);
+        groups.put("empty", new ArrayList<Geometry>());
+        
+        for (UnionParameters params : new UnionParameters[] { new UnionParameters(), new UnionParameters().setParallelism(3) }) {
+            Map<String, Geometry> results = CoverageUnion.unionByKey(groups, null, params);
+            assertEquals(groups.keySet(), results.keySet());
+            for (String key : groups.keySet()) {
+                Geometry expected = UnaryUnionOp.union(groups.get(key));
+                if (expected == null) {
+                    assertTrue(results.get(key).isEmpty());
+                } else {
+                    assertTrue(key, results.get(key).equalsTopo(expected));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testParallelComponents() throws Exception {
+        GeometryFactory gfact = new GeometryFactory();
+        Collection<Geometry> geoms = new ArrayList<>();
+
+        // A lattice of 5x5 blocks, each a ring of unit squares surrounding
+        // a hole with a single-square island, so that every island is a
+        // separate component of the boundary from the shell of its hole.
+        // The boundary is large enough to be traced in parallel.
+        int numBlocks = 24;
+        for (int bx = 0; bx < numBlocks; bx++) {
+            for (int by = 0; by < numBlocks; by++) {
+                for (int i = 0; i < 5; i++) {
+                    for (int j = 0; j < 5; j++) {
+                        boolean ring = i == 0 || j == 0 || i == 4 || j == 4;
+                        boolean island = i == 2 && j == 2;
+                        if (ring || island) {
+                            geoms.add(gfact.toGeometry(new Envelope(6*bx + i, 6*bx + i + 1, 6*by + j, 6*by + j + 1)));
+                        }
+                    }
+                }
+            }
+        }
+
+        Geometry serial = CoverageUnion.union(geoms, gfact, new UnionParameters());
+        Geometry parallel = CoverageUnion.union(geoms, gfact, new UnionParameters().setParallelism(4));
+
+        assertEquals(2 * numBlocks * numBlocks, parallel.getNumGeometries());
+        assertTrue(parallel.isValid());
+        assertTrue(parallel.equalsTopo(serial));
+        assertEquals(numBlocks * numBlocks * 17.0, parallel.getArea(), 0.0);
+    }
+
+    @Test
+    public void testTiledUnion() throws Exception {
+        GeometryFactory gfact = new GeometryFactory();
+        Collection<Geometry> geoms = new ArrayList<>();
+
+        // A grid of unit squares with scattered missing squares, forming
+        // holes.  The memory budget is small enough that segments are
+        // spilled repeatedly and every tile is split before cancelling.
+        for (int x = 0; x < 30; x++) {
+            for (int y = 0; y < 30; y++) {
+                if ((7*x + 3*y) % 5 != 0 || x == 0 || y == 0) {
+                    geoms.add(gfact.toGeometry(new Envelope(x, x + 1, y, y + 1)));
+                }
+            }
+        }
+
+        File tempDirectory = Files.createTempDirectory("coverageop-test").toFile();
+        try {
+            TiledCoverageUnion tiled = new TiledCoverageUnion(gfact, new UnionParameters(), 4.0, 2000, tempDirectory);
+            Geometry result = tiled.addAll(geoms.iterator()).build();
+
+            assertTrue(result.isValid());
+            assertTrue(result.equalsTopo(CoverageUnion.union(geoms, gfact)));
+            assertEquals(0, tempDirectory.list().length);
+        } finally {
+            tempDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testUnionStatistics() throws Exception {
+        GeometryFactory gfact = new GeometryFactory();
+        Collection<Geometry> geoms = new ArrayList<>();
+
+        // A 3x3 grid of unit squares with the center square missing
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 3; y++) {
+                if (x != 1 || y != 1) {
+                    geoms.add(gfact.toGeometry(new Envelope(x, x + 1, y, y + 1)));
+                }
+            }
+        }
+
+        UnionStatistics traced = new UnionStatistics();
+        CoverageUnion.union(geoms, gfact, new UnionParameters().setListener(traced));
+        assertEquals(32, traced.getCount(UnionListener.Count.INPUT_SEGMENTS));
+        assertEquals(16, traced.getCount(UnionListener.Count.CANCELLED_SEGMENTS));
+        assertEquals(16, traced.getCount(UnionListener.Count.UNIQUE_SEGMENTS));
+        assertEquals(1, traced.getCount(UnionListener.Count.TRACED_SHELLS));
+        assertEquals(1, traced.getCount(UnionListener.Count.TRACED_HOLES));
+        assertEquals(1, traced.getCount(UnionListener.Count.HOLES_ASSIGNED));
+        assertTrue(traced.hasPhase(UnionListener.Phase.CANCEL_SEGMENTS));
+        assertTrue(traced.hasPhase(UnionListener.Phase.TRACE_RINGS));
+        assertTrue(traced.hasPhase(UnionListener.Phase.ASSEMBLE));
+        assertFalse(traced.hasPhase(UnionListener.Phase.MERGE_LINES));
+
+        UnionStatistics merged = new UnionStatistics();
+        CoverageUnion.union(geoms, gfact, new UnionParameters()
+                .setRingConstruction(UnionParameters.RingConstruction.MERGE_AND_POLYGONIZE)
+                .setListener(merged));
+        assertEquals(16, merged.getCount(UnionListener.Count.UNIQUE_SEGMENTS));
+        assertEquals(2, merged.getCount(UnionListener.Count.MERGED_LINES));
+        assertEquals(1, merged.getCount(UnionListener.Count.ALL_RINGS_CLOSED));
+        assertEquals(1, merged.getCount(UnionListener.Count.HOLES_ASSIGNED));
+        assertTrue(merged.hasPhase(UnionListener.Phase.RING_POLYGONS));
+        assertFalse(merged.hasPhase(UnionListener.Phase.TRACE_RINGS));
+
+        UnionStatistics built = new UnionStatistics();
+        new CoverageUnionBuilder(gfact, new UnionParameters().setListener(built))
+                .addAll(geoms.iterator()).build();
+        assertEquals(32, built.getCount(UnionListener.Count.INPUT_SEGMENTS));
+        assertEquals(16, built.getCount(UnionListener.Count.UNIQUE_SEGMENTS));
+        assertTrue(built.hasPhase(UnionListener.Phase.CANCEL_SEGMENTS));
+        assertTrue(built.hasPhase(UnionListener.Phase.TRACE_RINGS));
+
+        // The SORTED storage would cancel nothing until the result is built
+        try {
+            new CoverageUnionBuilder(gfact, new UnionParameters()
+                    .setSegmentStorage(UnionParameters.SegmentStorage.SORTED));
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testPackedCoordinateSequences() throws Exception {
+        GeometryFactory gfact = new GeometryFactory(new PackedCoordinateSequenceFactory(PackedCoordinateSequenceFactory.DOUBLE, 2));
+        WKTReader reader = new WKTReader(gfact);
+        Collection<Geometry> geoms = new ArrayList<>();
+        geoms.add(reader.read("POLYGON ((0 0, 0 20, 40 20, 40 0, 0 0), (30 10, 35 10, 35 15, 5 15, 5 5, 30 5, 30 10))"));
+        geoms.add(reader.read("POLYGON ((20 10, 20 12, 30 12, 29 10, 20 10))"));
+        geoms.add(reader.read("POLYGON ((40 0, 40 20, 50 20, 50 0, 40 0))"));
+
+        for (UnionParameters params : parameterVariants()) {
+            Geometry result = CoverageUnion.union(geoms, null, params);
+            assertTrue(describe(params), result.equalsTopo(UnaryUnionOp.union(geoms)));
+            for (int i = 0; i < result.getNumGeometries(); i++) {
+                Polygon p = (Polygon) result.getGeometryN(i);
+                assertTrue(describe(params), p.getExteriorRing().getCoordinateSequence() instanceof PackedCoordinateSequence);
+            }
+        }
+    }
+
+    @Test
+    public void testUnionWKB() throws Exception {
+        GeometryFactory gfact = new GeometryFactory();
+        WKTReader reader = new WKTReader(gfact);
+        Collection<Geometry> geoms = new ArrayList<>();
+        geoms.add(reader.read("POLYGON ((0 0, 0 20, 40 20, 40 0, 0 0), (30 10, 35 10, 35 15, 5 15, 5 5, 30 5, 30 10))"));
+        geoms.add(reader.read("POLYGON ((20 10, 20 12, 30 12, 29 10, 20 10))"));
+        geoms.add(reader.read("MULTIPOLYGON (((40 0, 40 20, 50 20, 50 0, 40 0)), ((60 0, 60 5, 65 5, 65 0, 60 0)))"));
+        geoms.add(reader.read("POLYGON ((50 0 1, 50 20 1, 60 20 1, 60 0 1, 50 0 1))"));
+        geoms.iterator().next().setSRID(4326);
+
+        // Write the records with a mixture of byte orders, dimensions and
+        // SRIDs
+        File file = File.createTempFile("coverageop", ".wkb");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                int i = 0;
+                for (Geometry g : geoms) {
+                    int byteOrder = i++ % 2 == 0 ? ByteOrderValues.BIG_ENDIAN : ByteOrderValues.LITTLE_ENDIAN;
+                    out.write(new WKBWriter(3, byteOrder, true).write(g));
+                }
+            }
+
+            for (UnionParameters params : parameterVariants()) {
+                Geometry result = CoverageUnion.unionWKB(file, gfact, params);
+                assertTrue(describe(params), result.equalsTopo(CoverageUnion.union(geoms, gfact, params)));
+            }
+
+            // A negative point count, and one running past the end of the
+            // file, are reported rather than read
+            for (int numPoints : new int[] { -1, 6 }) {
+                byte[] wkb = new WKBWriter().write(reader.read("POLYGON ((0 0, 0 1, 1 1, 1 0, 0 0))"));
+                ByteBuffer.wrap(wkb).putInt(9, numPoints);
+                try (FileOutputStream out = new FileOutputStream(file)) {
+                    out.write(wkb);
+                }
+                try {
+                    CoverageUnion.unionWKB(file, gfact, new UnionParameters());
+                    fail("Expected an IOException");
+                } catch (IOException e) {
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCoverageAdjacency() throws Exception {
+        // 2x2 grid of unit squares, with a fifth feature below the bottom
+        // row that shares two collinear segments with it
+        List<Geometry> geoms = new ArrayList<>();
+        geoms.add(readWKT("POLYGON ((0 0, 0 1, 1 1, 1 0, 0 0))"));
+        geoms.add(readWKT("POLYGON ((1 0, 1 1, 2 1, 2 0, 1 0))"));
+        geoms.add(readWKT("POLYGON ((0 1, 0 2, 1 2, 1 1, 0 1))"));
+        geoms.add(readWKT("POLYGON ((1 1, 1 2, 2 2, 2 1, 1 1))"));
+        geoms.add(readWKT("POLYGON ((0 -1, 0 0, 1 0, 2 0, 2 -1, 0 -1))"));
+
+        for (UnionParameters params : parameterVariants()) {
+            CoverageAdjacency adjacency = new CoverageAdjacency(geoms, null, params);
+            assertTrue(describe(params), adjacency.getUnion().equalsTopo(UnaryUnionOp.union(geoms)));
+
+            // Diagonal neighbors touch only at a point
+            assertEquals(6, adjacency.getNumSharedEdges());
+            assertNull(adjacency.getSharedEdge(0, 3));
+            assertNull(adjacency.getSharedEdge(1, 2));
+            assertArrayEquals(new int[] {1, 2, 4}, adjacency.getNeighbors(0));
+            assertArrayEquals(new int[] {0, 1}, adjacency.getNeighbors(4));
+            assertArrayEquals(new int[] {0, 3, 4}, adjacency.getNeighbors(1));
+            assertEquals(0, adjacency.getNeighbors(5).length);
+            assertEquals(Arrays.asList(adjacency.getSharedEdge(1, 3), adjacency.getSharedEdge(2, 3)),
+                         adjacency.getSharedEdges(3));
+            for (CoverageAdjacency.SharedEdge edge : adjacency.getSharedEdges()) {
+                assertTrue(edge.getA() < edge.getB());
+                assertEquals(1.0, edge.getLength(), 0.0);
+            }
+
+            CoverageAdjacency.SharedEdge edge = adjacency.getSharedEdge(1, 0);
+            assertTrue(edge.getGeometry().equalsTopo(readWKT("LINESTRING (1 0, 1 1)")));
+        }
+
+        // Shared edges of more than one segment are merged
+        List<Geometry> pair = new ArrayList<>();
+        pair.add(readWKT("POLYGON ((0 0, 0 1, 1 1, 2 1, 2 0, 0 0))"));
+        pair.add(readWKT("POLYGON ((0 1, 0 2, 2 2, 2 1, 1 1, 0 1))"));
+        CoverageAdjacency.SharedEdge edge = new CoverageAdjacency(pair).getSharedEdges(0).get(0);
+        assertEquals(2, edge.getNumSegments());
+        assertEquals(2.0, edge.getLength(), 0.0);
+        assertEquals(1, edge.getGeometry().getNumGeometries());
+
+        // Duplicate segments are retained on request
+        for (UnionParameters params : parameterVariants()) {
+            DuplicateSegmentFinder dsf = new DuplicateSegmentFinder(pair, true, params);
+            assertEquals(2, dsf.getDuplicateSegments().size());
+        }
+    }
+
+    @Test
+    public void testSegmentsSharedByManyFeatures() throws Exception {
+        // A duplicated square beside a single square, with a strip above
+        // them that appears three times
+        List<Geometry> geoms = new ArrayList<>();
+        geoms.add(readWKT("POLYGON ((0 0, 0 2, 2 2, 2 0, 0 0))"));
+        geoms.add(readWKT("POLYGON ((0 0, 0 2, 2 2, 2 0, 0 0))"));
+        geoms.add(readWKT("POLYGON ((2 0, 2 2, 4 2, 4 0, 2 0))"));
+        for (int i = 0; i < 3; i++) {
+            geoms.add(readWKT("POLYGON ((0 2, 0 3, 4 3, 4 2, 2 2, 0 2))"));
+        }
+        Geometry expected = readWKT("POLYGON ((0 0, 0 3, 4 3, 4 0, 0 0))");
+
+        for (UnionParameters params : parameterVariants()) {
+            if (params.getSegmentStorage() != UnionParameters.SegmentStorage.COUNTED_TABLE) {
+                continue;
+            }
+            UnionStatistics stats = new UnionStatistics();
+            params.setListener(stats);
+            assertTrue(describe(params), CoverageUnion.union(geoms, null, params).equalsTopo(expected));
+            // 4 sides of the duplicated square and 4 further segments of the
+            // strip; the fifth is also the top of the square
+            assertEquals(describe(params), 8, stats.getCount(UnionListener.Count.OVERLAPPING_SEGMENTS));
+            params.setListener(null);
+
+            CoverageUnionBuilder builder = new CoverageUnionBuilder(null, params);
+            builder.addAll(geoms.iterator());
+            assertTrue(describe(params), builder.build().equalsTopo(expected));
+        }
+
+        // The counts of a clean coverage report no overlaps
+        UnionStatistics stats = new UnionStatistics();
+        CoverageUnion.union(geoms.subList(1, 4), null, new UnionParameters()
+                .setSegmentStorage(UnionParameters.SegmentStorage.COUNTED_TABLE)
+                .setListener(stats));
+        assertEquals(0, stats.getCount(UnionListener.Count.OVERLAPPING_SEGMENTS));
+
+        try (TiledCoverageUnion tiled = new TiledCoverageUnion(null, new UnionParameters()
+                .setSegmentStorage(UnionParameters.SegmentStorage.COUNTED_TABLE), 1.5, 1 << 20, null)) {
+            tiled.addAll(geoms.iterator());
+            assertTrue("TiledCoverageUnion", tiled.build().equalsTopo(expected));
+        }
+    }
+
+    @Test
+    public void testPrecisionModelSnapping() throws Exception {
+        // A 3x3 grid whose shared vertices differ in their last few bits,
+        // as after reprojection
+        GeometryFactory gfact = new GeometryFactory();
+        Random random = new Random(15);
+        List<Geometry> geoms = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                Coordinate[] ring = new Coordinate[] {
+                    new Coordinate(i, j), new Coordinate(i, j + 1), new Coordinate(i + 1, j + 1),
+                    new Coordinate(i + 1, j), new Coordinate(i, j)
+                };
+                for (int k = 0; k < 4; k++) {
+                    ring[k].x += (random.nextDouble() - 0.5) * 1e-9;
+                    ring[k].y += (random.nextDouble() - 0.5) * 1e-9;
+                }
+                ring[4] = new Coordinate(ring[0]);
+                geoms.add(gfact.createPolygon(gfact.createLinearRing(ring), null));
+            }
+        }
+        Geometry expected = readWKT("POLYGON ((0 0, 0 3, 3 3, 3 0, 0 0))");
+
+        // Without snapping, no segments are shared
+        assertEquals(9, CoverageUnion.union(geoms, null).getNumGeometries());
+
+        List<UnionParameters> variants = new ArrayList<>(parameterVariants());
+        variants.add(new UnionParameters());
+        for (UnionParameters params : variants) {
+            params.setPrecisionModel(new PrecisionModel(1e6));
+            Geometry result = CoverageUnion.union(geoms, null, params);
+            assertTrue(describe(params), result.equalsTopo(expected));
+            // The result is built from the snapped vertices
+            for (Coordinate c : result.getCoordinates()) {
+                assertTrue(describe(params), c.x == Math.rint(c.x) && c.y == Math.rint(c.y));
+            }
+
+            if (params.getSegmentStorage() != UnionParameters.SegmentStorage.SORTED) {
+                CoverageUnionBuilder builder = new CoverageUnionBuilder(null, params);
+                assertTrue(describe(params), builder.addAll(geoms.iterator()).build().equalsTopo(expected));
+            }
+        }
+
+        // A feature narrower than the grid collapses and is discarded
+        geoms.add(readWKT("POLYGON ((3 0, 3 3, 3.0000000001 3, 3.0000000001 0, 3 0))"));
+        Geometry result = CoverageUnion.union(geoms, null, new UnionParameters()
+                .setPrecisionModel(new PrecisionModel(1e6)));
+        assertTrue(result.equalsTopo(expected));
+    }
+
+    @Test
+    public void testHybridFallback() throws Exception {
+        List<Geometry> geoms = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 5; j++) {
+                geoms.add(readWKT("POLYGON ((" + i + " " + j + ", " + i + " " + (j + 1) + ", "
+                        + (i + 1) + " " + (j + 1) + ", " + (i + 1) + " " + j + ", " + i + " " + j + "))"));
+            }
+        }
+
+        // A valid coverage stays on the fast path
+        HybridCoverageUnion clean = new HybridCoverageUnion(geoms);
+        assertEquals(1, clean.getNumRounds());
+        assertEquals(0, clean.getFallbackFeatures().length);
+        assertTrue(clean.getUnion().equalsTopo(UnaryUnionOp.union(geoms)));
+
+        // A square overlapping the corner cell, a square beside the grid
+        // whose edge is not noded at the vertices of the cells it touches,
+        // and a square within the central cell
+        geoms.add(readWKT("POLYGON ((4.5 4.5, 4.5 5.5, 5.5 5.5, 5.5 4.5, 4.5 4.5))"));
+        geoms.add(readWKT("POLYGON ((5 0, 5 2, 7 2, 7 0, 5 0))"));
+        geoms.add(readWKT("POLYGON ((2.25 2.25, 2.25 2.75, 2.75 2.75, 2.75 2.25, 2.25 2.25))"));
+        Geometry expected = UnaryUnionOp.union(geoms);
+        assertFalse(CoverageUnion.union(geoms).isValid());
+
+        List<UnionParameters> variants = new ArrayList<>(parameterVariants());
+        variants.add(new UnionParameters());
+        for (UnionParameters params : variants) {
+            UnionStatistics stats = new UnionStatistics();
+            params.setListener(stats);
+            HybridCoverageUnion hybrid = new HybridCoverageUnion(geoms, null, params);
+            assertTrue(describe(params), hybrid.getUnion().equalsTopo(expected));
+            assertFalse(describe(params), hybrid.getProblemLocations().isEmpty());
+            assertTrue(describe(params), hybrid.getNumRounds() > 1);
+            for (int feature : new int[] {12, 20, 21, 24, 25, 26, 27}) {
+                assertTrue(describe(params), hybrid.isFallback(feature));
+            }
+            assertFalse(describe(params), hybrid.isFallback(0));
+            assertEquals(hybrid.getFallbackFeatures().length, stats.getCount(UnionListener.Count.FALLBACK_FEATURES));
+        }
+    }
+
+    @Test
+    public void testHierarchicalCoverageUnion() throws Exception {
+        // Cells of an 8x8 grid, keyed by their column and row, rolled up
+        // into 2x2 blocks, then 4x4 blocks, then a single group
+        Map<Object, Geometry> cells = new LinkedHashMap<>();
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                if ((i * 7 + j * 3) % 5 == 0) {
+                    continue;
+                }
+                cells.put(Arrays.asList(i, j), readWKT("POLYGON ((" + i + " " + j + ", " + i + " " + (j + 1) + ", "
+                        + (i + 1) + " " + (j + 1) + ", " + (i + 1) + " " + j + ", " + i + " " + j + "))"));
+            }
+        }
+        HierarchicalCoverageUnion.ParentKey halve = new HierarchicalCoverageUnion.ParentKey() {
+            @Override
+            public Object getParent(Object key) {
+                List<?> cell = (List<?>) key;
+                return Arrays.asList((Integer) cell.get(0) / 2, (Integer) cell.get(1) / 2);
+            }
+        };
+        HierarchicalCoverageUnion.ParentKey all = new HierarchicalCoverageUnion.ParentKey() {
+            @Override
+            public Object getParent(Object key) {
+                return "all";
+            }
+        };
+        List<HierarchicalCoverageUnion.ParentKey> levels = Arrays.asList(halve, halve, all);
+
+        for (UnionParameters params : parameterVariants()) {
+            HierarchicalCoverageUnion hierarchy = new HierarchicalCoverageUnion(cells, levels, null, params);
+            assertEquals(3, hierarchy.getNumLevels());
+            assertEquals(16, hierarchy.getKeys(0).size());
+            assertEquals(4, hierarchy.getKeys(1).size());
+            assertEquals(Arrays.<Object>asList("all"), hierarchy.getKeys(2));
+
+            for (int level = 0; level < 3; level++) {
+                for (Map.Entry<Object, Geometry> e : hierarchy.getUnions(level).entrySet()) {
+                    List<Geometry> members = new ArrayList<>();
+                    for (Map.Entry<Object, Geometry> cell : cells.entrySet()) {
+                        Object key = cell.getKey();
+                        for (int up = 0; up <= level; up++) {
+                            key = levels.get(up).getParent(key);
+                        }
+                        if (key.equals(e.getKey())) {
+                            members.add(cell.getValue());
+                        }
+                    }
+                    assertTrue(describe(params) + " " + e.getKey(),
+                               e.getValue().equalsTopo(UnaryUnionOp.union(members)));
+                }
+            }
+            assertTrue(hierarchy.getUnion(2, "all").equalsTopo(UnaryUnionOp.union(new ArrayList<>(cells.values()))));
+            assertNull(hierarchy.getUnion(2, "none"));
+        }
+    }
+
+    @Test
+    public void testPartialUnionMapReduce() throws Exception {
+        final List<Geometry> cells = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            for (int j = 0; j < 12; j++) {
+                if ((i * 7 + j * 3) % 5 != 0) {
+                    cells.add(readWKT("POLYGON ((" + i + " " + j + ", " + i + " " + (j + 1) + ", "
+                            + (i + 1) + " " + (j + 1) + ", " + (i + 1) + " " + j + ", " + i + " " + j + "))"));
+                }
+            }
+        }
+        Geometry expected = UnaryUnionOp.union(cells);
+        Geometry duplicate = cells.get(10);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (final UnionParameters params : parameterVariants()) {
+                final boolean counting = params.getSegmentStorage() == UnionParameters.SegmentStorage.COUNTED_TABLE;
+
+                // Each worker cancels an interleaved partition of the cells
+                // and ships its PartialUnion as bytes
+                final int numWorkers = 5;
+                List<Callable<byte[]>> workers = new ArrayList<>();
+                for (int w = 0; w < numWorkers; w++) {
+                    final int worker = w;
+                    workers.add(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                            List<Geometry> partition = new ArrayList<>();
+                            for (int i = worker; i < cells.size(); i += numWorkers) {
+                                partition.add(cells.get(i));
+                            }
+                            return new DuplicateSegmentFinder(partition, false, params).getPartialUnion().toByteArray();
+                        }
+                    });
+                }
+                List<PartialUnion> partials = new ArrayList<>();
+                for (Future<byte[]> f : executor.invokeAll(workers)) {
+                    partials.add(PartialUnion.read(new ByteArrayInputStream(f.get()), params));
+                }
+                if (counting) {
+                    // A duplicate of a cell cancelled by another worker
+                    PartialUnion extra = new PartialUnion(params);
+                    extra.add(duplicate);
+                    partials.add(extra);
+                }
+
+                // Merge in a reduce tree
+                while (partials.size() > 1) {
+                    List<PartialUnion> merged = new ArrayList<>();
+                    for (int i = 0; i < partials.size(); i += 2) {
+                        merged.add(i + 1 < partials.size() ? partials.get(i).merge(partials.get(i + 1)) : partials.get(i));
+                    }
+                    partials = merged;
+                }
+                Geometry union = partials.get(0).getUnion(new GeometryFactory());
+                assertTrue(describe(params), union.equalsTopo(expected));
+                assertEquals(CoverageUnion.union(cells, null, params).getNumPoints(), union.getNumPoints());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            PartialUnion.fromByteArray(new byte[] { 1, 2, 3, 4 });
+            fail("Expected an IOException");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testMutableCoverageUnion() throws Exception {
+        List<Geometry> cells = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j < 6; j++) {
+                cells.add(readWKT("POLYGON ((" + i + " " + j + ", " + i + " " + (j + 1) + ", "
+                        + (i + 1) + " " + (j + 1) + ", " + (i + 1) + " " + j + ", " + i + " " + j + "))"));
+            }
+        }
+
+        // Add and remove random cells, which creates and fills holes,
+        // splits and joins polygons, and makes cells touch at corners
+        Random random = new Random(17);
+        List<Geometry> included = new ArrayList<>();
+        List<Geometry> excluded = new ArrayList<>();
+        for (Geometry cell : cells) {
+            (random.nextBoolean() ? included : excluded).add(cell);
+        }
+        MutableCoverageUnion mutable = new MutableCoverageUnion(included);
+        for (int step = 0; step < 200; step++) {
+            if (included.isEmpty() || (!excluded.isEmpty() && random.nextBoolean())) {
+                Geometry cell = excluded.remove(random.nextInt(excluded.size()));
+                included.add(cell);
+                mutable.add(cell);
+            } else {
+                Geometry cell = included.remove(random.nextInt(included.size()));
+                excluded.add(cell);
+                mutable.remove(cell);
+            }
+            Geometry union = mutable.getUnion();
+            assertTrue("step " + step, union.isValid());
+            if (included.isEmpty()) {
+                assertTrue(union.isEmpty());
+            } else {
+                Geometry expected = UnaryUnionOp.union(included);
+                assertTrue("step " + step, union.equalsTopo(expected));
+                assertEquals(expected.getNumGeometries(), union.getNumGeometries());
+            }
+        }
+    }
+
+    @Test
+    public void testSortedSegmentCancellation() throws Exception {
+        // Keys with both signs, and enough of them to be sorted in parallel
+        Random random = new Random(20);
+        long[] keys = new long[100000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+        }
+        long[] expected = keys.clone();
+        Arrays.sort(expected);
+        SegmentSorter.sort(keys, 4);
+        assertArrayEquals(expected, keys);
+
+        // A 140x140 grid of unit squares, of which every seventh is
+        // duplicated, has enough segments to be sorted in parallel
+        GeometryFactory gfact = new GeometryFactory();
+        Collection<Geometry> geoms = new ArrayList<>();
+        int n = 140;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                Geometry square = gfact.toGeometry(new Envelope(i, i + 1, j, j + 1));
+                geoms.add(square);
+                if ((i * n + j) % 7 == 0) {
+                    geoms.add(square);
+                }
+            }
+        }
+
+        DuplicateSegmentFinder packed = new DuplicateSegmentFinder(geoms, true,
+                new UnionParameters().setSegmentStorage(UnionParameters.SegmentStorage.PACKED_TABLE));
+        for (int parallelism : new int[] { 1, 4 }) {
+            DuplicateSegmentFinder sorted = new DuplicateSegmentFinder(geoms, true,
+                    new UnionParameters().setSegmentStorage(UnionParameters.SegmentStorage.SORTED)
+                                         .setParallelism(parallelism));
+            assertEquals(packed.getNumUniqueSegments(), sorted.getNumUniqueSegments());
+            assertEquals(packed.getDuplicateSegments(), sorted.getDuplicateSegments());
+            assertEquals(packed.getUniqueSegments(), sorted.getUniqueSegments());
+        }
+
+        Geometry union = CoverageUnion.union(geoms, gfact,
+                new UnionParameters().setSegmentStorage(UnionParameters.SegmentStorage.SORTED).setParallelism(4));
+        assertTrue(union.isValid());
+        assertTrue(union.equalsTopo(CoverageUnion.union(geoms, gfact,
+                new UnionParameters().setSegmentStorage(UnionParameters.SegmentStorage.PACKED_TABLE))));
+    }
+
+    @Test
+    public void testWindowedUnion() throws Exception {
+        GeometryFactory gfact = new GeometryFactory();
+        Collection<Geometry> geoms = new ArrayList<>();
+        Random random = new Random(21);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                // Half-cell triangles, so that the boundary crosses windows
+                // diagonally as well as along grid lines
+                if (random.nextDouble() < 0.7) {
+                    geoms.add(readWKT("POLYGON ((" + i + " " + j + ", " + i + " " + (j + 1) + ", "
+                            + (i + 1) + " " + (j + 1) + ", " + i + " " + j + "))"));
+                }
+                if (random.nextDouble() < 0.7) {
+                    geoms.add(readWKT("POLYGON ((" + i + " " + j + ", " + (i + 1) + " " + (j + 1) + ", "
+                            + (i + 1) + " " + j + ", " + i + " " + j + "))"));
+                }
+            }
+        }
+        Geometry union = CoverageUnion.union(geoms, gfact);
+
+        List<Envelope> windows = new ArrayList<>();
+        windows.add(new Envelope(2, 6, 3, 8));          // along grid lines
+        windows.add(new Envelope(2.5, 6.5, 3.5, 7.5));  // through cell centers
+        windows.add(new Envelope(-3, 13, -3, 13));      // around the coverage
+        windows.add(new Envelope(20, 30, 20, 30));      // outside the coverage
+        for (int k = 0; k < 20; k++) {
+            double x = 10 * random.nextDouble();
+            double y = 10 * random.nextDouble();
+            windows.add(new Envelope(x, x + 4 * random.nextDouble(), y, y + 4 * random.nextDouble()));
+        }
+
+        WindowedCoverageUnion windowed = new WindowedCoverageUnion(geoms, gfact, new UnionParameters(), 4);
+        for (Envelope window : windows) {
+            Geometry clipped = windowed.union(window);
+            assertTrue(window.toString(), clipped.isValid());
+            Geometry expected = union.intersection(gfact.toGeometry(window));
+            assertEquals(window.toString(), expected.getArea(), clipped.getArea(), 1e-9);
+            if (expected.getArea() == 0) {
+                assertTrue(window.toString(), clipped.isEmpty());
+            } else {
+                assertTrue(window.toString(), clipped.buffer(1e-9).covers(expected.buffer(0)));
+                assertTrue(window.toString(), expected.buffer(1e-9).covers(clipped));
+            }
+            assertEquals(clipped.getArea(), CoverageUnion.unionInWindow(geoms, window).getArea(), 0.0);
+        }
+
+        // Cells of a jittered lattice, whose non-integer vertices must
+        // survive clipping exactly where a segment is not clipped
+        double[][] lx = new double[13][13];
+        double[][] ly = new double[13][13];
+        for (int i = 0; i <= 12; i++) {
+            for (int j = 0; j <= 12; j++) {
+                lx[i][j] = i + 0.6 * (random.nextDouble() - 0.5);
+                ly[i][j] = j + 0.6 * (random.nextDouble() - 0.5);
+            }
+        }
+        Collection<Geometry> jittered = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            for (int j = 0; j < 12; j++) {
+                if (random.nextDouble() < 0.7) {
+                    jittered.add(gfact.createPolygon(new Coordinate[] {
+                        new Coordinate(lx[i][j], ly[i][j]),
+                        new Coordinate(lx[i][j+1], ly[i][j+1]),
+                        new Coordinate(lx[i+1][j+1], ly[i+1][j+1]),
+                        new Coordinate(lx[i+1][j], ly[i+1][j]),
+                        new Coordinate(lx[i][j], ly[i][j]) }));
+                }
+            }
+        }
+        Geometry jitteredUnion = CoverageUnion.union(jittered, gfact);
+        WindowedCoverageUnion jitteredWindowed = new WindowedCoverageUnion(jittered, gfact, new UnionParameters(), 4);
+        for (int k = 0; k < 200; k++) {
+            double x = 12 * random.nextDouble();
+            double y = 12 * random.nextDouble();
+            Envelope window = new Envelope(x, x + 4 * random.nextDouble(), y, y + 4 * random.nextDouble());
+            Geometry expected = jitteredUnion.intersection(gfact.toGeometry(window));
+            assertEquals(window.toString(), expected.getArea(), jitteredWindowed.union(window).getArea(), 1e-9);
+        }
+
+        // A window inside a single feature, with no boundary in the window
+        Geometry inside = windowed.union(new Envelope(0.1, 0.2, 0.7, 0.8));
+        assertEquals(union.covers(gfact.createPoint(new Coordinate(0.1, 0.8))) ? 0.01 : 0.0, inside.getArea(), 1e-12);
+
+        // Unions are cached by key, with the least recently used evicted
+        Geometry first = windowed.getUnion("0/0", windows.get(0));
+        assertSame(first, windowed.getUnion("0/0", windows.get(0)));
+        for (int k = 1; k <= 4; k++) {
+            windowed.getUnion("0/" + k, windows.get(k));
+        }
+        assertEquals(4, windowed.getNumCached());
+        assertNotSame(first, windowed.getUnion("0/0", windows.get(0)));
+    }
+
+    /** wigglyEdge returns the vertices of a zigzagging cell edge between
+     *  two lattice points.  The vertices depend only on the edge, so the
+     *  cells on either side of it share them.
+     */
+    private static List<Coordinate> wigglyEdge(int i0, int j0, int i1, int j1) {
+        boolean flip = i0 > i1 || (i0 == i1 && j0 > j1);
+        int ai = flip ? i1 : i0, aj = flip ? j1 : j0;
+        int di = Math.abs(i1 - i0), dj = Math.abs(j1 - j0);
+        List<Coordinate> pts = new ArrayList<>();
+        for (int m = 0; m <= 8; m++) {
+            double offset = (m == 0 || m == 8) ? 0 : (m % 2 == 0 ? 0.02 : -0.02);
+            pts.add(new Coordinate(ai + di * m / 8.0 + dj * offset, aj + dj * m / 8.0 + di * offset));
+        }
+        if (flip) {
+            Collections.reverse(pts);
+        }
+        return pts;
+    }
+
+    @Test
+    public void testSimplifiedUnionByKey() throws Exception {
+        GeometryFactory gfact = new GeometryFactory();
+        Map<String, Collection<Geometry>> groups = new LinkedHashMap<>();
+        List<Geometry> all = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j < 6; j++) {
+                List<Coordinate> ring = new ArrayList<>();
+                int[][] corners = { { i, j }, { i, j + 1 }, { i + 1, j + 1 }, { i + 1, j }, { i, j } };
+                for (int e = 0; e < 4; e++) {
+                    List<Coordinate> edge = wigglyEdge(corners[e][0], corners[e][1], corners[e+1][0], corners[e+1][1]);
+                    ring.addAll(edge.subList(e == 0 ? 0 : 1, edge.size()));
+                }
+                Geometry cell = gfact.createPolygon(gfact.createLinearRing(ring.toArray(new Coordinate[ring.size()])), null);
+                String key = (i < 3 ? "W" : "E") + (j < 2 ? "S" : "N");
+                if (!groups.containsKey(key)) {
+                    groups.put(key, new ArrayList<Geometry>());
+                }
+                groups.get(key).add(cell);
+                all.add(cell);
+            }
+        }
+
+        for (UnionParameters params : new UnionParameters[] {
+                new UnionParameters().setSimplifyTolerance(0.05),
+                new UnionParameters().setSimplifyTolerance(0.05)
+                        .setRingConstruction(UnionParameters.RingConstruction.MERGE_AND_POLYGONIZE) }) {
+            UnionStatistics stats = new UnionStatistics();
+            params.setListener(stats);
+            Map<String, Geometry> exact = CoverageUnion.unionByKey(groups);
+            Map<String, Geometry> simplified = CoverageUnion.unionByKey(groups, gfact, params);
+            assertTrue(stats.hasPhase(UnionListener.Phase.SIMPLIFY));
+
+            // Every zigzag is removed, and the groups still tile the square
+            // without gaps or overlaps, because they share simplified arcs
+            double area = 0;
+            for (String key : groups.keySet()) {
+                Geometry g = simplified.get(key);
+                assertTrue(key, g.isValid());
+                assertEquals(key, exact.get(key).getArea(), g.getArea(), 0.05);
+                assertTrue(key, g.getNumPoints() < exact.get(key).getNumPoints() / 4);
+                area += g.getArea();
+            }
+            Geometry merged = UnaryUnionOp.union(new ArrayList<>(simplified.values()));
+            assertEquals(1, merged.getNumGeometries());
+            assertEquals(0, ((Polygon) merged.getGeometryN(0)).getNumInteriorRing());
+            assertEquals(area, merged.getArea(), 1e-9);
+
+            Geometry whole = CoverageUnion.union(all, gfact, params);
+            assertTrue(whole.isValid());
+            assertEquals(CoverageUnion.union(all, gfact).getArea(), whole.getArea(), 0.1);
+
+            Geometry built = new CoverageUnionBuilder(gfact, params).addAll(all.iterator()).build();
+            assertTrue(built.equalsExact(whole));
+        }
+    }
+
+    @Test
+    public void testArcTopology() throws Exception {
+        // Two groups sharing a boundary, one of them with a hole, and an
+        // empty result
+        GeometryFactory gfact = new GeometryFactory();
+        Map<String, Collection<Geometry>> groups = new LinkedHashMap<>();
+        groups.put("west", new ArrayList<Geometry>());
+        groups.put("east", new ArrayList<Geometry>());
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 3; j++) {
+                if (i != 1 || j != 1) {
+                    groups.get(i < 3 ? "west" : "east").add(gfact.toGeometry(new Envelope(i, i + 1, j, j + 1)));
+                }
+            }
+        }
+        List<Geometry> unions = new ArrayList<>(CoverageUnion.unionByKey(groups).values());
+        unions.add(gfact.createPoint((Coordinate) null));
+
+        ArcTopology topology = new ArcTopology(unions);
+        assertEquals(3, topology.getNumGeometries());
+        // The shared boundary, the rest of each outer boundary, and the
+        // hole of the west group
+        assertEquals(4, topology.getNumArcs());
+        int[][][] west = topology.getPolygons(0);
+        int[][][] east = topology.getPolygons(1);
+        assertEquals(0, topology.getPolygons(2).length);
+        assertEquals(1, west.length);
+        assertEquals(2, west[0].length);
+        assertEquals(1, east.length);
+        // The shared arc is referenced once in each direction
+        boolean foundShared = false;
+        for (int ref : west[0][0]) {
+            for (int other : east[0][0]) {
+                if (other == ~ref) {
+                    foundShared = true;
+                }
+            }
+        }
+        assertTrue(foundShared);
+
+        List<Geometry> rebuilt = ArcTopology.fromByteArray(topology.toByteArray(0)).getGeometries(gfact);
+        for (int i = 0; i < unions.size(); i++) {
+            assertTrue(rebuilt.get(i).isValid());
+            assertEquals(unions.get(i).getArea(), rebuilt.get(i).getArea(), 0.0);
+            if (!unions.get(i).isEmpty()) {
+                assertTrue(rebuilt.get(i).equalsTopo(unions.get(i)));
+            }
+        }
+        assertEquals(rebuilt, topology.getGeometries(gfact));
+
+        // Quantized ordinates are restored to the quantization grid, which
+        // here includes every vertex
+        byte[] quantized = topology.toByteArray(16);
+        assertTrue(quantized.length < topology.toByteArray(0).length / 2);
+        List<Geometry> restored = ArcTopology.fromByteArray(quantized).getGeometries(gfact);
+        for (int i = 0; i < unions.size(); i++) {
+            assertTrue(rebuilt.get(i).equalsExact(restored.get(i), 1e-12));
+        }
+
+        try {
+            ArcTopology.fromByteArray(new byte[] { 1, 2, 3, 4, 5 });
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testStreamedUnion() throws Exception {
+        // Half of the cells of a grid, leaving many components with holes,
+        // some of which contain islands
+        GeometryFactory gfact = new GeometryFactory();
+        Random random = new Random(24);
+        Collection<Geometry> geoms = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            for (int j = 0; j < 40; j++) {
+                if (random.nextBoolean()) {
+                    geoms.add(gfact.toGeometry(new Envelope(i, i + 1, j, j + 1)));
+                }
+            }
+        }
+
+        List<Polygon> expected = new ArrayList<>();
+        Geometry union = CoverageUnion.union(geoms, gfact, new UnionParameters());
+        for (int i = 0; i < union.getNumGeometries(); i++) {
+            Polygon p = (Polygon) union.getGeometryN(i).clone();
+            p.normalize();
+            expected.add(p);
+        }
+        Collections.sort(expected);
+
+        // Streamed rings are always traced, so variants that would merge
+        // and polygonize the rings give the same Polygons as the others
+        List<UnionParameters> variants = new ArrayList<>(parameterVariants());
+        variants.add(new UnionParameters());
+        for (UnionParameters params : variants) {
+            final List<Polygon> streamed = new ArrayList<>();
+            long n = CoverageUnion.union(geoms, gfact, params, new PolygonAssembler.PolygonSink() {
+                @Override
+                public void addPolygon(Polygon p) {
+                    streamed.add(p);
+                }
+            });
+            assertEquals(describe(params), expected.size(), n);
+            for (Polygon p : streamed) {
+                assertTrue(describe(params), p.isValid());
+                p.normalize();
+            }
+            Collections.sort(streamed);
+            assertEquals(describe(params), expected, streamed);
+        }
+
+        assertEquals(0, CoverageUnion.union(new ArrayList<Geometry>(), gfact, new UnionParameters(), null));
+    }
+
+    @Test
+    public void testUnionPlanner() throws Exception {
+        GeometryFactory gfact = new GeometryFactory();
+        Collection<Geometry> geoms = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            for (int j = 0; j < 60; j++) {
+                if ((i * 7 + j * 3) % 11 != 0 || i == 0 || j == 0) {
+                    geoms.add(gfact.toGeometry(new Envelope(i, i + 1, j, j + 1)));
+                }
+            }
+        }
+        Geometry expected = CoverageUnion.union(geoms, gfact, new UnionParameters());
+
+        // Ample heap and processors, but too few points to be parallel
+        UnionPlanner.Plan plan = UnionPlanner.plan(geoms, new UnionParameters(), 1L << 32, 8);
+        assertEquals(UnionPlanner.Strategy.IN_MEMORY, plan.getStrategy());
+        assertEquals(UnionParameters.SegmentStorage.PACKED_TABLE, plan.getParameters().getSegmentStorage());
+        assertEquals(1, plan.getParameters().getParallelism());
+        assertEquals(geoms.size(), plan.getNumRings());
+        assertEquals(5.0, plan.getMeanRingSize(), 0.0);
+        assertTrue(plan.union(geoms, gfact).equalsTopo(expected));
+
+        // Too little heap, so segments are spilled to disk, and counting
+        // is retained because it changes the result
+        plan = UnionPlanner.plan(geoms, new UnionParameters()
+                .setSegmentStorage(UnionParameters.SegmentStorage.COUNTED_TABLE)
+                .setRingConstruction(UnionParameters.RingConstruction.MERGE_AND_POLYGONIZE), 10000, 1);
+        assertEquals(UnionPlanner.Strategy.TILED, plan.getStrategy());
+        assertEquals(UnionParameters.SegmentStorage.COUNTED_TABLE, plan.getParameters().getSegmentStorage());
+        assertEquals(UnionParameters.RingConstruction.TRACE, plan.getParameters().getRingConstruction());
+        assertTrue(plan.getTileSize() > 0 && plan.getMemoryBudget() > 0);
+        Geometry tiled = plan.union(geoms, gfact);
+        assertTrue(tiled.isValid());
+        assertTrue(tiled.equalsTopo(expected));
+
+        // Plans depend only on the inputs and the maximum heap, so the same
+        // inputs are always planned the same way
+        UnionPlanner.Plan first = UnionPlanner.plan(geoms);
+        UnionPlanner.Plan second = UnionPlanner.plan(geoms);
+        assertEquals(first.toString(), second.toString());
+
+        // A few small inputs keep the default parameters
+        plan = UnionPlanner.plan(Arrays.asList(geoms.iterator().next()));
+        assertEquals(UnionParameters.SegmentStorage.HASH_SET, plan.getParameters().getSegmentStorage());
+        assertTrue(UnionPlanner.plan(new ArrayList<Geometry>()).union(new ArrayList<Geometry>(), null).isEmpty());
+    }
+
 //    // ********************************************************************** //
 //    // These tests check that overlapping inputs are unmodified by the        //
 //    // algorithm.  In other words, if there are no shared boundaries to       //